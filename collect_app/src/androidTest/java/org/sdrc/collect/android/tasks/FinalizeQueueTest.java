@@ -0,0 +1,165 @@
+package org.sdrc.scpstn.collect.android.tasks;
+
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sdrc.scpstn.collect.android.application.Collect;
+import org.sdrc.scpstn.collect.android.dao.FormsDao;
+import org.sdrc.scpstn.collect.android.dao.InstancesDao;
+import org.sdrc.scpstn.collect.android.dto.Form;
+import org.sdrc.scpstn.collect.android.dto.Instance;
+import org.sdrc.scpstn.collect.android.provider.InstanceProviderAPI;
+import org.sdrc.scpstn.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.sdrc.scpstn.collect.android.test.TestUtils.resetInstancesContentProvider;
+
+/**
+ * Instances are finalized in the background: queued when they are saved, resumed when the
+ * application starts again, and left alone when saved again as incomplete in the meantime.
+ */
+public class FinalizeQueueTest {
+
+    private static final String INSTANCE_XML = "<data id=\"finalize\"><name>Asha</name>"
+            + "<meta><instanceID>uuid:0b4f2d1e-5c1a-4b7e-8f3d-2a9c6e1d7b55</instanceID></meta>"
+            + "</data>";
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InstancesDao dao;
+    private FormsDao formsDao;
+
+    @Before
+    public void setUp() throws Exception {
+        resetInstancesContentProvider();
+        dao = new InstancesDao();
+        formsDao = new FormsDao();
+        formsDao.deleteFormsDatabase();
+
+        // the form the instances were filled in with, which is not encrypted
+        File formXml = folder.newFile("finalize.xml");
+        FileUtils.writeStringToFile(formXml, "<h:html xmlns=\"http://www.w3.org/2002/xforms\""
+                + " xmlns:h=\"http://www.w3.org/1999/xhtml\"><h:head><h:title>Finalize</h:title>"
+                + "<model><instance><data id=\"finalize\"><name/></data></instance></model>"
+                + "</h:head><h:body/></h:html>", "UTF-8");
+        formsDao.saveForm(formsDao.getValuesFromFormObject(new Form.Builder()
+                .displayName("Finalize")
+                .jrFormId("finalize")
+                .formFilePath(formXml.getAbsolutePath())
+                .build()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        resetInstancesContentProvider();
+        formsDao.deleteFormsDatabase();
+    }
+
+    @Test
+    public void enqueue_MarksInstanceComplete() throws Exception {
+        File instanceXml = createInstanceFiles();
+        Uri uri = createInstance(instanceXml, InstanceProviderAPI.STATUS_FINALIZING);
+
+        FinalizeQueue.getInstance().enqueue(uri);
+
+        awaitStatus(uri, InstanceProviderAPI.STATUS_COMPLETE);
+        assertEquals(INSTANCE_XML, FileUtils.readFileToString(instanceXml, "UTF-8"));
+        assertTrue(new File(instanceXml.getParentFile(), "photo.jpg").exists());
+        assertFalse(new File(instanceXml.getParentFile(), "submission.xml").exists());
+        assertFalse(FinalizeQueue.getJobFile(instanceXml).exists());
+    }
+
+    @Test
+    public void resumePending_FinalizesInterruptedJobs() throws Exception {
+        // the process was killed after the instance was saved, before it was packaged
+        Uri first = createInstance(createInstanceFiles(), InstanceProviderAPI.STATUS_FINALIZING);
+        Uri second = createInstance(createInstanceFiles(), InstanceProviderAPI.STATUS_FINALIZING);
+
+        FinalizeQueue.getInstance().resumePending();
+
+        awaitStatus(first, InstanceProviderAPI.STATUS_COMPLETE);
+        awaitStatus(second, InstanceProviderAPI.STATUS_COMPLETE);
+    }
+
+    @Test
+    public void missingJob_RevertsToIncomplete() throws Exception {
+        File instanceXml = createInstanceFiles();
+        FinalizeQueue.deleteJob(instanceXml);
+        Uri uri = createInstance(instanceXml, InstanceProviderAPI.STATUS_FINALIZING);
+
+        FinalizeQueue.getInstance().enqueue(uri);
+
+        awaitStatus(uri, InstanceProviderAPI.STATUS_INCOMPLETE);
+        assertEquals(INSTANCE_XML, FileUtils.readFileToString(instanceXml, "UTF-8"));
+        assertFalse(new File(instanceXml.getParentFile(), "submission.xml").exists());
+    }
+
+    @Test
+    public void packageSubmission_KeepsInstanceSavedAgainAsIncomplete() throws Exception {
+        // saved again as incomplete after the job started, before it was marked complete
+        File instanceXml = createInstanceFiles();
+        Uri uri = createInstance(instanceXml, InstanceProviderAPI.STATUS_INCOMPLETE);
+
+        assertFalse(FinalizeQueue.getInstance().packageSubmission(uri, instanceXml));
+
+        assertEquals(InstanceProviderAPI.STATUS_INCOMPLETE, getStatus(uri));
+        assertEquals(INSTANCE_XML, FileUtils.readFileToString(instanceXml, "UTF-8"));
+        assertFalse(new File(instanceXml.getParentFile(), "submission.xml").exists());
+    }
+
+    /**
+     * @return the instance.xml of an instance with a photo, saved with its finalize job
+     */
+    private File createInstanceFiles() throws Exception {
+        File instanceDir = folder.newFolder();
+        File instanceXml = new File(instanceDir, "instance.xml");
+        FileUtils.writeStringToFile(instanceXml, INSTANCE_XML, "UTF-8");
+        FileUtils.writeStringToFile(new File(instanceDir, "photo.jpg"), "photo", "UTF-8");
+        FinalizeQueue.writeJob(instanceXml, "uuid:0b4f2d1e-5c1a-4b7e-8f3d-2a9c6e1d7b55", null,
+                true);
+        return instanceXml;
+    }
+
+    private Uri createInstance(File instanceXml, String status) {
+        Instance instance = new Instance.Builder()
+                .displayName("Finalize")
+                .instanceFilePath(instanceXml.getAbsolutePath())
+                .jrFormId("finalize")
+                .status(status)
+                .lastStatusChangeDate(123L)
+                .displaySubtext("A form used in testing")
+                .build();
+        return dao.saveInstance(dao.getValuesFromInstanceObject(instance));
+    }
+
+    private void awaitStatus(Uri uri, String status) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!status.equals(getStatus(uri)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(status, getStatus(uri));
+    }
+
+    private String getStatus(Uri uri) {
+        Cursor c = Collect.getInstance().getContentResolver().query(uri, null, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getString(c.getColumnIndex(InstanceColumns.STATUS));
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -1,38 +1,68 @@
 package org.sdrc.scpstn.collect.android.tasks;
 
+import android.content.ContentValues;
+import android.database.Cursor;
 import android.net.Uri;
 
 import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.sdrc.scpstn.collect.android.dao.InstancesDao;
 import org.sdrc.scpstn.collect.android.dto.Instance;
+import org.sdrc.scpstn.collect.android.preferences.GeneralSharedPreferences;
+import org.sdrc.scpstn.collect.android.preferences.PreferenceKeys;
 import org.sdrc.scpstn.collect.android.provider.InstanceProviderAPI;
 import org.sdrc.scpstn.collect.android.tasks.InstanceServerUploader.Outcome;
+import org.sdrc.scpstn.collect.android.utilities.UriRemapCache;
 import org.sdrc.scpstn.collect.android.test.MockedServerTest;
 
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.sdrc.scpstn.collect.android.test.TestUtils.assertMatches;
 import static org.sdrc.scpstn.collect.android.test.TestUtils.cleanUpTempFiles;
 import static org.sdrc.scpstn.collect.android.test.TestUtils.createTempFile;
 import static org.sdrc.scpstn.collect.android.test.TestUtils.resetInstancesContentProvider;
 
 public class InstanceServerUploaderTest extends MockedServerTest {
+    // several chunks of SQLITE_MAX_VARIABLE_NUMBER ids
+    private static final int QUEUED_INSTANCES = 5000;
+
+    private static final int SLOW_LINK_INSTANCES = 20;
+    private static final int SLOW_LINK_LATENCY_MILLIS = 300;
+
+    // more than the 100 attachments of one post
+    private static final int SPLIT_POST_ATTACHMENTS = 150;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private InstancesDao dao;
 
     @Before
     public void setUp() throws Exception {
         resetInstancesContentProvider();
+        UriRemapCache.getInstance().clear();
         dao = new InstancesDao();
     }
 
     @After
     public void tearDown() throws Exception {
+        GeneralSharedPreferences.getInstance().reset(PreferenceKeys.KEY_UPLOAD_CONCURRENCY);
         cleanUpTempFiles();
         resetInstancesContentProvider();
     }
@@ -82,9 +112,218 @@ public class InstanceServerUploaderTest extends MockedServerTest {
         }
     }
 
+    @Test
+    public void shouldUploadEachOfManyInstancesOnce() throws Exception {
+        // given
+        Long[] ids = createStoredInstances(QUEUED_INSTANCES);
+        final AtomicInteger posts = new AtomicInteger();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if ("HEAD".equals(request.getMethod())) {
+                    return mockResponse(headResponse());
+                }
+                posts.incrementAndGet();
+                return mockResponse(postResponse());
+            }
+        });
+
+        // when
+        Outcome o = new InstanceServerUploader().doInBackground(ids);
+
+        // then
+        assertNull(o.authRequestingServer);
+        assertEquals(QUEUED_INSTANCES, o.results.size());
+        for (Long id : ids) {
+            assertEquals("success", o.results.get(id.toString()));
+        }
+        assertEquals(QUEUED_INSTANCES, posts.get());
+
+        // and
+        Cursor c = dao.getInstancesCursor(InstanceProviderAPI.InstanceColumns.STATUS + "=?",
+                new String[]{InstanceProviderAPI.STATUS_SUBMITTED});
+        try {
+            assertEquals(QUEUED_INSTANCES, c.getCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void shouldSendSubmissionsInParallelOverSlowLinks() throws Exception {
+        // given
+        Long[] ids = createStoredInstances(SLOW_LINK_INSTANCES);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                int requests = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), requests));
+                }
+                try {
+                    // the round trip of a 2G/3G link
+                    Thread.sleep(SLOW_LINK_LATENCY_MILLIS);
+                    return mockResponse("HEAD".equals(request.getMethod())
+                            ? headResponse() : postResponse());
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        });
+
+        // when
+        long serialMillis = upload(1, ids);
+        int serialInFlight = maxInFlight.getAndSet(0);
+        resetStatus();
+        long parallelMillis = upload(4, ids);
+
+        // then
+        assertEquals(1, serialInFlight);
+        assertTrue(maxInFlight.get() > 1);
+        assertTrue(maxInFlight.get() <= 4);
+        assertTrue(parallelMillis < serialMillis);
+    }
+
+    @Test
+    public void shouldSkipHeadRequestInLaterSessions() throws Exception {
+        // given
+        Long first = createStoredInstance();
+        willRespondWith(headResponse(), postResponse());
+        new InstanceServerUploader().doInBackground(first);
+        nextRequest();
+        nextRequest();
+
+        // when
+        Long second = createStoredInstance();
+        willRespondWith(postResponse());
+        Outcome o = new InstanceServerUploader().doInBackground(second);
+
+        // then
+        assertEquals("success", o.results.get(second.toString()));
+        assertEquals("POST", nextRequest().getMethod());
+    }
+
+    @Test
+    public void shouldIssueHeadRequestAgainWhenRemapIsStale() throws Exception {
+        // given
+        Long first = createStoredInstance();
+        willRespondWith(headResponse(), postResponse());
+        new InstanceServerUploader().doInBackground(first);
+        nextRequest();
+        nextRequest();
+
+        // when
+        Long second = createStoredInstance();
+        willRespondWith(unauthorizedResponse(), headResponse(), postResponse());
+        Outcome o = new InstanceServerUploader().doInBackground(second);
+
+        // then
+        assertEquals("success", o.results.get(second.toString()));
+        assertEquals("POST", nextRequest().getMethod());
+        assertEquals("HEAD", nextRequest().getMethod());
+        assertEquals("POST", nextRequest().getMethod());
+    }
+
+    @Test
+    public void shouldResendOnlyUnacknowledgedAttachmentsAfterConnectionDrop() throws Exception {
+        // given
+        File xml = createInstanceDirectory(SPLIT_POST_ATTACHMENTS);
+        Long id = createStoredInstance(xml);
+        server.enqueue(mockResponse(headResponse()));
+        server.enqueue(mockResponse(postResponse()));
+        server.enqueue(new MockResponse()
+                .setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+
+        // when
+        Outcome o = new InstanceServerUploader().doInBackground(id);
+
+        // then
+        assertTrue(o.results.get(id.toString()).startsWith("Error: "));
+        assertEquals("HEAD", nextRequest().getMethod());
+        String acknowledged = nextRequest().getBody().readUtf8();
+        assertTrue(acknowledged.contains("*isIncomplete*"));
+        String dropped = nextRequest().getBody().readUtf8();
+        assertEquals(SPLIT_POST_ATTACHMENTS,
+                countAttachments(acknowledged) + countAttachments(dropped));
+        assertTrue(new File(xml.getParentFile(), UploadLedger.LEDGER_FILE_NAME).exists());
+
+        // when
+        resetStatus();
+        willRespondWith(postResponse());
+        o = new InstanceServerUploader().doInBackground(id);
+
+        // then
+        assertEquals("success", o.results.get(id.toString()));
+        String resent = nextRequest().getBody().readUtf8();
+        assertFalse(resent.contains("*isIncomplete*"));
+        assertEquals(countAttachments(dropped), countAttachments(resent));
+        assertFalse(new File(xml.getParentFile(), UploadLedger.LEDGER_FILE_NAME).exists());
+    }
+
+    private long upload(int concurrency, Long... ids) {
+        GeneralSharedPreferences.getInstance().save(PreferenceKeys.KEY_UPLOAD_CONCURRENCY,
+                String.valueOf(concurrency));
+        long start = System.nanoTime();
+        Outcome o = new InstanceServerUploader().doInBackground(ids);
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        assertNull(o.authRequestingServer);
+        assertEquals(ids.length, o.results.size());
+        for (Long id : ids) {
+            assertEquals("success", o.results.get(id.toString()));
+        }
+        return millis;
+    }
+
+    private void resetStatus() {
+        ContentValues values = new ContentValues();
+        values.put(InstanceProviderAPI.InstanceColumns.STATUS, InstanceProviderAPI.STATUS_COMPLETE);
+        dao.updateInstance(values, null, null);
+    }
+
+    /**
+     * Creates instances sharing one submission in a directory of its own, so that no other file
+     * is uploaded as an attachment.
+     */
+    private Long[] createStoredInstances(int count) throws Exception {
+        File xml = new File(folder.newFolder(), "instance.xml");
+        FileUtils.writeStringToFile(xml, "<form-content-here/>", "UTF-8");
+
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            Instance instance = new Instance.Builder()
+                    .displayName("Test Form " + i)
+                    .instanceFilePath(xml.getAbsolutePath())
+                    .jrFormId("test_form")
+                    .status(InstanceProviderAPI.STATUS_COMPLETE)
+                    .lastStatusChangeDate(123L)
+                    .displaySubtext("A form used in testing")
+                    .build();
+            values[i] = dao.getValuesFromInstanceObject(instance);
+        }
+        dao.saveInstances(values);
+
+        Long[] ids = new Long[count];
+        Cursor c = dao.getInstancesCursor(null, null);
+        try {
+            assertEquals(count, c.getCount());
+            while (c.moveToNext()) {
+                ids[c.getPosition()] = c.getLong(
+                        c.getColumnIndex(InstanceProviderAPI.InstanceColumns._ID));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
     private long createStoredInstance() throws Exception {
-        File xml = createTempFile("<form-content-here/>");
+        return createStoredInstance(createTempFile("<form-content-here/>"));
+    }
 
+    private long createStoredInstance(File xml) throws Exception {
         Instance i = new Instance.Builder()
                 .displayName("Test Form")
                 .instanceFilePath(xml.getAbsolutePath())
@@ -98,6 +337,29 @@ public class InstanceServerUploaderTest extends MockedServerTest {
         return Long.parseLong(contentUri.toString().substring(InstanceProviderAPI.InstanceColumns.CONTENT_URI.toString().length() + 1));
     }
 
+    /**
+     * @return the submission of an instance with the given number of photos
+     */
+    private File createInstanceDirectory(int attachments) throws Exception {
+        File instanceDir = folder.newFolder();
+        File xml = new File(instanceDir, "instance.xml");
+        FileUtils.writeStringToFile(xml, "<form-content-here/>", "UTF-8");
+        for (int i = 0; i < attachments; i++) {
+            FileUtils.writeStringToFile(new File(instanceDir, "photo" + i + ".jpg"),
+                    "photo " + i, "UTF-8");
+        }
+        return xml;
+    }
+
+    private static int countAttachments(String body) {
+        Matcher matcher = Pattern.compile("filename=\"photo\\d+\\.jpg\"").matcher(body);
+        int count = 0;
+        while (matcher.find()) {
+            count++;
+        }
+        return count;
+    }
+
     private String hostAndPort() {
         return String.format("%s:%s", server.getHostName(), server.getPort());
     }
@@ -117,6 +379,14 @@ public class InstanceServerUploaderTest extends MockedServerTest {
             "\r");
     }
 
+    private String unauthorizedResponse() {
+        return join(
+            "HTTP/1.1 401 Unauthorized\r",
+            "Content-Length: 0\r",
+            "Connection: close\r",
+            "\r");
+    }
+
     private String postResponse() {
         return join(
             "HTTP/1.1 201 Created\r",
@@ -10,6 +10,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.sdrc.scpstn.collect.android.application.Collect;
 import org.sdrc.scpstn.collect.android.preferences.PreferenceKeys;
+import org.sdrc.scpstn.collect.android.preferences.PreferencesActivity;
 
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
@@ -40,23 +41,27 @@ public abstract class MockedServerTest {
 
     protected void willRespondWith(String... rawResponses) {
         for (String rawResponse : rawResponses) {
-            MockResponse response = new MockResponse();
-
-            String[] parts = rawResponse.split("\r\n\r\n", 2);
+            server.enqueue(mockResponse(rawResponse));
+        }
+    }
 
-            String[] headerLines = parts[0].split("\r\n");
+    protected static MockResponse mockResponse(String rawResponse) {
+        MockResponse response = new MockResponse();
 
-            response.setStatus(headerLines[0]);
+        String[] parts = rawResponse.split("\r\n\r\n", 2);
 
-            for (int i = 1; i < headerLines.length; ++i) {
-                String[] headerParts = headerLines[i].split(": ", 2);
-                response.addHeader(headerParts[0], headerParts[1]);
-            }
+        String[] headerLines = parts[0].split("\r\n");
 
-            response.setBody(parts[1]);
+        response.setStatus(headerLines[0]);
 
-            server.enqueue(response);
+        for (int i = 1; i < headerLines.length; ++i) {
+            String[] headerParts = headerLines[i].split(": ", 2);
+            response.addHeader(headerParts[0], headerParts[1]);
         }
+
+        response.setBody(parts[1]);
+
+        return response;
     }
 
     protected RecordedRequest nextRequest() throws Exception {
@@ -81,6 +86,7 @@ public abstract class MockedServerTest {
     private static void configAppFor(MockWebServer server) {
         Editor prefs = PreferenceManager.getDefaultSharedPreferences(Collect.getInstance().getBaseContext()).edit();
         prefs.putString(PreferenceKeys.KEY_SERVER_URL, server.url("/").toString());
+        prefs.putString(PreferencesActivity.KEY_SUBMISSION_SERVER_URL, server.url("/").toString());
         if (!prefs.commit()) {
             throw new RuntimeException("Failed to set up SharedPreferences for MockWebServer");
         }
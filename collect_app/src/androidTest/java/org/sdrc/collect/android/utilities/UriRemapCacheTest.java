@@ -0,0 +1,58 @@
+package org.sdrc.scpstn.collect.android.utilities;
+
+import android.content.Context;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sdrc.scpstn.collect.android.application.Collect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class UriRemapCacheTest {
+
+    private UriRemapCache cache;
+
+    @Before
+    public void setUp() {
+        cache = UriRemapCache.getInstance();
+        cache.clear();
+    }
+
+    @After
+    public void tearDown() {
+        cache.clear();
+    }
+
+    @Test
+    public void put_DoesNotStoreCredentials() {
+        // when
+        cache.put(Uri.parse("http://example.com/submission?deviceID=imei%3A1234&user=alice"),
+                Uri.parse("https://example.com/remapped?deviceID=imei%3A1234&user=alice"));
+
+        // then
+        String stored = Collect.getInstance().getSharedPreferences("uri_remap",
+                Context.MODE_PRIVATE).getAll().toString();
+        assertFalse(stored.contains("imei"));
+        assertFalse(stored.contains("alice"));
+    }
+
+    @Test
+    public void get_UsesQueryOfCurrentUrl() {
+        // given
+        cache.put(Uri.parse("http://example.com/submission?deviceID=imei%3A1234&user=alice"),
+                Uri.parse("https://example.com/remapped?deviceID=imei%3A1234&user=alice"));
+
+        // when
+        Uri remapped = cache.get(Uri.parse("http://example.com/submission?deviceID=imei%3A5678"));
+
+        // then
+        assertEquals("https://example.com/remapped?deviceID=imei%3A5678", remapped.toString());
+        assertEquals("https://example.com/remapped",
+                cache.get(Uri.parse("http://example.com/submission")).toString());
+        assertNull(cache.get(Uri.parse("http://example.com/other?deviceID=imei%3A5678")));
+    }
+}
@@ -21,6 +21,8 @@ import static org.junit.Assert.assertTrue;
 import static org.sdrc.scpstn.collect.android.test.TestUtils.assertMatches;
 
 public class WebUtilsTest extends MockedServerTest {
+    private static final int KEEP_ALIVE_REQUESTS = 5;
+
     @Before
     public void setUp() throws Exception {
         // server hangs without a response queued:
@@ -97,6 +99,34 @@ public class WebUtilsTest extends MockedServerTest {
         assertEquals("Invalid server URL (no hostname): file:/some/path", res.errorMessage);
     }
 
+    @Test
+    public void createHttpClient_shouldReuseConnectionsAcrossRequests() throws Exception {
+        // given
+        for (int i = 0; i < KEEP_ALIVE_REQUESTS - 1; i++) {
+            server.enqueue(new MockResponse().setBody("<ok/>"));
+        }
+        long connections = WebUtils.getConnectionCount();
+        long requests = WebUtils.getRequestCount();
+
+        // when
+        for (int i = 0; i < KEEP_ALIVE_REQUESTS; i++) {
+            // a client is asked for every time, as uploads and downloads do
+            HttpGet req = WebUtils.createOpenRosaHttpGet(new URI(url("/some-path")));
+            WebUtils.discardEntityBytes(httpClient().execute(req, httpContext()));
+        }
+
+        // then
+        int acceptedSockets = 0;
+        for (int i = 0; i < KEEP_ALIVE_REQUESTS; i++) {
+            if (nextRequest().getSequenceNumber() == 0) {
+                acceptedSockets++;
+            }
+        }
+        assertEquals(1, acceptedSockets);
+        assertEquals(1, WebUtils.getConnectionCount() - connections);
+        assertEquals(KEEP_ALIVE_REQUESTS, WebUtils.getRequestCount() - requests);
+    }
+
     private String url(String path) {
         return server.url(path).toString();
     }
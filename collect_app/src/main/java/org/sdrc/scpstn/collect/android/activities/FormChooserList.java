@@ -24,14 +24,17 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.AdapterView;
+import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
 
 import org.sdrc.scpstn.collect.android.R;
 import org.sdrc.scpstn.collect.android.application.Collect;
 import org.sdrc.scpstn.collect.android.dao.FormsDao;
 import org.sdrc.scpstn.collect.android.listeners.DiskSyncListener;
+import org.sdrc.scpstn.collect.android.listeners.FormPrecompileListener;
 import org.sdrc.scpstn.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.sdrc.scpstn.collect.android.tasks.DiskSyncTask;
+import org.sdrc.scpstn.collect.android.tasks.FormPrecompiler;
 import org.sdrc.scpstn.collect.android.utilities.ApplicationConstants;
 import org.sdrc.scpstn.collect.android.utilities.VersionHidingCursorAdapter;
 
@@ -44,7 +47,8 @@ import timber.log.Timber;
  * @author Yaw Anokwa (yanokwa@gmail.com)
  * @author Carl Hartung (carlhartung@gmail.com)
  */
-public class FormChooserList extends FormListActivity implements DiskSyncListener, AdapterView.OnItemClickListener {
+public class FormChooserList extends FormListActivity implements DiskSyncListener,
+        FormPrecompileListener, AdapterView.OnItemClickListener {
     private static final String FORM_CHOOSER_LIST_SORTING_ORDER = "formChooserListSortingOrder";
 
     private static final boolean EXIT = true;
@@ -136,6 +140,7 @@ public class FormChooserList extends FormListActivity implements DiskSyncListene
     @Override
     protected void onResume() {
         diskSyncTask.setDiskSyncListener(this);
+        FormPrecompiler.getInstance().addListener(this);
         super.onResume();
 
         if (diskSyncTask.getStatus() == AsyncTask.Status.FINISHED) {
@@ -147,6 +152,7 @@ public class FormChooserList extends FormListActivity implements DiskSyncListene
     @Override
     protected void onPause() {
         diskSyncTask.setDiskSyncListener(null);
+        FormPrecompiler.getInstance().removeListener(this);
         super.onPause();
     }
 
@@ -175,20 +181,62 @@ public class FormChooserList extends FormListActivity implements DiskSyncListene
         tv.setText(result.trim());
     }
 
+    @Override
+    public void precompileStatusChanged(String formFilePath) {
+        listAdapter.notifyDataSetChanged();
+    }
+
     private void setupAdapter() {
         String[] data = new String[]{
-                FormsColumns.DISPLAY_NAME, FormsColumns.DISPLAY_SUBTEXT, FormsColumns.JR_VERSION
+                FormsColumns.DISPLAY_NAME, FormsColumns.DISPLAY_SUBTEXT, FormsColumns.JR_VERSION,
+                FormsColumns.FORM_FILE_PATH
         };
         int[] view = new int[]{
-                R.id.text1, R.id.text2, R.id.text3
+                R.id.text1, R.id.text2, R.id.text3, R.id.text4
         };
 
         listAdapter =
                 new VersionHidingCursorAdapter(FormsColumns.JR_VERSION, this, R.layout.two_item, getCursor(), data, view);
 
+        final SimpleCursorAdapter.ViewBinder versionBinder = listAdapter.getViewBinder();
+        listAdapter.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
+            @Override
+            public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
+                if (!cursor.getColumnName(columnIndex).equals(FormsColumns.FORM_FILE_PATH)) {
+                    return versionBinder.setViewValue(view, cursor, columnIndex);
+                }
+                setPrecompileStatus((TextView) view, cursor.getString(columnIndex),
+                        cursor.getString(cursor.getColumnIndex(FormsColumns.JRCACHE_FILE_PATH)));
+                return true;
+            }
+        });
+
         listView.setAdapter(listAdapter);
     }
 
+    private void setPrecompileStatus(TextView view, String formFilePath, String formCachePath) {
+        FormPrecompiler.Status status =
+                FormPrecompiler.getInstance().getStatus(formFilePath, formCachePath);
+        if (status == null) {
+            view.setText(null);
+            view.setVisibility(View.GONE);
+            return;
+        }
+        switch (status) {
+            case QUEUED:
+            case COMPILING:
+                view.setText(R.string.form_precompile_pending);
+                break;
+            case FAILED:
+                view.setText(R.string.form_precompile_failed);
+                break;
+            default:
+                view.setText(R.string.form_precompile_ready);
+                break;
+        }
+        view.setVisibility(View.VISIBLE);
+    }
+
     @Override
     protected String getSortingOrderKey() {
         return FORM_CHOOSER_LIST_SORTING_ORDER;
@@ -74,6 +74,7 @@ import org.sdrc.scpstn.collect.android.dao.FormsDao;
 import org.sdrc.scpstn.collect.android.dao.InstancesDao;
 import org.sdrc.scpstn.collect.android.exception.GDriveConnectionException;
 import org.sdrc.scpstn.collect.android.exception.JavaRosaException;
+import org.sdrc.scpstn.collect.android.external.ExternalDataManager;
 import org.sdrc.scpstn.collect.android.listeners.AdvanceToNextListener;
 import org.sdrc.scpstn.collect.android.listeners.FormLoaderListener;
 import org.sdrc.scpstn.collect.android.listeners.FormSavedListener;
@@ -97,6 +98,7 @@ import org.sdrc.scpstn.collect.android.utilities.FileUtils;
 import org.sdrc.scpstn.collect.android.utilities.MediaUtils;
 import org.sdrc.scpstn.collect.android.utilities.ToastUtils;
 import org.sdrc.scpstn.collect.android.views.ODKView;
+import org.sdrc.scpstn.collect.android.views.ScreenPrefetcher;
 import org.sdrc.scpstn.collect.android.widgets.QuestionWidget;
 import org.sdrc.scpstn.collect.android.widgets.StringWidget;
 
@@ -202,6 +204,7 @@ public class FormEntryActivity extends AppCompatActivity implements AnimationLis
 
     private LinearLayout questionHolder;
     private View currentView;
+    private final ScreenPrefetcher screenPrefetcher = new ScreenPrefetcher(this);
 
     private AlertDialog alertDialog;
     private ProgressDialog progressDialog;
@@ -1216,8 +1219,14 @@ public class FormEntryActivity extends AppCompatActivity implements AnimationLis
                     FormEntryPrompt[] prompts = formController.getQuestionPrompts();
                     FormEntryCaption[] groups = formController
                             .getGroupsForCurrentIndex();
-                    odkv = new ODKView(this, formController.getQuestionPrompts(),
-                            groups, advancingPage);
+                    if (advancingPage) {
+                        odkv = screenPrefetcher.take(formController, prompts, groups);
+                    } else {
+                        screenPrefetcher.clear();
+                    }
+                    if (odkv == null) {
+                        odkv = new ODKView(this, prompts, groups, advancingPage);
+                    }
                     Timber.i("Created view for group %s %s",
                             (groups.length > 0 ? groups[groups.length - 1].getLongText() : "[top]"),
                             (prompts.length > 0 ? prompts[0].getQuestionText() : "[no question]"));
@@ -2399,6 +2408,7 @@ public class FormEntryActivity extends AppCompatActivity implements AnimationLis
 
     @Override
     protected void onDestroy() {
+        screenPrefetcher.clear();
         if (formLoaderTask != null) {
             formLoaderTask.setFormLoaderListener(null);
             // We have to call cancel to terminate the thread, otherwise it
@@ -2439,6 +2449,10 @@ public class FormEntryActivity extends AppCompatActivity implements AnimationLis
 
         if (currentView != null && currentView instanceof ODKView) {
             ((ODKView) currentView).setFocus(this);
+            FormController formController = Collect.getInstance().getFormController();
+            if (formController != null) {
+                screenPrefetcher.schedule(formController);
+            }
         }
         beenSwiped = false;
     }
@@ -2500,7 +2514,17 @@ public class FormEntryActivity extends AppCompatActivity implements AnimationLis
         Collect.getInstance().setFormController(formController);
         supportInvalidateOptionsMenu();
 
-        Collect.getInstance().setExternalDataManager(task.getExternalDataManager());
+        final ExternalDataManager externalDataManager = task.getExternalDataManager();
+        Collect.getInstance().setExternalDataManager(externalDataManager);
+        if (externalDataManager != null) {
+            // import any deferred csv files once the first screen has been drawn
+            getWindow().getDecorView().post(new Runnable() {
+                @Override
+                public void run() {
+                    externalDataManager.prefetch();
+                }
+            });
+        }
 
         // Set the language if one has already been set in the past
         String[] languageTest = formController.getLanguages();
@@ -2659,12 +2683,6 @@ public class FormEntryActivity extends AppCompatActivity implements AnimationLis
                 }
                 ToastUtils.showLongToast(message);
                 break;
-            case SaveToDiskTask.ENCRYPTION_ERROR:
-                formController.getTimerLogger().logTimerEvent(TimerLogger.EventTypes.FINALIZE_ERROR, 0, null, false, true);
-                ToastUtils.showLongToast(String.format(getString(R.string.encryption_error_message),
-                        saveResult.getSaveErrorMessage()));
-                finishReturnInstance();
-                break;
             case FormEntryController.ANSWER_CONSTRAINT_VIOLATED:
             case FormEntryController.ANSWER_REQUIRED_BUT_EMPTY:
                 formController.getTimerLogger().logTimerEvent(TimerLogger.EventTypes.CONSTRAINT_ERROR, 0, null, false, true);
@@ -2742,7 +2760,8 @@ public class FormEntryActivity extends AppCompatActivity implements AnimationLis
                 c.moveToFirst();
                 String status = c.getString(c
                         .getColumnIndex(InstanceColumns.STATUS));
-                if (InstanceProviderAPI.STATUS_COMPLETE.compareTo(status) == 0) {
+                if (InstanceProviderAPI.STATUS_COMPLETE.compareTo(status) == 0
+                        || InstanceProviderAPI.STATUS_FINALIZING.compareTo(status) == 0) {
                     complete = true;
                 }
             }
@@ -39,6 +39,7 @@ import org.sdrc.scpstn.collect.android.adapters.HierarchyListAdapter;
 import org.sdrc.scpstn.collect.android.application.Collect;
 import org.sdrc.scpstn.collect.android.exception.JavaRosaException;
 import org.sdrc.scpstn.collect.android.logic.FormController;
+import org.sdrc.scpstn.collect.android.logic.FormHierarchy;
 import org.sdrc.scpstn.collect.android.logic.HierarchyElement;
 import org.sdrc.scpstn.collect.android.utilities.ApplicationConstants;
 import org.sdrc.scpstn.collect.android.utilities.FormEntryPromptUtils;
@@ -67,6 +68,30 @@ public class FormHierarchyActivity extends AppCompatActivity implements AdapterV
     private ListView listView;
     private TextView emptyView;
 
+    /**
+     * Reads the answer of a question, or the label of a repeat instance, when its row is shown.
+     */
+    private final HierarchyListAdapter.ItemResolver itemResolver =
+            new HierarchyListAdapter.ItemResolver() {
+                @Override
+                public void resolve(HierarchyElement item) {
+                    FormController formController = Collect.getInstance().getFormController();
+                    switch (item.getType()) {
+                        case QUESTION:
+                            FormEntryPrompt fp =
+                                    formController.getQuestionPrompt(item.getFormIndex());
+                            item.setSecondaryText(FormEntryPromptUtils.getAnswerText(fp));
+                            break;
+                        case CHILD:
+                            FormEntryCaption fc =
+                                    formController.getCaptionPrompt(item.getFormIndex());
+                            item.setPrimaryText(mIndent + fc.getLongText() + " "
+                                    + (fc.getMultiplicity() + 1));
+                            break;
+                    }
+                }
+            };
+
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -226,14 +251,13 @@ public class FormHierarchyActivity extends AppCompatActivity implements AdapterV
             // If we're not at the first level, we're inside a repeated group so we want to only
             // display
             // everything enclosed within that group.
-            String contextGroupRef = "";
+            FormIndex repeatIndex = null;
             formList = new ArrayList<HierarchyElement>();
 
-            // If we're currently at a repeat node, record the name of the node and step to the next
+            // If we're currently at a repeat node, record the node and step to the next
             // node to display.
             if (formController.getEvent() == FormEntryController.EVENT_REPEAT) {
-                contextGroupRef =
-                        formController.getFormIndex().getReference().toString(true);
+                repeatIndex = formController.getFormIndex();
                 formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
             } else {
                 FormIndex startTest = formController.stepIndexOut(currentIndex);
@@ -257,8 +281,7 @@ public class FormHierarchyActivity extends AppCompatActivity implements AdapterV
                 // now test again for repeat. This should be true at this point or we're at the
                 // beginning
                 if (formController.getEvent() == FormEntryController.EVENT_REPEAT) {
-                    contextGroupRef =
-                            formController.getFormIndex().getReference().toString(true);
+                    repeatIndex = formController.getFormIndex();
                     formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
                 }
             }
@@ -267,8 +290,6 @@ public class FormHierarchyActivity extends AppCompatActivity implements AdapterV
             if (event == FormEntryController.EVENT_BEGINNING_OF_FORM) {
                 // The beginning of form has no valid prompt to display.
                 formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
-                contextGroupRef =
-                        formController.getFormIndex().getReference().getParentRef().toString(true);
                 path.setVisibility(View.GONE);
                 jumpPreviousButton.setEnabled(false);
             } else {
@@ -277,107 +298,50 @@ public class FormHierarchyActivity extends AppCompatActivity implements AdapterV
                 jumpPreviousButton.setEnabled(true);
             }
 
-            // Refresh the current event in case we did step forward.
-            event = formController.getEvent();
-
-            // Big change from prior implementation:
-            //
-            // The ref strings now include the instance number designations
-            // i.e., [0], [1], etc. of the repeat groups (and also [1] for
-            // non-repeat elements).
-            //
-            // The contextGroupRef is now also valid for the top-level form.
-            //
-            // The repeatGroupRef is null if we are not skipping a repeat
-            // section.
-            //
-            String repeatGroupRef = null;
-
-            event_search:
-            while (event != FormEntryController.EVENT_END_OF_FORM) {
-
-                // get the ref to this element
-                String currentRef = formController.getFormIndex().getReference().toString(true);
-
-                // retrieve the current group
-                String curGroup = (repeatGroupRef == null) ? contextGroupRef : repeatGroupRef;
-
-                if (!currentRef.startsWith(curGroup)) {
-                    // We have left the current group
-                    if (repeatGroupRef == null) {
-                        // We are done.
-                        break event_search;
-                    } else {
-                        // exit the inner repeat group
-                        repeatGroupRef = null;
-                    }
-                }
-
-                if (repeatGroupRef != null) {
-                    // We're in a repeat group within the one we want to list
-                    // skip this question/group/repeat and move to the next index.
-                    event =
-                            formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
+            // The structure of the level is cached by the form controller and only walked again
+            // after repeats were added or removed. Relevance can change with any answer, so it is
+            // checked here, while labels and answers are only read for the rows that are shown.
+            for (FormHierarchy.Entry entry : formController.getHierarchy().getLevel(repeatIndex)) {
+                if (!formController.isIndexRelevant(entry.getIndex())) {
                     continue;
                 }
 
-                switch (event) {
+                switch (entry.getEvent()) {
                     case FormEntryController.EVENT_QUESTION:
-
-                        FormEntryPrompt fp = formController.getQuestionPrompt();
+                        FormEntryPrompt fp = formController.getQuestionPrompt(entry.getIndex());
                         String label = fp.getLongText();
                         if (!fp.isReadOnly() || (label != null && label.length() > 0)) {
                             // show the question if it is an editable field.
                             // or if it is read-only and the label is not blank.
-                            String answerDisplay = FormEntryPromptUtils.getAnswerText(fp);
-                            formList.add(
-                                    new HierarchyElement(fp.getLongText(), answerDisplay, null,
-                                            Color.WHITE, QUESTION, fp.getIndex()));
+                            HierarchyElement question = new HierarchyElement(label, null, null,
+                                    Color.WHITE, QUESTION, fp.getIndex());
+                            question.setResolved(false);
+                            formList.add(question);
                         }
                         break;
-                    case FormEntryController.EVENT_GROUP:
-                        // ignore group events
-                        break;
-                    case FormEntryController.EVENT_PROMPT_NEW_REPEAT:
-                        // this would display the 'add new repeat' dialog
-                        // ignore it.
-                        break;
                     case FormEntryController.EVENT_REPEAT:
-                        FormEntryCaption fc = formController.getCaptionPrompt();
-                        // push this repeat onto the stack.
-                        repeatGroupRef = currentRef;
-                        // Because of the guard conditions above, we will skip
-                        // everything until we exit this repeat.
-                        //
-                        // Note that currentRef includes the multiplicity of the
-                        // repeat (e.g., [0], [1], ...), so every repeat will be
-                        // detected as different and reach this case statement.
-                        // Only the [0] emits the repeat header.
-                        // Every one displays the descend-into action element.
-
-                        if (fc.getMultiplicity() == 0) {
-                            // Display the repeat header for the group.
-                            HierarchyElement group =
-                                    new HierarchyElement(fc.getLongText(), null, ContextCompat
-                                            .getDrawable(getApplicationContext(), R.drawable.expander_ic_minimized),
-                                            Color.WHITE,
-                                            COLLAPSED, fc.getIndex());
-                            formList.add(group);
+                        FormEntryCaption fc = formController.getCaptionPrompt(entry.getIndex());
+                        // Display the repeat header for the group.
+                        HierarchyElement group =
+                                new HierarchyElement(fc.getLongText(), null, ContextCompat
+                                        .getDrawable(getApplicationContext(), R.drawable.expander_ic_minimized),
+                                        Color.WHITE,
+                                        COLLAPSED, fc.getIndex());
+                        // Add every instance to the drop down list for this repeating group.
+                        for (FormIndex instance : entry.getInstances()) {
+                            if (formController.isIndexRelevant(instance)) {
+                                HierarchyElement child = new HierarchyElement(null, null, null,
+                                        Color.WHITE, CHILD, instance);
+                                child.setResolved(false);
+                                group.addChild(child);
+                            }
                         }
-                        // Add this group name to the drop down list for this repeating group.
-                        HierarchyElement h = formList.get(formList.size() - 1);
-                        h.addChild(new HierarchyElement(mIndent + fc.getLongText() + " "
-                                + (fc.getMultiplicity() + 1), null, null, Color.WHITE, CHILD, fc
-                                .getIndex()));
+                        formList.add(group);
                         break;
                 }
-                event =
-                        formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
             }
 
-            HierarchyListAdapter itla = new HierarchyListAdapter(this);
-            itla.setListItems(formList);
-            listView.setAdapter(itla);
+            setListItems();
 
             // set the controller back to the current index in case the user hits 'back'
             formController.jumpToIndex(currentIndex);
@@ -433,9 +397,8 @@ public class FormHierarchyActivity extends AppCompatActivity implements AdapterV
                         "COLLAPSED", h.getFormIndex());
                 h.setType(COLLAPSED);
                 ArrayList<HierarchyElement> children = h.getChildren();
-                for (int i = 0; i < children.size(); i++) {
-                    formList.remove(position + 1);
-                }
+                // one shift of the list, however many instances the repeat has
+                formList.subList(position + 1, position + 1 + children.size()).clear();
                 h.setIcon(ContextCompat.getDrawable(getApplicationContext(), R.drawable.expander_ic_minimized));
                 break;
             case COLLAPSED:
@@ -443,11 +406,8 @@ public class FormHierarchyActivity extends AppCompatActivity implements AdapterV
                         "EXPANDED", h.getFormIndex());
                 h.setType(EXPANDED);
                 ArrayList<HierarchyElement> children1 = h.getChildren();
-                for (int i = 0; i < children1.size(); i++) {
-                    Timber.i("adding child: %s", children1.get(i).getFormIndex());
-                    formList.add(position + 1 + i, children1.get(i));
-
-                }
+                Timber.i("adding %d children", children1.size());
+                formList.addAll(position + 1, children1);
                 h.setIcon(ContextCompat.getDrawable(getApplicationContext(), R.drawable.expander_ic_maximized));
                 break;
             case QUESTION:
@@ -479,10 +439,15 @@ public class FormHierarchyActivity extends AppCompatActivity implements AdapterV
         }
 
         // Should only get here if we've expanded or collapsed a group
+        setListItems();
+        listView.setSelection(position);
+    }
+
+    private void setListItems() {
         HierarchyListAdapter itla = new HierarchyListAdapter(this);
         itla.setListItems(formList);
+        itla.setItemResolver(itemResolver);
         listView.setAdapter(itla);
-        listView.setSelection(position);
     }
 
 
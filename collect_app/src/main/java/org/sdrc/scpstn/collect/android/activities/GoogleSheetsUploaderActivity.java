@@ -446,6 +446,11 @@ public class GoogleSheetsUploaderActivity extends AppCompatActivity implements I
         progressDialog.setMessage(alertMsg);
     }
 
+    @Override
+    public void fileProgressUpdate(String fileName, long bytesSent, long fileSize) {
+        // the Google Sheets uploader does not report the progress of files
+    }
+
     @Override
     protected Dialog onCreateDialog(int id) {
         switch (id) {
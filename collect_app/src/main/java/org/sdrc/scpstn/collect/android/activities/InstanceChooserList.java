@@ -114,6 +114,13 @@ public class InstanceChooserList extends InstanceListActivity implements DiskSyn
                 instanceUri.toString());
 
         if (view.findViewById(R.id.visible_off).getVisibility() != View.VISIBLE) {
+            // the submission is still being packaged in the background
+            if (InstanceProviderAPI.STATUS_FINALIZING.equals(
+                    c.getString(c.getColumnIndex(InstanceColumns.STATUS)))) {
+                createErrorDialog(getString(R.string.form_still_finalizing), DO_NOT_EXIT);
+                return;
+            }
+
             String action = getIntent().getAction();
             if (Intent.ACTION_PICK.equals(action)) {
                 // caller is waiting on a picked form
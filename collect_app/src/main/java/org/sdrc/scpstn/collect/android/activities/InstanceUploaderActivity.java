@@ -25,6 +25,7 @@ import android.database.SQLException;
 import android.net.Uri;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.text.format.Formatter;
 import android.support.v7.app.AppCompatActivity;
 
 import org.sdrc.scpstn.collect.android.R;
@@ -63,6 +64,8 @@ public class InstanceUploaderActivity extends AppCompatActivity implements Insta
     private AlertDialog alertDialog;
 
     private String alertMsg;
+    // the progress message without the file being sent
+    private String sendingItemsMsg;
     private boolean alertShowing;
 
     private InstanceServerUploader instanceServerUploader;
@@ -288,6 +291,19 @@ public class InstanceUploaderActivity extends AppCompatActivity implements Insta
     @Override
     public void progressUpdate(int progress, int total) {
         alertMsg = getString(R.string.sending_items, String.valueOf(progress), String.valueOf(total));
+        sendingItemsMsg = alertMsg;
+        progressDialog.setMessage(alertMsg);
+    }
+
+    @Override
+    public void fileProgressUpdate(String fileName, long bytesSent, long fileSize) {
+        if (progressDialog == null || !progressDialog.isShowing()) {
+            return;
+        }
+        String fileMsg = getString(R.string.sending_file, fileName,
+                Formatter.formatShortFileSize(this, bytesSent),
+                Formatter.formatShortFileSize(this, fileSize));
+        alertMsg = sendingItemsMsg == null ? fileMsg : sendingItemsMsg + "\n" + fileMsg;
         progressDialog.setMessage(alertMsg);
     }
 
@@ -29,6 +29,15 @@ public class HierarchyListAdapter extends BaseAdapter {
 
     private Context context;
     private List<HierarchyElement> items = new ArrayList<HierarchyElement>();
+    private ItemResolver itemResolver;
+
+    /**
+     * Fills in the texts of an unresolved item, so that only the rows that are actually shown
+     * have to read their label and answer from the form.
+     */
+    public interface ItemResolver {
+        void resolve(HierarchyElement item);
+    }
 
 
     public HierarchyListAdapter(Context context) {
@@ -56,19 +65,24 @@ public class HierarchyListAdapter extends BaseAdapter {
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
+        HierarchyElement item = items.get(position);
+        if (!item.isResolved() && itemResolver != null) {
+            itemResolver.resolve(item);
+            item.setResolved(true);
+        }
+
         HierarchyElementView hev;
         if (convertView == null) {
-            hev = new HierarchyElementView(context, items.get(position));
+            hev = new HierarchyElementView(context, item);
         } else {
             hev = (HierarchyElementView) convertView;
-            hev.setPrimaryText(items.get(position).getPrimaryText());
-            hev.setSecondaryText(items.get(position).getSecondaryText());
-            hev.setIcon(items.get(position).getIcon());
-            hev.setColor(items.get(position).getColor());
+            hev.setPrimaryText(item.getPrimaryText());
+            hev.setSecondaryText(item.getSecondaryText());
+            hev.setIcon(item.getIcon());
+            hev.setColor(item.getColor());
         }
 
-        if (items.get(position).getSecondaryText() == null
-                || items.get(position).getSecondaryText().equals("")) {
+        if (item.getSecondaryText() == null || item.getSecondaryText().equals("")) {
             hev.showSecondary(false);
         } else {
             hev.showSecondary(true);
@@ -85,4 +99,9 @@ public class HierarchyListAdapter extends BaseAdapter {
         items = it;
     }
 
+
+    public void setItemResolver(ItemResolver resolver) {
+        itemResolver = resolver;
+    }
+
 }
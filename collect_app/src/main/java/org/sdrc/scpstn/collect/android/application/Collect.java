@@ -35,12 +35,15 @@ import org.sdrc.scpstn.collect.android.BuildConfig;
 import org.sdrc.scpstn.collect.android.R;
 import org.sdrc.scpstn.collect.android.database.ActivityLogger;
 import org.sdrc.scpstn.collect.android.external.ExternalDataManager;
+import org.sdrc.scpstn.collect.android.logic.BlankInstanceCache;
 import org.sdrc.scpstn.collect.android.logic.FormController;
+import org.sdrc.scpstn.collect.android.logic.FormDefCache;
 import org.sdrc.scpstn.collect.android.logic.PropertyManager;
 import org.sdrc.scpstn.collect.android.preferences.AutoSendPreferenceMigrator;
 import org.sdrc.scpstn.collect.android.utilities.LocaleHelper;
 import org.sdrc.scpstn.collect.android.preferences.FormMetadataMigrator;
 import org.sdrc.scpstn.collect.android.preferences.PreferenceKeys;
+import org.sdrc.scpstn.collect.android.tasks.FinalizeQueue;
 import org.sdrc.scpstn.collect.android.utilities.AgingCredentialsProvider;
 import org.sdrc.scpstn.collect.android.utilities.AuthDialogUtility;
 import org.sdrc.scpstn.collect.android.utilities.PRNGFixes;
@@ -282,6 +285,9 @@ public class Collect extends Application {
         } else {
             Timber.plant(new CrashReportingTree());
         }
+
+        // finish packaging the instances finalized before the app was last stopped
+        FinalizeQueue.getInstance().resumePending();
     }
 
     @Override
@@ -296,6 +302,13 @@ public class Collect extends Application {
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        FormDefCache.getInstance().trimMemory(level);
+        BlankInstanceCache.getInstance().trimMemory(level);
+    }
+
     /**
      * Gets the default {@link Tracker} for this {@link Application}.
      *
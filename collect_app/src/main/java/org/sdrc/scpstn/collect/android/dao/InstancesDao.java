@@ -16,9 +16,13 @@
 
 package org.sdrc.scpstn.collect.android.dao;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 
 import org.sdrc.scpstn.collect.android.application.Collect;
 import org.sdrc.scpstn.collect.android.dto.Instance;
@@ -240,6 +244,26 @@ public class InstancesDao {
         return getInstancesCursor(null, selection, selectionArgs, null);
     }
 
+    /**
+     * Returns the instances with the ids from ids[low] to ids[high - 1], with one bound
+     * parameter for each. There must be at most
+     * {@link ApplicationConstants#SQLITE_MAX_VARIABLE_NUMBER} of them.
+     */
+    public Cursor getInstancesCursorForIds(int low, int high, Long... ids) {
+        StringBuilder selection = new StringBuilder(InstanceProviderAPI.InstanceColumns._ID + " IN (");
+        String[] selectionArgs = new String[high - low];
+        for (int i = 0; i < selectionArgs.length; i++) {
+            if (i > 0) {
+                selection.append(",");
+            }
+            selection.append("?");
+            selectionArgs[i] = ids[low + i].toString();
+        }
+        selection.append(")");
+
+        return getInstancesCursor(selection.toString(), selectionArgs);
+    }
+
     public Cursor getInstancesCursor(String selection, String[] selectionArgs) {
         return getInstancesCursor(null, selection, selectionArgs, null);
     }
@@ -253,10 +277,19 @@ public class InstancesDao {
         return Collect.getInstance().getContentResolver().insert(InstanceProviderAPI.InstanceColumns.CONTENT_URI, values);
     }
 
+    public int saveInstances(ContentValues[] values) {
+        return Collect.getInstance().getContentResolver().bulkInsert(InstanceProviderAPI.InstanceColumns.CONTENT_URI, values);
+    }
+
     public int updateInstance(ContentValues values, String where, String[] whereArgs) {
         return Collect.getInstance().getContentResolver().update(InstanceProviderAPI.InstanceColumns.CONTENT_URI, values, where, whereArgs);
     }
 
+    public ContentProviderResult[] updateInstances(ArrayList<ContentProviderOperation> operations)
+            throws RemoteException, OperationApplicationException {
+        return Collect.getInstance().getContentResolver().applyBatch(InstanceProviderAPI.AUTHORITY, operations);
+    }
+
     public void deleteInstancesDatabase() {
         Collect.getInstance().getContentResolver().delete(InstanceProviderAPI.InstanceColumns.CONTENT_URI, null, null);
     }
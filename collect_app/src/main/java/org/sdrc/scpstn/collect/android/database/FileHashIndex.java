@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sdrc.scpstn.collect.android.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.sdrc.scpstn.collect.android.application.Collect;
+import org.sdrc.scpstn.collect.android.utilities.FileUtils;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import timber.log.Timber;
+
+/**
+ * Persistent index of file md5 hashes keyed by (absolute path, size, last modified time), so
+ * that forms, csv files and media files are only re-read when they actually change.
+ */
+public class FileHashIndex {
+
+    private static final String DATABASE_NAME = "filehashes.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String HASH_TABLE = "file_hashes";
+    private static final String KEY_PATH = "path";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_MD5 = "md5";
+
+    // Files modified this recently may still change without their timestamp moving (coarse
+    // timestamp granularity on FAT formatted cards), so their hashes are never memoized.
+    private static final long TIMESTAMP_GRANULARITY = 2000;
+
+    private static FileHashIndex singleton;
+
+    private final DatabaseHelper dbHelper;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private static class DatabaseHelper extends ODKSQLiteOpenHelper {
+        DatabaseHelper() {
+            super(Collect.METADATA_PATH, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("create table " + HASH_TABLE + " ("
+                    + KEY_PATH + " text primary key, "
+                    + KEY_SIZE + " integer not null, "
+                    + KEY_LAST_MODIFIED + " integer not null, "
+                    + KEY_MD5 + " text not null);");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            Timber.w("Upgrading database from version %d to %d, which will destroy all old data",
+                    oldVersion, newVersion);
+            db.execSQL("DROP TABLE IF EXISTS " + HASH_TABLE);
+            onCreate(db);
+        }
+    }
+
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final String md5;
+
+        Entry(long size, long lastModified, String md5) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+        }
+
+        boolean matches(File file) {
+            return size == file.length() && lastModified == file.lastModified();
+        }
+    }
+
+    private FileHashIndex() {
+        dbHelper = new DatabaseHelper();
+    }
+
+    public static synchronized FileHashIndex getInstance() {
+        if (singleton == null) {
+            singleton = new FileHashIndex();
+        }
+        return singleton;
+    }
+
+    /**
+     * Returns the md5 hash of the file, reading it only if it changed since it was last hashed.
+     *
+     * @return the hash, or null if the file cannot be read
+     */
+    public String getMd5Hash(File file) {
+        String path = file.getAbsolutePath();
+
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            entry = readEntry(path);
+        }
+        if (entry != null && entry.matches(file)) {
+            return entry.md5;
+        }
+
+        // stat before hashing so a concurrent write is detected on the next lookup
+        long size = file.length();
+        long lastModified = file.lastModified();
+        String md5 = FileUtils.getMd5Hash(file);
+        if (md5 == null) {
+            forget(path);
+            return null;
+        }
+
+        if (System.currentTimeMillis() - lastModified > TIMESTAMP_GRANULARITY) {
+            entry = new Entry(size, lastModified, md5);
+            entries.put(path, entry);
+            writeEntry(path, entry);
+        }
+        return md5;
+    }
+
+    /**
+     * Drops the memoized hash of a file, e.g. because it was deleted or replaced.
+     */
+    public void forget(String path) {
+        entries.remove(path);
+        try {
+            dbHelper.getWritableDatabase().delete(HASH_TABLE, KEY_PATH + "=?",
+                    new String[]{path});
+        } catch (SQLException e) {
+            Timber.e(e);
+        }
+    }
+
+    private Entry readEntry(String path) {
+        Cursor c = null;
+        try {
+            c = dbHelper.getReadableDatabase().query(HASH_TABLE,
+                    new String[]{KEY_SIZE, KEY_LAST_MODIFIED, KEY_MD5}, KEY_PATH + "=?",
+                    new String[]{path}, null, null, null);
+            if (c != null && c.moveToFirst()) {
+                Entry entry = new Entry(c.getLong(0), c.getLong(1), c.getString(2));
+                entries.put(path, entry);
+                return entry;
+            }
+        } catch (SQLException e) {
+            Timber.e(e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return null;
+    }
+
+    private void writeEntry(String path, Entry entry) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_PATH, path);
+        values.put(KEY_SIZE, entry.size);
+        values.put(KEY_LAST_MODIFIED, entry.lastModified);
+        values.put(KEY_MD5, entry.md5);
+        try {
+            dbHelper.getWritableDatabase().insertWithOnConflict(HASH_TABLE, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (SQLException e) {
+            Timber.e(e);
+        }
+    }
+}
@@ -18,6 +18,9 @@
 
 package org.sdrc.scpstn.collect.android.external;
 
+import java.io.File;
+import java.util.Map;
+
 /**
  * This class handles all DB connections for the function handlers
  * <p/>
@@ -39,5 +42,18 @@ public interface ExternalDataManager {
      */
     ExternalSQLiteOpenHelper getDatabase(String dataSetName, boolean required);
 
+    /**
+     * Registers csv files whose import is postponed until {@link #getDatabase(String, boolean)}
+     * first asks for them or {@link #prefetch()} gets to them.
+     *
+     * @param externalDataMap data set names mapped to the .csv files to import
+     */
+    void deferImport(Map<String, File> externalDataMap);
+
+    /**
+     * Imports the remaining deferred data sets on a background thread.
+     */
+    void prefetch();
+
     void close();
 }
@@ -18,12 +18,16 @@
 
 package org.sdrc.scpstn.collect.android.external;
 
+import android.os.Process;
+
 import org.sdrc.scpstn.collect.android.R;
 import org.sdrc.scpstn.collect.android.application.Collect;
 import org.sdrc.scpstn.collect.android.exception.ExternalDataException;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import timber.log.Timber;
@@ -38,15 +42,28 @@ public class ExternalDataManagerImpl implements ExternalDataManager {
     private Map<String, ExternalSQLiteOpenHelper> dbMap =
             new HashMap<String, ExternalSQLiteOpenHelper>();
 
+    // csv files not imported yet
+    private final Map<String, File> pendingImports = new HashMap<String, File>();
+
+    // deferred imports that failed, reported to whoever asks for the data set
+    private final Map<String, ExternalDataException> failedImports =
+            new HashMap<String, ExternalDataException>();
+
     private final File mediaFolder;
 
+    private volatile boolean closed;
+    private Thread prefetchThread;
+
     public ExternalDataManagerImpl(File mediaFolder) {
         this.mediaFolder = mediaFolder;
     }
 
     @Override
     public ExternalSQLiteOpenHelper getDatabase(String dataSetName, boolean required) {
-        ExternalSQLiteOpenHelper sqLiteOpenHelper = dbMap.get(dataSetName);
+        ExternalSQLiteOpenHelper sqLiteOpenHelper;
+        synchronized (this) {
+            sqLiteOpenHelper = dbMap.get(dataSetName);
+        }
         if (sqLiteOpenHelper == null) {
             if (mediaFolder == null) {
                 String msg = Collect.getInstance().getString(R.string.ext_not_initialized_error);
@@ -57,6 +74,20 @@ public class ExternalDataManagerImpl implements ExternalDataManager {
                     return null;
                 }
             } else {
+                importIfPending(dataSetName);
+
+                ExternalDataException failure;
+                synchronized (this) {
+                    failure = failedImports.get(dataSetName);
+                }
+                if (failure != null) {
+                    if (required) {
+                        throw new ExternalDataException(failure.getMessage(), failure);
+                    } else {
+                        return null;
+                    }
+                }
+
                 File dbFile = new File(mediaFolder, dataSetName + ".db");
                 if (!dbFile.exists()) {
                     String msg = Collect.getInstance().getString(
@@ -68,20 +99,121 @@ public class ExternalDataManagerImpl implements ExternalDataManager {
                         return null;
                     }
                 } else {
-                    sqLiteOpenHelper = new ExternalSQLiteOpenHelper(dbFile);
-                    dbMap.put(dataSetName, sqLiteOpenHelper);
+                    synchronized (this) {
+                        sqLiteOpenHelper = dbMap.get(dataSetName);
+                        if (sqLiteOpenHelper == null) {
+                            sqLiteOpenHelper = new ExternalSQLiteOpenHelper(dbFile);
+                            dbMap.put(dataSetName, sqLiteOpenHelper);
+                        }
+                    }
                 }
             }
         }
         return sqLiteOpenHelper;
     }
 
+    @Override
+    public synchronized void deferImport(Map<String, File> externalDataMap) {
+        pendingImports.putAll(externalDataMap);
+    }
+
+    @Override
+    public void prefetch() {
+        final List<String> dataSetNames;
+        synchronized (this) {
+            dataSetNames = new ArrayList<String>(pendingImports.keySet());
+        }
+        if (dataSetNames.isEmpty()) {
+            return;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                for (String dataSetName : dataSetNames) {
+                    if (closed || Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    importIfPending(dataSetName);
+                }
+            }
+        }, "ExternalDataPrefetch");
+        thread.setDaemon(true);
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            prefetchThread = thread;
+        }
+        thread.start();
+    }
+
+    /**
+     * Imports the csv for this data set if its import was deferred. Callers asking for a data set
+     * that another thread is importing wait for that import instead of starting a new one. A
+     * failed import is not retried; its failure is kept for {@link #getDatabase(String, boolean)}
+     * to report, since the prefetch thread has no one to report it to.
+     */
+    private void importIfPending(String dataSetName) {
+        synchronized (this) {
+            if (!pendingImports.containsKey(dataSetName)) {
+                return;
+            }
+        }
+
+        synchronized (ExternalDataReaderImpl.getImportLock(
+                new File(mediaFolder, dataSetName + ".db"))) {
+            File dataSetFile;
+            synchronized (this) {
+                dataSetFile = pendingImports.get(dataSetName);
+            }
+            if (dataSetFile == null) {
+                // imported while we were waiting for the lock
+                return;
+            }
+
+            Timber.i("Importing %s on demand", dataSetFile.getAbsolutePath());
+            Map<String, File> externalDataMap = new HashMap<String, File>();
+            externalDataMap.put(dataSetName, dataSetFile);
+            ExternalDataException failure = null;
+            try {
+                new ExternalDataReaderImpl(null).doImport(externalDataMap);
+                if (Thread.currentThread().isInterrupted()) {
+                    // cancelled by close(), the partial import was dropped
+                    return;
+                }
+            } catch (RuntimeException e) {
+                Timber.e(e, "Unable to import %s", dataSetFile.getAbsolutePath());
+                failure = e instanceof ExternalDataException ? (ExternalDataException) e
+                        : new ExternalDataException(e.getMessage(), e);
+            }
+            synchronized (this) {
+                pendingImports.remove(dataSetName);
+                if (failure != null) {
+                    failedImports.put(dataSetName, failure);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the databases and cancels the prefetch. An import the prefetch was running stops at
+     * its next row and removes what it imported, holding the lock of its .db until it is done.
+     */
     @Override
     public void close() {
-        if (dbMap != null) {
-            for (ExternalSQLiteOpenHelper externalSQLiteOpenHelper : dbMap.values()) {
-                Timber.w("Closing database handler:%s", externalSQLiteOpenHelper.toString());
-                externalSQLiteOpenHelper.close();
+        closed = true;
+        synchronized (this) {
+            if (prefetchThread != null) {
+                prefetchThread.interrupt();
+                prefetchThread = null;
+            }
+            if (dbMap != null) {
+                for (ExternalSQLiteOpenHelper externalSQLiteOpenHelper : dbMap.values()) {
+                    Timber.w("Closing database handler:%s", externalSQLiteOpenHelper.toString());
+                    externalSQLiteOpenHelper.close();
+                }
             }
         }
     }
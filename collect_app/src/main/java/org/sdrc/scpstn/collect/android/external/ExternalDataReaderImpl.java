@@ -25,6 +25,7 @@ import org.sdrc.scpstn.collect.android.tasks.FormLoaderTask;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
 
 import timber.log.Timber;
@@ -36,6 +37,10 @@ import timber.log.Timber;
  */
 public class ExternalDataReaderImpl implements ExternalDataReader {
 
+    // keeps a .db from being imported twice at the same time, also by the data manager of a form
+    // that was closed and opened again while its prefetch was still importing
+    private static final Map<String, Object> IMPORT_LOCKS = new HashMap<String, Object>();
+
     private FormLoaderTask formLoaderTask;
 
     public ExternalDataReaderImpl(FormLoaderTask formLoaderTask) {
@@ -45,63 +50,88 @@ public class ExternalDataReaderImpl implements ExternalDataReader {
     @Override
     public void doImport(Map<String, File> externalDataMap) {
         for (Map.Entry<String, File> stringFileEntry : externalDataMap.entrySet()) {
-            String dataSetName = stringFileEntry.getKey();
-            File dataSetFile = stringFileEntry.getValue();
-            if (dataSetFile.exists()) {
-                File dbFile = new File(dataSetFile.getParentFile().getAbsolutePath(),
-                        dataSetName + ".db");
-                if (dbFile.exists()) {
-                    // this means the someone updated the csv file, so we need to reload it
-                    boolean deleted = dbFile.delete();
-                    if (!deleted) {
-                        Timber.e("%s has changed but we could not delete the previous DB at %s",
-                                dataSetFile.getName(), dbFile.getAbsolutePath());
-                        continue;
-                    }
-                }
-                ExternalSQLiteOpenHelper externalSQLiteOpenHelper = new ExternalSQLiteOpenHelper(
-                        dbFile);
-                externalSQLiteOpenHelper.importFromCSV(dataSetFile, this, formLoaderTask);
-
-                if (formLoaderTask.isCancelled()) {
-                    Timber.w(
-                            "The import was cancelled, so we need to rollback.");
-
-                    // we need to drop the database file since it might be partially populated.
-                    // It will be re-created next time.
-
-                    Timber.w("Closing database to be deleted %s", dbFile.toString());
-
-                    // then close the database
-                    SQLiteDatabase db = externalSQLiteOpenHelper.getReadableDatabase();
-                    db.close();
-
-                    // the physically delete the db.
-                    try {
-                        FileUtils.forceDelete(dbFile);
-                        Timber.w("Deleted %s", dbFile.getName());
-                    } catch (IOException e) {
-                        Timber.e(e);
-                    }
+            if (!importDataSet(stringFileEntry.getKey(), stringFileEntry.getValue())) {
+                return;
+            }
+        }
+    }
 
-                    // then just exit and do not process any other CSVs.
-                    return;
+    /**
+     * @return false if the import was cancelled
+     */
+    private boolean importDataSet(String dataSetName, File dataSetFile) {
+        File dbFile = new File(dataSetFile.getParentFile().getAbsolutePath(),
+                dataSetName + ".db");
+        synchronized (getImportLock(dbFile)) {
+            // imported by whoever held the lock before us
+            if (!dataSetFile.exists()) {
+                return true;
+            }
+            if (dbFile.exists()) {
+                // this means the someone updated the csv file, so we need to reload it
+                boolean deleted = dbFile.delete();
+                if (!deleted) {
+                    Timber.e("%s has changed but we could not delete the previous DB at %s",
+                            dataSetFile.getName(), dbFile.getAbsolutePath());
+                    return true;
+                }
+            }
+            ExternalSQLiteOpenHelper externalSQLiteOpenHelper = new ExternalSQLiteOpenHelper(
+                    dbFile);
+            externalSQLiteOpenHelper.importFromCSV(dataSetFile, this, formLoaderTask);
+
+            if ((formLoaderTask != null && formLoaderTask.isCancelled())
+                    || Thread.currentThread().isInterrupted()) {
+                Timber.w(
+                        "The import was cancelled, so we need to rollback.");
+
+                // we need to drop the database file since it might be partially populated.
+                // It will be re-created next time.
+
+                Timber.w("Closing database to be deleted %s", dbFile.toString());
+
+                // then close the database
+                SQLiteDatabase db = externalSQLiteOpenHelper.getReadableDatabase();
+                db.close();
+
+                // the physically delete the db.
+                try {
+                    FileUtils.forceDelete(dbFile);
+                    Timber.w("Deleted %s", dbFile.getName());
+                } catch (IOException e) {
+                    Timber.e(e);
+                }
 
+                // then just exit and do not process any other CSVs.
+                return false;
+
+            } else {
+                // rename the dataSetFile into "dataSetFile.csv.imported" in order not to be
+                // loaded again
+                File importedFile = new File(dataSetFile.getParentFile(),
+                        dataSetFile.getName() + ".imported");
+                boolean renamed = dataSetFile.renameTo(importedFile);
+                if (!renamed) {
+                    Timber.e("%s could not be renamed to be archived. It will be re-imported "
+                            + "again! :(", dataSetFile.getName());
                 } else {
-                    // rename the dataSetFile into "dataSetFile.csv.imported" in order not to be
-                    // loaded again
-                    File importedFile = new File(dataSetFile.getParentFile(),
-                            dataSetFile.getName() + ".imported");
-                    boolean renamed = dataSetFile.renameTo(importedFile);
-                    if (!renamed) {
-                        Timber.e("%s could not be renamed to be archived. It will be re-imported "
-                                + "again! :(", dataSetFile.getName());
-                    } else {
-                        Timber.e("%s was renamed to %s", dataSetFile.getName(), importedFile.getName());
-                    }
+                    Timber.e("%s was renamed to %s", dataSetFile.getName(), importedFile.getName());
                 }
             }
         }
+        return true;
     }
 
+    /**
+     * @return the lock held while a .db is imported, the same for every form loader and data
+     * manager of the process
+     */
+    static synchronized Object getImportLock(File dbFile) {
+        Object lock = IMPORT_LOCKS.get(dbFile.getAbsolutePath());
+        if (lock == null) {
+            lock = new Object();
+            IMPORT_LOCKS.put(dbFile.getAbsolutePath(), lock);
+        }
+        return lock;
+    }
 }
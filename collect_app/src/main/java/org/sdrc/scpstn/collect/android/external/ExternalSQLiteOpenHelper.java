@@ -76,6 +76,15 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
         }
     }
 
+    /**
+     * Imports stop when their loader is cancelled, or when their thread is interrupted by a
+     * loader that stopped waiting for them or by {@link ExternalDataManagerImpl#close()}.
+     */
+    private boolean isCancelled() {
+        return (formLoaderTask != null && formLoaderTask.isCancelled())
+                || Thread.currentThread().isInterrupted();
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         if (externalDataReader == null) {
@@ -178,7 +187,7 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
             // populate the database
             String[] row = reader.readNext();
             int rowCount = 0;
-            while (row != null && !formLoaderTask.isCancelled()) {
+            while (row != null && !isCancelled()) {
                 // SCTO-894 - first we should make sure that this is not an empty line
                 if (!ExternalDataUtil.containsAnyData(row)) {
                     // yes, that is an empty row, ignore it
@@ -226,7 +235,7 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
                 }
             }
 
-            if (formLoaderTask.isCancelled()) {
+            if (isCancelled()) {
                 Timber.w("User canceled reading data from %s", dataSetFile.toString());
                 onProgress(Collect.getInstance().getString(R.string.ext_import_cancelled_message));
             } else {
@@ -26,5 +26,7 @@ public interface InstanceUploaderListener {
 
     void progressUpdate(int progress, int total);
 
+    void fileProgressUpdate(String fileName, long bytesSent, long fileSize);
+
     void authRequest(Uri url, HashMap<String, String> doneSoFar);
 }
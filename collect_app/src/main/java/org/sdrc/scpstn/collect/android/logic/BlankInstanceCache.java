@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sdrc.scpstn.collect.android.logic;
+
+import android.content.ComponentCallbacks2;
+import android.util.LruCache;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.condition.Recalculate;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.instance.InstanceInitializationFactory;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.model.xform.XPathReference;
+import org.javarosa.xpath.XPathParseTool;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.parser.XPathSyntaxException;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import timber.log.Timber;
+
+/**
+ * Memory-bounded cache of freshly initialized main instances, keyed by the md5 of the form
+ * definition file, so that starting another blank submission does not evaluate every default,
+ * calculate and relevance expression of the form again.
+ *
+ * Only values that must differ between submissions are recomputed on a cache hit: jr:preload
+ * values (start time, device id, ...) and calculates calling a volatile function such as uuid()
+ * or now(), together with everything that depends on them. Forms whose initialization cannot be
+ * replayed that way (secondary instances, setvalue actions, volatile calculates inside repeats,
+ * volatile functions in any other bind expression such as a relevant comparing with today())
+ * are always initialized in full.
+ */
+public class BlankInstanceCache {
+
+    // fraction of the VM heap the cache may use
+    private static final int HEAP_FRACTION = 16;
+
+    private static final Pattern VOLATILE_FUNCTION =
+            Pattern.compile("\\b(uuid|now|today|random|once|pulldata)\\s*\\(");
+
+    private static BlankInstanceCache singleton;
+
+    private final LruCache<String, Template> templates;
+
+    private static class Template {
+        final byte[] root;
+        final List<VolatileCalculate> calculates;
+
+        Template(byte[] root, List<VolatileCalculate> calculates) {
+            this.root = root;
+            this.calculates = calculates;
+        }
+    }
+
+    static class VolatileCalculate {
+        final TreeReference ref;
+        final XPathExpression expression;
+
+        VolatileCalculate(TreeReference ref, XPathExpression expression) {
+            this.ref = ref;
+            this.expression = expression;
+        }
+    }
+
+    private BlankInstanceCache(int maxBytes) {
+        templates = new LruCache<String, Template>(maxBytes) {
+            @Override
+            protected int sizeOf(String formHash, Template template) {
+                return template.root.length;
+            }
+        };
+    }
+
+    public static synchronized BlankInstanceCache getInstance() {
+        if (singleton == null) {
+            long maxBytes = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+            singleton = new BlankInstanceCache((int) Math.min(maxBytes, Integer.MAX_VALUE));
+        }
+        return singleton;
+    }
+
+    /**
+     * Initializes the (uninitialized) form as a new instance, from the cached template when
+     * there is one, and caches the result otherwise.
+     *
+     * @param formXml the form definition file, scanned for volatile calculates the first time
+     */
+    public void initializeNewInstance(FormDef fd, String formHash, File formXml) {
+        Template template = formHash == null ? null : templates.get(formHash);
+        if (template != null) {
+            try {
+                restore(fd, template);
+                return;
+            } catch (Exception e) {
+                Timber.e(e, "Unable to restore blank instance of %s", formXml.getName());
+                templates.remove(formHash);
+            }
+        }
+
+        fd.initialize(true, new InstanceInitializationFactory());
+
+        if (formHash != null) {
+            List<VolatileCalculate> calculates = findVolatileCalculates(fd, formXml);
+            if (calculates != null) {
+                byte[] root = writeRoot(fd.getInstance().getRoot());
+                if (root != null) {
+                    templates.put(formHash, new Template(root, calculates));
+                }
+            }
+        }
+    }
+
+    public void evict(String formHash) {
+        if (formHash != null) {
+            templates.remove(formHash);
+        }
+    }
+
+    public void clear() {
+        templates.evictAll();
+    }
+
+    /**
+     * Releases memory in response to {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        }
+    }
+
+    private static void restore(FormDef fd, Template template) throws Exception {
+        TreeElement root = new TreeElement();
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(template.root));
+        root.readExternal(dis, ExtUtil.defaultPrototypes());
+        dis.close();
+        fd.getInstance().setRoot(root);
+
+        if (fd.getLocalizer() != null && fd.getLocalizer().getLocale() == null) {
+            fd.getLocalizer().setToDefault();
+        }
+
+        // setValue re-evaluates everything depending on the changed node
+        List<TreeElement> preloaded = new ArrayList<TreeElement>();
+        collectPreloaded(root, preloaded);
+        for (TreeElement node : preloaded) {
+            IAnswerData value = fd.getPreloader().getQuestionPreload(node.getPreloadHandler(),
+                    node.getPreloadParams());
+            if (value != null) {
+                fd.setValue(value, node.getRef(), true);
+            }
+        }
+
+        for (VolatileCalculate calculate : template.calculates) {
+            TreeElement node = fd.getInstance().resolveReference(calculate.ref);
+            TreeReference ref = node.getRef();
+            Object result = calculate.expression.eval(fd.getInstance(),
+                    new EvaluationContext(fd.getEvaluationContext(), ref));
+            fd.setValue(Recalculate.wrapData(result, node.getDataType()), ref, true);
+        }
+    }
+
+    private static void collectPreloaded(TreeElement node, List<TreeElement> preloaded) {
+        if (node.getPreloadHandler() != null) {
+            preloaded.add(node);
+        }
+        for (int i = 0; i < node.getNumChildren(); i++) {
+            collectPreloaded(node.getChildAt(i), preloaded);
+        }
+    }
+
+    private static byte[] writeRoot(TreeElement root) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            root.writeExternal(dos);
+            dos.flush();
+            return bos.toByteArray();
+        } catch (Exception e) {
+            Timber.e(e);
+            return null;
+        }
+    }
+
+    /**
+     * Scans the binds of the form for calculates that have to be re-evaluated for every new
+     * instance. Setvalue actions and volatile functions in other bind expressions make the form
+     * uncacheable.
+     *
+     * @return the calculates in document order, or null if the form's initialization cannot be
+     * replayed from a template
+     */
+    static List<VolatileCalculate> findVolatileCalculates(FormDef fd, File formXml) {
+        List<VolatileCalculate> calculates = new ArrayList<VolatileCalculate>();
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(formXml));
+            KXmlParser parser = new KXmlParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(is, null);
+
+            int instances = 0;
+            for (int eventType = parser.next(); eventType != XmlPullParser.END_DOCUMENT;
+                    eventType = parser.next()) {
+                if (eventType != XmlPullParser.START_TAG) {
+                    continue;
+                }
+                String name = parser.getName();
+                if ("instance".equals(name) && ++instances > 1) {
+                    return null;
+                } else if ("setvalue".equals(name) || "action".equals(name)) {
+                    return null;
+                } else if ("bind".equals(name)) {
+                    // the state relevant, required, readonly and constraint expressions leave in
+                    // the instance is only recomputed by a full initialization
+                    for (int i = 0; i < parser.getAttributeCount(); i++) {
+                        if (!"calculate".equals(parser.getAttributeName(i))
+                                && VOLATILE_FUNCTION.matcher(parser.getAttributeValue(i)).find()) {
+                            return null;
+                        }
+                    }
+                    String calculate = parser.getAttributeValue(null, "calculate");
+                    if (calculate == null || !VOLATILE_FUNCTION.matcher(calculate).find()) {
+                        continue;
+                    }
+                    VolatileCalculate volatileCalculate = readCalculate(fd,
+                            parser.getAttributeValue(null, "nodeset"), calculate);
+                    if (volatileCalculate == null) {
+                        return null;
+                    }
+                    calculates.add(volatileCalculate);
+                } else if ("body".equals(name)) {
+                    // the model, and with it every bind, precedes the body
+                    break;
+                }
+            }
+            return calculates;
+        } catch (Exception e) {
+            Timber.e(e, "Unable to scan %s for volatile calculates", formXml.getName());
+            return null;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    private static VolatileCalculate readCalculate(FormDef fd, String nodeset, String calculate)
+            throws XPathSyntaxException {
+        if (nodeset == null) {
+            return null;
+        }
+        TreeReference ref = (TreeReference) new XPathReference(nodeset).getReference();
+        // calculates inside repeats have one target per repeat instance; those forms are not
+        // worth the complexity of resolving each of them here
+        if (!ref.isAbsolute() || fd.getInstance().resolveReference(ref) == null) {
+            return null;
+        }
+        return new VolatileCalculate(ref, XPathParseTool.parseXPath(calculate));
+    }
+}
@@ -46,7 +46,9 @@ import org.sdrc.scpstn.collect.android.views.ODKView;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -96,7 +98,7 @@ public class FormController {
         public final String instanceName;
         public final boolean audit;
 
-        InstanceMetadata(String instanceId, String instanceName, boolean audit) {
+        public InstanceMetadata(String instanceId, String instanceName, boolean audit) {
             this.instanceId = instanceId;
             this.instanceName = instanceName;
             this.audit = audit;
@@ -163,9 +165,27 @@ public class FormController {
 
     private File mediaFolder;
     private File instancePath;
+    private String formHash;
     private FormEntryController formEntryController;
     private FormIndex indexWaitingForData = null;
 
+    // xpath of every form entry visited while resolving an xpath, see getIndexFromXPath
+    private final HashMap<String, FormIndex> xpathIndices = new HashMap<String, FormIndex>();
+
+    // meta block elements of the submission, resolved once by getSubmissionMetadata
+    private TreeElement metadataRoot;
+    private TreeElement instanceIdElement;
+    private TreeElement instanceNameElement;
+    private boolean hasAudit;
+
+    // structure of the form as shown by the hierarchy view, see getHierarchy
+    private FormHierarchy hierarchy;
+
+    // changes since the last savepoint snapshot; changes to the form and taking a snapshot hold
+    // savepointLock so that every change ends up in exactly one of them
+    private final Object savepointLock = new Object();
+    private SavepointJournal savepointJournal;
+
     public FormController(File mediaFolder, FormEntryController fec, File instancePath) {
         this.mediaFolder = mediaFolder;
         formEntryController = fec;
@@ -188,6 +208,17 @@ public class FormController {
         this.instancePath = instancePath;
     }
 
+    /**
+     * @return md5 hash of the form definition file this controller was loaded from
+     */
+    public String getFormHash() {
+        return formHash;
+    }
+
+    public void setFormHash(String formHash) {
+        this.formHash = formHash;
+    }
+
     public void setIndexWaitingForData(FormIndex index) {
         indexWaitingForData = index;
     }
@@ -210,8 +241,12 @@ public class FormController {
      * @return xpath value for this index
      */
     public String getXPath(FormIndex index) {
+        return getXPath(index, getEvent());
+    }
+
+    private String getXPath(FormIndex index, int event) {
         String value;
-        switch (getEvent()) {
+        switch (event) {
             case FormEntryController.EVENT_BEGINNING_OF_FORM:
                 value = "beginningOfForm";
                 break;
@@ -250,16 +285,29 @@ public class FormController {
                 Timber.e("Unexpected string from XPath");
                 throw new IllegalArgumentException("unexpected string from XPath");
             default:
+                FormIndex cached = xpathIndices.get(xpath);
+                if (cached != null) {
+                    // relevance or jr:count changes may have moved or hidden the entry
+                    if (getXPath(cached, getEvent(cached)).equals(xpath)
+                            && formEntryController.getModel().isIndexRelevant(cached)) {
+                        return cached;
+                    }
+                    invalidateXPathIndices();
+                }
+
                 FormIndex returned = null;
                 FormIndex saved = getFormIndex();
                 // the only way I know how to do this is to step through the entire form
-                // until the XPath of a form entry matches that of the supplied XPath
+                // until the XPath of a form entry matches that of the supplied XPath.
+                // Everything passed on the way is remembered for later lookups.
                 try {
                     jumpToIndex(FormIndex.createBeginningOfFormIndex());
                     int event = stepToNextEvent(true);
                     while (event != FormEntryController.EVENT_END_OF_FORM) {
                         String candidateXPath = getXPath(getFormIndex());
-                        // Log.i(t, "xpath: " + candidateXPath);
+                        if (!xpathIndices.containsKey(candidateXPath)) {
+                            xpathIndices.put(candidateXPath, getFormIndex());
+                        }
                         if (candidateXPath.equals(xpath)) {
                             returned = getFormIndex();
                             break;
@@ -273,6 +321,32 @@ public class FormController {
         }
     }
 
+    /**
+     * Forgets the form indices remembered by {@link #getIndexFromXPath(String)}, which shift
+     * whenever a repeat is added or removed.
+     */
+    private void invalidateXPathIndices() {
+        xpathIndices.clear();
+    }
+
+    /**
+     * @return the structure of the form as shown by the hierarchy view, built as it is needed and
+     * kept for as long as this controller
+     */
+    public FormHierarchy getHierarchy() {
+        if (hierarchy == null) {
+            hierarchy = new FormHierarchy(formEntryController);
+        }
+        return hierarchy;
+    }
+
+    /**
+     * @return true if the entry at the given index is relevant, taking its groups into account
+     */
+    public boolean isIndexRelevant(FormIndex index) {
+        return formEntryController.getModel().isIndexRelevant(index);
+    }
+
     /**
      * returns the event for the current FormIndex.
      */
@@ -462,7 +536,16 @@ public class FormController {
      */
     public int answerQuestion(FormIndex index, IAnswerData data) throws JavaRosaException {
         try {
-            return formEntryController.answerQuestion(index, data, true);
+            if (hierarchy != null) {
+                hierarchy.answerChanged();
+            }
+            synchronized (savepointLock) {
+                int saveStatus = formEntryController.answerQuestion(index, data, true);
+                if (saveStatus == FormEntryController.ANSWER_OK && savepointJournal != null) {
+                    savepointJournal.recordAnswer(getXPath(index, getEvent(index)), data);
+                }
+                return saveStatus;
+            }
         } catch (Exception e) {
             throw new JavaRosaException(e);
         }
@@ -473,11 +556,18 @@ public class FormController {
      * Constraints are ignored on 'jump to', so answers can be outside of constraints. We don't
      * allow saving to disk, though, until all answers conform to their constraints/requirements.
      *
+     * Drafts are saved without checking: JavaRosa only reports constraint and required
+     * violations when the form is marked complete, FormDef.validate(false) never fails, so
+     * walking the form for a draft would answer every question again for nothing.
+     *
      * @return ANSWER_OK and leave index unchanged or change index to bad value and return error
      * type.
      */
     public int validateAnswers(Boolean markCompleted) throws JavaRosaException {
-        ValidateOutcome outcome = getFormDef().validate(markCompleted);
+        if (!markCompleted) {
+            return FormEntryController.ANSWER_OK;
+        }
+        ValidateOutcome outcome = getFormDef().validate(true);
         if (outcome != null) {
             this.jumpToIndex(outcome.failedPrompt);
             return outcome.outcome;
@@ -496,7 +586,16 @@ public class FormController {
      */
     public boolean saveAnswer(FormIndex index, IAnswerData data) throws JavaRosaException {
         try {
-            return formEntryController.saveAnswer(index, data, true);
+            if (hierarchy != null) {
+                hierarchy.answerChanged();
+            }
+            synchronized (savepointLock) {
+                boolean saved = formEntryController.saveAnswer(index, data, true);
+                if (savepointJournal != null) {
+                    savepointJournal.recordAnswer(getXPath(index, getEvent(index)), data);
+                }
+                return saved;
+            }
         } catch (Exception e) {
             throw new JavaRosaException(e);
         }
@@ -806,7 +905,17 @@ public class FormController {
      * Creates a new repeated instance of the group referenced by the current FormIndex.
      */
     public void newRepeat() {
-        formEntryController.newRepeat();
+        synchronized (savepointLock) {
+            if (savepointJournal != null) {
+                savepointJournal.recordNewRepeat(getXPath(getFormIndex(), getEvent()));
+            }
+            formEntryController.newRepeat();
+        }
+        invalidateXPathIndices();
+        if (hierarchy != null) {
+            hierarchy.repeatsChanged();
+        }
+        metadataRoot = null;
     }
 
 
@@ -817,7 +926,25 @@ public class FormController {
      * (2) > group2 (3) and you call deleteRepeat, it will delete the 3rd instance of group2.
      */
     public void deleteRepeat() {
-        FormIndex fi = formEntryController.deleteRepeat();
+        FormIndex fi;
+        synchronized (savepointLock) {
+            if (savepointJournal != null) {
+                FormIndex repeat = getFormIndex();
+                while (repeat != null && getEvent(repeat) != FormEntryController.EVENT_REPEAT) {
+                    repeat = stepIndexOut(repeat);
+                }
+                if (repeat != null) {
+                    savepointJournal.recordDeleteRepeat(
+                            getXPath(repeat, FormEntryController.EVENT_REPEAT));
+                }
+            }
+            fi = formEntryController.deleteRepeat();
+        }
+        invalidateXPathIndices();
+        if (hierarchy != null) {
+            hierarchy.repeatsChanged();
+        }
+        metadataRoot = null;
         formEntryController.jumpToIndex(fi);
     }
 
@@ -1117,6 +1244,54 @@ public class FormController {
         return (ByteArrayPayload) serializer.createSerializedPayload(datamodel);
     }
 
+    /**
+     * Writes the XML of a filled-in form instance as it is serialized, without holding the whole
+     * payload in memory. The output is the same as {@link #getFilledInFormXml()}.
+     */
+    public void writeFilledInFormXml(OutputStream out) throws IOException {
+        InstanceXmlWriter.write(getInstance(), null, out);
+    }
+
+    /**
+     * Returns the journal the savepoints of this instance are written through, starting a new one
+     * whenever the savepoint file changes.
+     */
+    public SavepointJournal getSavepointJournal(File savepointFile) {
+        synchronized (savepointLock) {
+            if (savepointJournal == null
+                    || !savepointJournal.getSavepointFile().equals(savepointFile)) {
+                savepointJournal = new SavepointJournal(savepointFile);
+            }
+            return savepointJournal;
+        }
+    }
+
+    /**
+     * Takes a savepoint of the instance: the changes recorded since the previous one, or a full
+     * snapshot if there is none yet or the journal has grown too large.
+     *
+     * @see #getSavepointJournal(File)
+     */
+    public SavepointJournal.Checkpoint takeSavepoint() throws IOException {
+        synchronized (savepointLock) {
+            if (savepointJournal.needsSnapshot()) {
+                return savepointJournal.takeSnapshot(getInstance());
+            }
+            return savepointJournal.takeRecords();
+        }
+    }
+
+    /**
+     * Deletes the savepoint once the instance itself has been saved.
+     */
+    public void discardSavepoint() {
+        synchronized (savepointLock) {
+            if (savepointJournal != null) {
+                savepointJournal.discard();
+            }
+        }
+    }
+
     /**
      * Extract the portion of the form that should be uploaded to the server.
      */
@@ -1127,6 +1302,14 @@ public class FormController {
                 getSubmissionDataReference());
     }
 
+    /**
+     * Writes the portion of the form that should be uploaded to the server, the same as
+     * {@link #getSubmissionXml()} but without holding the whole payload in memory.
+     */
+    public void writeSubmissionXml(OutputStream out) throws IOException {
+        InstanceXmlWriter.write(getInstance(), getSubmissionDataReference(), out);
+    }
+
     /**
      * Traverse the submission looking for the first matching tag in depth-first order.
      */
@@ -1150,8 +1333,37 @@ public class FormController {
      * Get the OpenRosa required metadata of the portion of the form beng submitted
      */
     public InstanceMetadata getSubmissionMetadata() {
+        TreeElement rootElement = formEntryController.getModel().getForm().getInstance().getRoot();
+        if (metadataRoot != rootElement) {
+            resolveSubmissionMetadata(rootElement);
+        }
+
+        String instanceId = null;
+        if (instanceIdElement != null) {
+            StringData sa = (StringData) instanceIdElement.getValue();
+            if (sa != null) {
+                instanceId = (String) sa.getValue();
+            }
+        }
+
+        String instanceName = null;
+        if (instanceNameElement != null) {
+            StringData sa = (StringData) instanceNameElement.getValue();
+            if (sa != null) {
+                instanceName = (String) sa.getValue();
+            }
+        }
+
+        return new InstanceMetadata(instanceId, instanceName, hasAudit);
+    }
+
+    /**
+     * Finds the meta block elements of the submission. They only move when the instance is
+     * replaced or a repeat is added or removed, so the values can be read directly afterwards
+     * instead of searching the whole instance on every call.
+     */
+    private void resolveSubmissionMetadata(TreeElement rootElement) {
         FormDef formDef = formEntryController.getModel().getForm();
-        TreeElement rootElement = formDef.getInstance().getRoot();
 
         TreeElement trueSubmissionElement;
         // Determine the information about the submission...
@@ -1170,9 +1382,9 @@ public class FormController {
         // and find the depth-first meta block in this...
         TreeElement e = findDepthFirst(trueSubmissionElement, "meta");
 
-        String instanceId = null;
-        String instanceName = null;
-        boolean audit = false;
+        instanceIdElement = null;
+        instanceNameElement = null;
+        hasAudit = false;
 
         if (e != null) {
             List<TreeElement> v;
@@ -1180,30 +1392,23 @@ public class FormController {
             // instance id...
             v = e.getChildrenWithName(INSTANCE_ID);
             if (v.size() == 1) {
-                StringData sa = (StringData) v.get(0).getValue();
-                if (sa != null) {
-                    instanceId = (String) sa.getValue();
-                }
+                instanceIdElement = v.get(0);
             }
 
             // instance name...
             v = e.getChildrenWithName(INSTANCE_NAME);
             if (v.size() == 1) {
-                StringData sa = (StringData) v.get(0).getValue();
-                if (sa != null) {
-                    instanceName = (String) sa.getValue();
-                }
+                instanceNameElement = v.get(0);
             }
 
             // timing element...
             v = e.getChildrenWithName(AUDIT);
             if (v.size() == 1) {
-                audit = true;
+                hasAudit = true;
             }
 
         }
-
-        return new InstanceMetadata(instanceId, instanceName, audit);
+        metadataRoot = rootElement;
     }
 
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sdrc.scpstn.collect.android.logic;
+
+import android.content.ComponentCallbacks2;
+import android.util.LruCache;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.util.externalizable.ExtUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import timber.log.Timber;
+
+/**
+ * Application-wide, memory-bounded LRU cache of {@link FormDef} templates keyed by the md5 of
+ * the form definition file.
+ *
+ * JavaRosa has no way to clone a {@link FormDef} other than externalizing it, so the cache keeps
+ * the serialized template image and every {@link #get(String)} deserializes a fresh deep copy
+ * from memory. Callers are therefore free to initialize and populate the returned form.
+ */
+public class FormDefCache {
+
+    // fraction of the VM heap the cache may use
+    private static final int HEAP_FRACTION = 8;
+
+    private static FormDefCache singleton;
+
+    private final LruCache<String, byte[]> templates;
+
+    private FormDefCache(int maxBytes) {
+        templates = new LruCache<String, byte[]>(maxBytes) {
+            @Override
+            protected int sizeOf(String formHash, byte[] image) {
+                return image.length;
+            }
+        };
+    }
+
+    public static synchronized FormDefCache getInstance() {
+        if (singleton == null) {
+            long maxBytes = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+            singleton = new FormDefCache((int) Math.min(maxBytes, Integer.MAX_VALUE));
+        }
+        return singleton;
+    }
+
+    /**
+     * @return a new copy of the cached template for this form, or null if it is not cached or
+     * the cached image cannot be read
+     */
+    public FormDef get(String formHash) {
+        if (formHash == null) {
+            return null;
+        }
+        byte[] image = templates.get(formHash);
+        if (image == null) {
+            return null;
+        }
+        FormDef fd = readFormDef(image);
+        if (fd == null) {
+            templates.remove(formHash);
+        }
+        return fd;
+    }
+
+    /**
+     * Caches an already serialized form definition (the contents of a .formdef file).
+     */
+    public void put(String formHash, byte[] image) {
+        if (formHash != null && image != null && image.length > 0) {
+            templates.put(formHash, image);
+        }
+    }
+
+    public void evict(String formHash) {
+        if (formHash != null) {
+            templates.remove(formHash);
+        }
+    }
+
+    public void clear() {
+        templates.evictAll();
+    }
+
+    /**
+     * Releases memory in response to {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            templates.trimToSize(templates.size() / 2);
+        }
+    }
+
+    /**
+     * Serializes a form definition that has not been initialized yet, in the format of a .formdef
+     * file.
+     */
+    public static byte[] writeFormDef(FormDef fd) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        fd.writeExternal(dos);
+        dos.flush();
+        return bos.toByteArray();
+    }
+
+    /**
+     * @return the form serialized in image, or null if it cannot be read
+     */
+    public static FormDef readFormDef(byte[] image) {
+        try {
+            FormDef fd = new FormDef();
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(image));
+            fd.readExternal(dis, ExtUtil.defaultPrototypes());
+            dis.close();
+            return fd;
+        } catch (Exception e) {
+            Timber.e(e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sdrc.scpstn.collect.android.logic;
+
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.GroupDef;
+import org.javarosa.core.model.IFormElement;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The structure of every level of the form shown by the hierarchy view, built once per form
+ * controller and kept until a repeat is added or removed.
+ *
+ * A level is the content of the form, or of one repeat instance, without descending into the
+ * repeats it contains: those are summarized by one entry listing their instances. Only the
+ * structure is cached. Relevance, labels and answers change with every answer, so they are read
+ * from the form when the level is shown, which keeps the cache valid while the form is filled in.
+ * Forms with jr:count repeats are the exception, as an answer can add or remove repeats there.
+ */
+public class FormHierarchy {
+
+    private final FormEntryController formEntryController;
+    private final boolean countedRepeats;
+
+    // levels by the reference, with multiplicities, of the repeat instance or the form root
+    // enclosing them
+    private final HashMap<String, List<Entry>> levels = new HashMap<String, List<Entry>>();
+
+    /**
+     * A question, or the instances of a repeat, on one level of the hierarchy.
+     */
+    public static class Entry {
+        private final FormIndex index;
+        private final int event;
+        private final List<FormIndex> instances;
+
+        Entry(FormIndex index, int event) {
+            this.index = index;
+            this.event = event;
+            instances = event == FormEntryController.EVENT_REPEAT
+                    ? new ArrayList<FormIndex>() : Collections.<FormIndex>emptyList();
+        }
+
+        public FormIndex getIndex() {
+            return index;
+        }
+
+        /**
+         * @return EVENT_QUESTION or EVENT_REPEAT
+         */
+        public int getEvent() {
+            return event;
+        }
+
+        /**
+         * @return the index of every instance of a repeat, in order
+         */
+        public List<FormIndex> getInstances() {
+            return instances;
+        }
+    }
+
+    FormHierarchy(FormEntryController formEntryController) {
+        this.formEntryController = formEntryController;
+        countedRepeats = hasCountedRepeats(formEntryController.getModel().getForm());
+    }
+
+    /**
+     * Returns a level of the hierarchy, walking the form the first time it is needed. The current
+     * index is left unchanged.
+     *
+     * @param repeatIndex the repeat instance whose content is wanted, or null for the top level of
+     *                    the form
+     */
+    public List<Entry> getLevel(FormIndex repeatIndex) {
+        FormIndex start = formEntryController.getModel().incrementIndex(repeatIndex == null
+                ? FormIndex.createBeginningOfFormIndex() : repeatIndex, true);
+        if (start.isEndOfFormIndex()) {
+            return Collections.emptyList();
+        }
+
+        String contextGroupRef = repeatIndex == null
+                ? start.getReference().getParentRef().toString(true)
+                : repeatIndex.getReference().toString(true);
+        List<Entry> level = levels.get(contextGroupRef);
+        if (level == null) {
+            level = walkLevel(start, contextGroupRef);
+            levels.put(contextGroupRef, level);
+        }
+        return level;
+    }
+
+    void repeatsChanged() {
+        levels.clear();
+    }
+
+    void answerChanged() {
+        if (countedRepeats) {
+            levels.clear();
+        }
+    }
+
+    private List<Entry> walkLevel(FormIndex start, String contextGroupRef) {
+        FormEntryModel model = formEntryController.getModel();
+        FormIndex saved = model.getFormIndex();
+        List<Entry> level = new ArrayList<Entry>();
+        try {
+            FormIndex index = start;
+            while (!index.isEndOfFormIndex()) {
+                // jumping creates the jr:count repeats exactly like stepping through the form
+                int event = formEntryController.jumpToIndex(index);
+                if (!index.getReference().toString(true).startsWith(contextGroupRef)) {
+                    break;
+                }
+
+                boolean descend = true;
+                switch (event) {
+                    case FormEntryController.EVENT_QUESTION:
+                        level.add(new Entry(index, event));
+                        break;
+                    case FormEntryController.EVENT_REPEAT:
+                        // the content of a repeat instance is a level of its own
+                        descend = false;
+                        if (index.getElementMultiplicity() == 0) {
+                            level.add(new Entry(index, event));
+                        }
+                        level.get(level.size() - 1).instances.add(index);
+                        break;
+                    default:
+                        // groups are shown flattened into their level, new repeat prompts
+                        // are not shown at all
+                        break;
+                }
+                index = model.incrementIndex(index, descend);
+            }
+        } finally {
+            formEntryController.jumpToIndex(saved);
+        }
+        return level;
+    }
+
+    private static boolean hasCountedRepeats(IFormElement element) {
+        if (element instanceof GroupDef && ((GroupDef) element).getRepeat()
+                && ((GroupDef) element).getCountReference() != null) {
+            return true;
+        }
+        if (element.getChildren() != null) {
+            for (IFormElement child : element.getChildren()) {
+                if (hasCountedRepeats(child)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
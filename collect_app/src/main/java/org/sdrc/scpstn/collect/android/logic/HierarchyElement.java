@@ -28,6 +28,7 @@ public class HierarchyElement {
     int type;
     FormIndex formIndex;
     ArrayList<HierarchyElement> children;
+    private boolean resolved = true;
 
 
     public HierarchyElement(String text1, String text2, Drawable bullet, int color, int type,
@@ -102,6 +103,19 @@ public class HierarchyElement {
     }
 
 
+    /**
+     * @return false if the texts still have to be filled in before the element is shown
+     */
+    public boolean isResolved() {
+        return resolved;
+    }
+
+
+    public void setResolved(boolean resolved) {
+        this.resolved = resolved;
+    }
+
+
     public void setColor(int color) {
         this.color = color;
     }
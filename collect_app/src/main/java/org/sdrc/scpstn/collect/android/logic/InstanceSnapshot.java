@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sdrc.scpstn.collect.android.logic;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.sdrc.scpstn.collect.android.application.Collect;
+import org.sdrc.scpstn.collect.android.database.FileHashIndex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+import timber.log.Timber;
+
+/**
+ * Binary copy of a populated main instance, written whenever an instance is saved so that
+ * reopening it can skip parsing the XML and resolving every answer against the form.
+ *
+ * A snapshot is only used while both the instance file and the form it was saved against still
+ * have the md5 hashes recorded in its header.
+ */
+public class InstanceSnapshot {
+
+    private static final int VERSION = 1;
+
+    private InstanceSnapshot() {
+    }
+
+    /**
+     * Snapshots live in the cache folder, like savepoints, so they are never picked up as
+     * submission attachments.
+     */
+    public static File getSnapshotFile(File instanceFile) {
+        return new File(Collect.CACHE_PATH, instanceFile.getName() + ".snapshot");
+    }
+
+    /**
+     * Writes a snapshot of the controller's main instance for the just saved instance file.
+     * Failures are only logged since the XML remains the authoritative copy.
+     */
+    public static void write(FormController formController, File instanceFile) {
+        File snapshot = getSnapshotFile(instanceFile);
+        String formHash = formController.getFormHash();
+        String instanceHash = FileHashIndex.getInstance().getMd5Hash(instanceFile);
+        if (formHash == null || instanceHash == null) {
+            snapshot.delete();
+            return;
+        }
+
+        File tempFile = new File(snapshot.getAbsolutePath() + ".tmp");
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            dos.writeInt(VERSION);
+            dos.writeUTF(formHash);
+            dos.writeUTF(instanceHash);
+            formController.getFormDef().getInstance().getRoot().writeExternal(dos);
+            dos.close();
+            dos = null;
+            if ((snapshot.exists() && !snapshot.delete()) || !tempFile.renameTo(snapshot)) {
+                Timber.w("Unable to replace instance snapshot %s", snapshot.getAbsolutePath());
+            }
+        } catch (Exception e) {
+            Timber.e(e, "Unable to write instance snapshot %s", snapshot.getAbsolutePath());
+            snapshot.delete();
+        } finally {
+            IOUtils.closeQuietly(dos);
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the populated instance root, or null if there is no snapshot matching both the
+     * instance file and the form
+     */
+    public static TreeElement read(File instanceFile, String formHash) {
+        File snapshot = getSnapshotFile(instanceFile);
+        if (formHash == null || !snapshot.exists()) {
+            return null;
+        }
+
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+            if (dis.readInt() != VERSION || !formHash.equals(dis.readUTF())
+                    || !dis.readUTF().equals(
+                    FileHashIndex.getInstance().getMd5Hash(instanceFile))) {
+                Timber.i("Discarding stale instance snapshot %s", snapshot.getAbsolutePath());
+                IOUtils.closeQuietly(dis);
+                dis = null;
+                snapshot.delete();
+                return null;
+            }
+            TreeElement root = new TreeElement();
+            root.readExternal(dis, ExtUtil.defaultPrototypes());
+            return root;
+        } catch (Exception e) {
+            Timber.e(e, "Unable to read instance snapshot %s", snapshot.getAbsolutePath());
+            IOUtils.closeQuietly(dis);
+            dis = null;
+            snapshot.delete();
+            return null;
+        } finally {
+            IOUtils.closeQuietly(dis);
+        }
+    }
+
+    public static void delete(File instanceFile) {
+        File snapshot = getSnapshotFile(instanceFile);
+        if (snapshot.exists() && !snapshot.delete()) {
+            Timber.w("Unable to delete instance snapshot %s", snapshot.getAbsolutePath());
+        }
+    }
+}
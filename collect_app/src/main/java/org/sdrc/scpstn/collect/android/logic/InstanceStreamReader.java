@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sdrc.scpstn.collect.android.logic;
+
+import org.javarosa.core.model.data.UncastData;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.xform.parse.XFormParser;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a saved instance into a {@link TreeElement} with a pull parser.
+ *
+ * Produces the same tree as {@link XFormParser#restoreDataModel(byte[], Class)} without reading
+ * the file into a byte array or building an intermediate kXML document, so memory use when
+ * reopening a saved form no longer grows with two extra copies of the instance.
+ */
+public class InstanceStreamReader {
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private InstanceStreamReader() {
+    }
+
+    /**
+     * @return the root of the saved instance
+     */
+    public static TreeElement readInstance(File instanceFile)
+            throws IOException, XmlPullParserException {
+        InputStream is = new BufferedInputStream(new FileInputStream(instanceFile), BUFFER_SIZE);
+        try {
+            return readInstance(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    public static TreeElement readInstance(InputStream is)
+            throws IOException, XmlPullParserException {
+        KXmlParser parser = new KXmlParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        // let the parser pick the encoding from the xml declaration (UTF-8 by default)
+        parser.setInput(is, null);
+
+        int eventType = parser.next();
+        while (eventType != XmlPullParser.START_TAG) {
+            if (eventType == XmlPullParser.END_DOCUMENT) {
+                throw new XmlPullParserException("Instance has no root element");
+            }
+            eventType = parser.next();
+        }
+        return readElement(parser, null, parser.getNamespace());
+    }
+
+    private static TreeElement readElement(XmlPullParser parser, TreeElement parent,
+                                           String docNamespace)
+            throws IOException, XmlPullParserException {
+        String name = parser.getName();
+
+        int multiplicity;
+        if (parser.getAttributeValue(XFormParser.NAMESPACE_JAVAROSA, "template") != null) {
+            multiplicity = TreeReference.INDEX_TEMPLATE;
+        } else {
+            multiplicity = parent == null ? 0 : parent.getChildMultiplicity(name);
+        }
+
+        TreeElement element = new TreeElement(name, multiplicity);
+        String namespace = parser.getNamespace();
+        if (namespace != null && !namespace.equals(docNamespace)) {
+            element.setNamespace(namespace);
+        }
+        for (int i = 0; i < parser.getAttributeCount(); i++) {
+            element.setAttribute(parser.getAttributeNamespace(i), parser.getAttributeName(i),
+                    parser.getAttributeValue(i));
+        }
+
+        // only leaves carry values; text mixed with child elements is ignored like the DOM path
+        StringBuilder text = null;
+        boolean hasElements = false;
+        int eventType = parser.next();
+        while (eventType != XmlPullParser.END_TAG) {
+            switch (eventType) {
+                case XmlPullParser.START_TAG:
+                    hasElements = true;
+                    text = null;
+                    element.addChild(readElement(parser, element, docNamespace));
+                    break;
+                case XmlPullParser.TEXT:
+                case XmlPullParser.CDSECT:
+                case XmlPullParser.ENTITY_REF:
+                    if (!hasElements) {
+                        if (text == null) {
+                            text = new StringBuilder();
+                        }
+                        text.append(parser.getText());
+                    }
+                    break;
+                case XmlPullParser.END_DOCUMENT:
+                    throw new XmlPullParserException("Unexpected end of instance inside <"
+                            + name + ">");
+                default:
+                    break;
+            }
+            eventType = parser.next();
+        }
+
+        if (!hasElements && text != null) {
+            String value = text.toString().trim();
+            if (value.length() > 0) {
+                element.setValue(new UncastData(value));
+            }
+        }
+        return element;
+    }
+}
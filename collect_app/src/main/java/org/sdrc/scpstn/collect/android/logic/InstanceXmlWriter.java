@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sdrc.scpstn.collect.android.logic;
+
+import org.javarosa.core.model.IDataReference;
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.model.xform.XFormAnswerDataSerializer;
+import org.kxml2.io.KXmlSerializer;
+import org.kxml2.kdom.Element;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes an instance as XML straight to a stream, element by element, producing the same output
+ * as {@link org.javarosa.model.xform.XFormSerializingVisitor} without first building a document
+ * and a byte array of the whole instance in memory.
+ */
+public class InstanceXmlWriter {
+
+    private final XmlSerializer serializer;
+    private final XFormAnswerDataSerializer answerSerializer = new XFormAnswerDataSerializer();
+
+    private InstanceXmlWriter(XmlSerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    /**
+     * @param ref the subtree to write, or null for the entire instance
+     */
+    public static void write(FormInstance instance, IDataReference ref, OutputStream out)
+            throws IOException {
+        TreeElement root = null;
+        if (ref != null) {
+            root = instance.resolveReference(FormInstance.unpackReference(ref));
+        }
+        // the root itself is never resolved by reference
+        if (root == null) {
+            root = instance.getRoot();
+        }
+
+        KXmlSerializer serializer = new KXmlSerializer();
+        serializer.setOutput(out, "UTF-8");
+        serializer.startDocument(null, null);
+        new InstanceXmlWriter(serializer).writeRoot(instance, root);
+        serializer.endDocument();
+        serializer.flush();
+    }
+
+    private void writeRoot(FormInstance instance, TreeElement root) throws IOException {
+        String[] prefixes = instance.getNamespacePrefixes();
+        if (prefixes != null) {
+            for (String prefix : prefixes) {
+                serializer.setPrefix(prefix, instance.getNamespaceURI(prefix));
+            }
+        }
+        String namespace = root.getNamespace();
+        if (instance.schema != null) {
+            namespace = instance.schema;
+            serializer.setPrefix("", instance.schema);
+        }
+        writeNode(root, namespace);
+    }
+
+    private void writeNode(TreeElement node, String namespace) throws IOException {
+        // templates and non-relevant nodes are not part of the instance
+        if (!node.isRelevant() || node.getMult() == TreeReference.INDEX_TEMPLATE) {
+            return;
+        }
+
+        String text = null;
+        if (node.getValue() != null) {
+            Object answer = answerSerializer.serializeAnswerData(node.getValue(),
+                    node.getDataType());
+            if (answer instanceof Element) {
+                writeElement((Element) answer, node, namespace);
+                return;
+            } else if (answer instanceof String) {
+                text = (String) answer;
+            } else {
+                throw new RuntimeException("Can't handle serialized output for "
+                        + node.getValue().toString() + ", " + answer);
+            }
+        }
+
+        serializer.startTag(namespace, node.getName());
+        writeAttributes(node);
+        if (text != null) {
+            serializer.text(text);
+        } else {
+            // all children with the same name are written en bloc
+            List<String> childNames = new ArrayList<String>();
+            for (int i = 0; i < node.getNumChildren(); i++) {
+                String childName = node.getChildAt(i).getName();
+                if (!childNames.contains(childName)) {
+                    childNames.add(childName);
+                }
+            }
+            for (String childName : childNames) {
+                int mult = node.getChildMultiplicity(childName);
+                for (int j = 0; j < mult; j++) {
+                    TreeElement child = node.getChild(childName, j);
+                    writeNode(child, child.getNamespace());
+                }
+            }
+        }
+        serializer.endTag(namespace, node.getName());
+    }
+
+    private void writeAttributes(TreeElement node) throws IOException {
+        for (int i = 0; i < node.getAttributeCount(); i++) {
+            String attributeNamespace = node.getAttributeNamespace(i);
+            String value = node.getAttributeValue(i);
+            serializer.attribute(attributeNamespace == null ? "" : attributeNamespace,
+                    node.getAttributeName(i), value == null ? "" : value);
+        }
+    }
+
+    /**
+     * Answers serialized as an element (rather than text) are written through the element itself.
+     */
+    private void writeElement(Element element, TreeElement node, String namespace)
+            throws IOException {
+        element.setName(node.getName());
+        for (int i = 0; i < node.getAttributeCount(); i++) {
+            String value = node.getAttributeValue(i);
+            element.setAttribute(node.getAttributeNamespace(i), node.getAttributeName(i),
+                    value == null ? "" : value);
+        }
+        if (namespace != null) {
+            element.setNamespace(namespace);
+        }
+        element.write(serializer);
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sdrc.scpstn.collect.android.logic;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.ExtWrapNullable;
+import org.javarosa.core.util.externalizable.ExtWrapTagged;
+import org.sdrc.scpstn.collect.android.exception.JavaRosaException;
+import org.sdrc.scpstn.collect.android.utilities.DurableFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import timber.log.Timber;
+
+/**
+ * Savepoints of an instance as a full XML snapshot (the .save file) followed by a journal of the
+ * changes made since: answers by xpath, and repeats added or removed. Taking a savepoint only
+ * appends the records of the latest changes, so its cost no longer grows with the instance. Once
+ * the journal gets large compared to the snapshot, the next savepoint writes a new snapshot and
+ * starts an empty journal.
+ *
+ * The journal header records the length and CRC32 of the snapshot it applies to, so a journal left
+ * behind by a crash in the middle of a compaction is ignored. The records of each savepoint are
+ * appended as one block with its own CRC32, so replaying stops at a block torn by a crash during
+ * an append and the instance is restored as of one of the savepoints taken.
+ *
+ * Changes are recorded on the thread changing the form and written to disk on the savepoint
+ * thread, see {@link FormController#takeSavepoint()}.
+ */
+public class SavepointJournal {
+
+    private static final int VERSION = 1;
+
+    private static final byte ANSWER = 1;
+    private static final byte NEW_REPEAT = 2;
+    private static final byte DELETE_REPEAT = 3;
+
+    // a journal smaller than this is always cheaper to append to than to compact
+    private static final long MIN_COMPACTION_BYTES = 64 * 1024;
+
+    private static final int SNAPSHOT_BUFFER_SIZE = 64 * 1024;
+
+    private final File savepointFile;
+    private final File journalFile;
+    private final DurableFile durableSavepointFile;
+
+    // length-prefixed records of the changes not written to the journal yet
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    // changes are only recorded once there is a snapshot for them to apply to
+    private boolean started;
+    private long snapshotLength;
+    private long journalLength;
+
+    /**
+     * What a savepoint has to write: either a new snapshot, already streamed to the temporary file
+     * that replaces the savepoint, or the records to append. The snapshot is streamed rather than
+     * held in memory so that the heap a savepoint needs does not grow with the instance.
+     */
+    public static class Checkpoint {
+        private final FileOutputStream snapshot;
+        private final long snapshotLength;
+        private final long snapshotCrc;
+        private final byte[] records;
+
+        private Checkpoint(FileOutputStream snapshot, long snapshotLength, long snapshotCrc,
+                byte[] records) {
+            this.snapshot = snapshot;
+            this.snapshotLength = snapshotLength;
+            this.snapshotCrc = snapshotCrc;
+            this.records = records;
+        }
+
+        public boolean isSnapshot() {
+            return snapshot != null;
+        }
+    }
+
+    SavepointJournal(File savepointFile) {
+        this.savepointFile = savepointFile;
+        journalFile = getJournalFile(savepointFile);
+        durableSavepointFile = new DurableFile(savepointFile);
+    }
+
+    public static File getJournalFile(File savepointFile) {
+        return new File(savepointFile.getAbsolutePath() + ".journal");
+    }
+
+    File getSavepointFile() {
+        return savepointFile;
+    }
+
+    /**
+     * Deletes the savepoint of an instance together with its journal.
+     */
+    public static void delete(File savepointFile) {
+        File journal = getJournalFile(savepointFile);
+        if (journal.exists() && !journal.delete()) {
+            Timber.w("Unable to delete savepoint journal %s", journal.getAbsolutePath());
+        }
+        if (savepointFile.exists() && !savepointFile.delete()) {
+            Timber.w("Unable to delete savepoint %s", savepointFile.getAbsolutePath());
+        }
+    }
+
+    synchronized void recordAnswer(String xpath, IAnswerData data) {
+        if (!started) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeByte(ANSWER);
+            dos.writeUTF(xpath);
+            ExtUtil.write(dos, new ExtWrapNullable(data == null ? null : new ExtWrapTagged(data)));
+            dos.flush();
+            appendRecord(bos.toByteArray());
+        } catch (Exception e) {
+            // the next savepoint will be a full snapshot instead
+            Timber.e(e, "Unable to journal the answer of %s", xpath);
+            started = false;
+        }
+    }
+
+    /**
+     * @param xpath the xpath of the new repeat prompt the repeat was added at
+     */
+    synchronized void recordNewRepeat(String xpath) {
+        recordRepeat(NEW_REPEAT, xpath);
+    }
+
+    /**
+     * @param xpath the xpath of the repeat instance that was removed
+     */
+    synchronized void recordDeleteRepeat(String xpath) {
+        recordRepeat(DELETE_REPEAT, xpath);
+    }
+
+    private void recordRepeat(byte type, String xpath) {
+        if (!started) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeByte(type);
+            dos.writeUTF(xpath);
+            dos.flush();
+            appendRecord(bos.toByteArray());
+        } catch (IOException e) {
+            Timber.e(e, "Unable to journal the repeat %s", xpath);
+            started = false;
+        }
+    }
+
+    private void appendRecord(byte[] record) throws IOException {
+        DataOutputStream dos = new DataOutputStream(pending);
+        dos.writeInt(record.length);
+        dos.write(record);
+        dos.flush();
+    }
+
+    /**
+     * @return true if the next savepoint has to be a full snapshot of the instance
+     */
+    synchronized boolean needsSnapshot() {
+        return !started || !savepointFile.exists() || !journalFile.exists()
+                || journalLength + pending.size()
+                > Math.max(MIN_COMPACTION_BYTES, snapshotLength / 2);
+    }
+
+    /**
+     * Starts a new snapshot, streaming the instance to a temporary file that replaces the
+     * savepoint once the checkpoint is written. Must be called while holding the lock the form's
+     * changes are made under, so that no change is both in the snapshot and in the journal. Only
+     * the serialization happens under the lock: the writes go to the page cache in large buffers,
+     * and the sync and rename, which are what stall on flash storage, wait for
+     * {@link #write(Checkpoint)}.
+     */
+    synchronized Checkpoint takeSnapshot(FormInstance instance) throws IOException {
+        pending.reset();
+        started = false;
+
+        FileOutputStream fos = durableSavepointFile.startWrite();
+        CRC32 crc = new CRC32();
+        try {
+            OutputStream os = new BufferedOutputStream(new CheckedOutputStream(fos, crc),
+                    SNAPSHOT_BUFFER_SIZE);
+            InstanceXmlWriter.write(instance, null, os);
+            os.flush();
+        } catch (IOException | RuntimeException e) {
+            durableSavepointFile.failWrite(fos);
+            throw e;
+        }
+
+        started = true;
+        return new Checkpoint(fos, fos.getChannel().position(), crc.getValue(), null);
+    }
+
+    synchronized Checkpoint takeRecords() {
+        byte[] records = pending.toByteArray();
+        pending.reset();
+        return new Checkpoint(null, 0, 0, records);
+    }
+
+    /**
+     * Forgets the savepoint after the instance has been saved, so that the next savepoint starts
+     * with a new snapshot.
+     */
+    synchronized void discard() {
+        pending.reset();
+        started = false;
+        delete(savepointFile);
+    }
+
+    /**
+     * Writes a checkpoint to disk. Checkpoints have to be written in the order they were taken.
+     */
+    public void write(Checkpoint checkpoint) throws IOException {
+        try {
+            if (checkpoint.isSnapshot()) {
+                writeSnapshot(checkpoint);
+            } else if (checkpoint.records.length > 0) {
+                appendRecords(checkpoint.records);
+            }
+        } catch (IOException e) {
+            if (checkpoint.isSnapshot()) {
+                durableSavepointFile.failWrite(checkpoint.snapshot);
+            }
+            synchronized (this) {
+                started = false;
+            }
+            throw e;
+        }
+    }
+
+    private void writeSnapshot(Checkpoint checkpoint) throws IOException {
+        // the snapshot is replaced first: a crash before the new journal is in place leaves a
+        // journal whose header does not match the snapshot, which is then ignored
+        durableSavepointFile.finishWrite(checkpoint.snapshot);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(header);
+        dos.writeInt(VERSION);
+        dos.writeLong(checkpoint.snapshotLength);
+        dos.writeLong(checkpoint.snapshotCrc);
+        dos.flush();
+        DurableFile.write(journalFile, header.toByteArray());
+
+        synchronized (this) {
+            snapshotLength = checkpoint.snapshotLength;
+            journalLength = header.size();
+        }
+    }
+
+    private void appendRecords(byte[] records) throws IOException {
+        if (!journalFile.exists()) {
+            throw new IOException("Savepoint journal " + journalFile.getAbsolutePath()
+                    + " is missing");
+        }
+        ByteArrayOutputStream block = new ByteArrayOutputStream(records.length + 8);
+        DataOutputStream dos = new DataOutputStream(block);
+        dos.writeInt(records.length);
+        dos.writeInt((int) crc32(records));
+        dos.write(records);
+        dos.flush();
+
+        FileOutputStream fos = new FileOutputStream(journalFile, true);
+        try {
+            block.writeTo(fos);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        synchronized (this) {
+            journalLength += block.size();
+        }
+    }
+
+    /**
+     * Re-applies the journal of the savepoint the form controller's instance was just loaded from.
+     * Replaying stops at the first block that is incomplete, or record that cannot be applied.
+     *
+     * @return the number of changes replayed
+     */
+    public static int replay(File savepointFile, FormController formController) {
+        File journal = getJournalFile(savepointFile);
+        if (!journal.exists()) {
+            return 0;
+        }
+
+        int replayed = 0;
+        FormIndex saved = formController.getFormIndex();
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+            if (dis.readInt() != VERSION || dis.readLong() != savepointFile.length()
+                    || dis.readLong() != crc32(savepointFile)) {
+                Timber.i("Ignoring savepoint journal %s of an older snapshot",
+                        journal.getAbsolutePath());
+                return 0;
+            }
+
+            byte[] block;
+            replay:
+            while ((block = readBlock(dis)) != null) {
+                DataInputStream records = new DataInputStream(new ByteArrayInputStream(block));
+                while (records.available() > 0) {
+                    byte[] record = new byte[records.readInt()];
+                    records.readFully(record);
+                    if (!apply(record, formController)) {
+                        break replay;
+                    }
+                    replayed++;
+                }
+            }
+        } catch (Exception e) {
+            Timber.e(e, "Unable to replay savepoint journal %s", journal.getAbsolutePath());
+        } finally {
+            IOUtils.closeQuietly(dis);
+            formController.jumpToIndex(saved);
+        }
+        Timber.i("Replayed %d changes from %s", replayed, journal.getAbsolutePath());
+        return replayed;
+    }
+
+    /**
+     * @return the records of the next savepoint, or null at the end of the journal or at a torn
+     * block
+     */
+    private static byte[] readBlock(DataInputStream dis) throws IOException {
+        try {
+            int length = dis.readInt();
+            int crc = dis.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] block = new byte[length];
+            dis.readFully(block);
+            return crc32(block) == (crc & 0xffffffffL) ? block : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static boolean apply(byte[] record, FormController formController)
+            throws IOException, DeserializationException, JavaRosaException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = dis.readByte();
+        String xpath = dis.readUTF();
+        FormIndex index = formController.getIndexFromXPath(xpath);
+        if (index == null) {
+            Timber.w("Savepoint journal refers to %s, which is not in the form", xpath);
+            return false;
+        }
+
+        switch (type) {
+            case ANSWER:
+                IAnswerData data = (IAnswerData) ExtUtil.read(dis,
+                        new ExtWrapNullable(new ExtWrapTagged()), ExtUtil.defaultPrototypes());
+                formController.saveAnswer(index, data);
+                return true;
+            case NEW_REPEAT:
+                formController.jumpToIndex(index);
+                formController.newRepeat();
+                return true;
+            case DELETE_REPEAT:
+                formController.jumpToIndex(index);
+                formController.deleteRepeat();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static long crc32(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static long crc32(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+        return crc.getValue();
+    }
+}
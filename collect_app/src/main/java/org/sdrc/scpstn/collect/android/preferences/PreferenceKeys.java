@@ -12,6 +12,7 @@ public final class PreferenceKeys {
     public static final String KEY_SPLASH_PATH              = "splashPath";
     public static final String KEY_FONT_SIZE                = "font_size";
     public static final String KEY_DELETE_AFTER_SEND        = "delete_send";
+    public static final String KEY_UPLOAD_CONCURRENCY       = "upload_concurrency";
     public static final String KEY_ANALYTICS                = "analytics";
     public static final String KEY_INSTANCE_SYNC            = "instance_sync";
     public static final String KEY_APP_LANGUAGE             = "app_language";
@@ -60,6 +61,7 @@ public final class PreferenceKeys {
 
     public static final String KEY_NAVIGATION               = "navigation";
     public static final String KEY_CONSTRAINT_BEHAVIOR      = "constraint_behavior";
+    public static final String KEY_LAZY_EXTERNAL_DATA       = "lazy_external_data";
 
     // MAP SPECIFIC
 
@@ -78,6 +80,7 @@ public final class PreferenceKeys {
         hashMap.put(KEY_SPLASH_PATH,                Collect.getInstance().getString(R.string.default_splash_path));
         hashMap.put(KEY_FONT_SIZE,                  "21");
         hashMap.put(KEY_DELETE_AFTER_SEND,          false);
+        hashMap.put(KEY_UPLOAD_CONCURRENCY,         "2");
         hashMap.put(KEY_ANALYTICS,                  true);
         hashMap.put(KEY_INSTANCE_SYNC,              true);
         hashMap.put(KEY_APP_LANGUAGE,               "");
@@ -93,6 +96,7 @@ public final class PreferenceKeys {
         hashMap.put(KEY_SUBMISSION_URL,             Collect.getInstance().getString(R.string.default_odk_submission));
         hashMap.put(KEY_NAVIGATION,                 "swipe");
         hashMap.put(KEY_CONSTRAINT_BEHAVIOR,        "on_swipe");
+        hashMap.put(KEY_LAZY_EXTERNAL_DATA,         false);
         hashMap.put(KEY_COMPLETED_DEFAULT,          true);
         hashMap.put(KEY_MAP_SDK,                    "google_maps");
         hashMap.put(KEY_MAP_BASEMAP,                "streets");
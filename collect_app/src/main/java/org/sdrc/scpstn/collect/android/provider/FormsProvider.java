@@ -27,10 +27,13 @@ import android.text.TextUtils;
 
 import org.sdrc.scpstn.collect.android.R;
 import org.sdrc.scpstn.collect.android.application.Collect;
+import org.sdrc.scpstn.collect.android.database.FileHashIndex;
 import org.sdrc.scpstn.collect.android.database.ItemsetDbAdapter;
 import org.sdrc.scpstn.collect.android.database.ODKSQLiteOpenHelper;
+import org.sdrc.scpstn.collect.android.logic.BlankInstanceCache;
+import org.sdrc.scpstn.collect.android.logic.FormDefCache;
 import org.sdrc.scpstn.collect.android.provider.FormsProviderAPI.FormsColumns;
-import org.sdrc.scpstn.collect.android.utilities.FileUtils;
+import org.sdrc.scpstn.collect.android.utilities.EncryptedFormCache;
 import org.sdrc.scpstn.collect.android.utilities.MediaUtils;
 
 import java.io.File;
@@ -371,7 +374,7 @@ public class FormsProvider extends ContentProvider {
         if (values.containsKey(FormsColumns.MD5_HASH)) {
             values.remove(FormsColumns.MD5_HASH);
         }
-        String md5 = FileUtils.getMd5Hash(form);
+        String md5 = FileHashIndex.getInstance().getMd5Hash(form);
         values.put(FormsColumns.MD5_HASH, md5);
 
         if (!values.containsKey(FormsColumns.JRCACHE_FILE_PATH)) {
@@ -423,6 +426,15 @@ public class FormsProvider extends ContentProvider {
         throw new SQLException("Failed to insert row into " + uri);
     }
 
+    /**
+     * Drops the in-memory copies of a form version that is being deleted or replaced.
+     */
+    private void evictCachedForm(String formHash) {
+        FormDefCache.getInstance().evict(formHash);
+        BlankInstanceCache.getInstance().evict(formHash);
+        EncryptedFormCache.getInstance().evict(formHash);
+    }
+
     private void deleteFileOrDir(String fileName) {
         File file = new File(fileName);
         if (file.exists()) {
@@ -446,6 +458,8 @@ public class FormsProvider extends ContentProvider {
                     Timber.i("attempting to delete file: %s", f.getAbsolutePath());
                     f.delete();
                 }
+            } else {
+                FileHashIndex.getInstance().forget(file.getAbsolutePath());
             }
             file.delete();
             Timber.i("attempting to delete file: %s", file.getAbsolutePath());
@@ -470,6 +484,8 @@ public class FormsProvider extends ContentProvider {
                     if (del.getCount() > 0) {
                         del.moveToFirst();
                         do {
+                            evictCachedForm(del.getString(
+                                    del.getColumnIndex(FormsColumns.MD5_HASH)));
                             deleteFileOrDir(del
                                     .getString(del
                                             .getColumnIndex(FormsColumns.JRCACHE_FILE_PATH)));
@@ -500,6 +516,8 @@ public class FormsProvider extends ContentProvider {
                     if (c.getCount() > 0) {
                         c.moveToFirst();
                         do {
+                            evictCachedForm(c.getString(
+                                    c.getColumnIndex(FormsColumns.MD5_HASH)));
                             deleteFileOrDir(c.getString(c
                                     .getColumnIndex(FormsColumns.JRCACHE_FILE_PATH)));
                             String formFilePath = c.getString(c
@@ -566,7 +584,7 @@ public class FormsProvider extends ContentProvider {
                     String formFile = values
                             .getAsString(FormsColumns.FORM_FILE_PATH);
                     values.put(FormsColumns.MD5_HASH,
-                            FileUtils.getMd5Hash(new File(formFile)));
+                            FileHashIndex.getInstance().getMd5Hash(new File(formFile)));
                 }
 
                 Cursor c = null;
@@ -592,6 +610,8 @@ public class FormsProvider extends ContentProvider {
 
                                 // either way, delete the old cache because we'll
                                 // calculate a new one.
+                                evictCachedForm(c.getString(
+                                        c.getColumnIndex(FormsColumns.MD5_HASH)));
                                 deleteFileOrDir(c
                                         .getString(c
                                                 .getColumnIndex(FormsColumns.JRCACHE_FILE_PATH)));
@@ -662,11 +682,12 @@ public class FormsProvider extends ContentProvider {
 
                             // we're updating our file, so update the md5
                             // and get rid of the cache (doesn't harm anything)
+                            evictCachedForm(update.getString(
+                                    update.getColumnIndex(FormsColumns.MD5_HASH)));
                             deleteFileOrDir(update
                                     .getString(update
                                             .getColumnIndex(FormsColumns.JRCACHE_FILE_PATH)));
-                            String newMd5 = FileUtils
-                                    .getMd5Hash(new File(formFile));
+                            String newMd5 = FileHashIndex.getInstance().getMd5Hash(new File(formFile));
                             values.put(FormsColumns.MD5_HASH, newMd5);
                             values.put(FormsColumns.JRCACHE_FILE_PATH,
                                     Collect.CACHE_PATH + File.separator + newMd5
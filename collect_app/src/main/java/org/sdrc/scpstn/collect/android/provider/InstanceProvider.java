@@ -15,8 +15,11 @@
 package org.sdrc.scpstn.collect.android.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -28,11 +31,13 @@ import android.text.TextUtils;
 import org.sdrc.scpstn.collect.android.R;
 import org.sdrc.scpstn.collect.android.application.Collect;
 import org.sdrc.scpstn.collect.android.database.ODKSQLiteOpenHelper;
+import org.sdrc.scpstn.collect.android.logic.InstanceSnapshot;
 import org.sdrc.scpstn.collect.android.provider.InstanceProviderAPI.InstanceColumns;
 import org.sdrc.scpstn.collect.android.utilities.MediaUtils;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Locale;
@@ -118,6 +123,9 @@ public class InstanceProvider extends ContentProvider {
 
     private DatabaseHelper databaseHelper;
 
+    // set while a batch is applied on this thread, to notify observers once at its end
+    private final ThreadLocal<Boolean> inBatch = new ThreadLocal<Boolean>();
+
     private DatabaseHelper getDbHelper() {
         // wrapper to test and reset/set the dbHelper based upon the attachment state of the device.
         try {
@@ -225,7 +233,7 @@ public class InstanceProvider extends ContentProvider {
         long rowId = db.insert(INSTANCES_TABLE_NAME, null, values);
         if (rowId > 0) {
             Uri instanceUri = ContentUris.withAppendedId(InstanceColumns.CONTENT_URI, rowId);
-            getContext().getContentResolver().notifyChange(instanceUri, null);
+            notifyChange(instanceUri);
             Collect.getInstance().getActivityLogger().logActionParam(this, "insert",
                     instanceUri.toString(), values.getAsString(InstanceColumns.INSTANCE_FILE_PATH));
             return instanceUri;
@@ -234,6 +242,62 @@ public class InstanceProvider extends ContentProvider {
         throw new SQLException("Failed to insert row into " + uri);
     }
 
+    /**
+     * Inserts all the rows in a single transaction, notifying observers of the instances once
+     * rather than for every row.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = getDbHelper().getWritableDatabase();
+        boolean successful = false;
+        inBatch.set(Boolean.TRUE);
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                insert(uri, value);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            inBatch.remove();
+        }
+        if (successful && values.length > 0) {
+            notifyChange(InstanceColumns.CONTENT_URI);
+        }
+        return values.length;
+    }
+
+    /**
+     * Applies all the operations in a single transaction, notifying observers of the instances
+     * once rather than for every operation. Open list cursors are requeried once per batch.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = getDbHelper().getWritableDatabase();
+        ContentProviderResult[] results;
+        inBatch.set(Boolean.TRUE);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            inBatch.remove();
+        }
+        if (!operations.isEmpty()) {
+            notifyChange(InstanceColumns.CONTENT_URI);
+        }
+        return results;
+    }
+
+    private void notifyChange(Uri uri) {
+        if (inBatch.get() == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
     private String getDisplaySubtext(String state, Date date) {
         if (state == null) {
             return new SimpleDateFormat(getContext().getString(R.string.added_on_date_at_time),
@@ -241,6 +305,9 @@ public class InstanceProvider extends ContentProvider {
         } else if (InstanceProviderAPI.STATUS_INCOMPLETE.equalsIgnoreCase(state)) {
             return new SimpleDateFormat(getContext().getString(R.string.saved_on_date_at_time),
                     Locale.getDefault()).format(date);
+        } else if (InstanceProviderAPI.STATUS_FINALIZING.equalsIgnoreCase(state)) {
+            return new SimpleDateFormat(getContext().getString(R.string.finalizing_on_date_at_time),
+                    Locale.getDefault()).format(date);
         } else if (InstanceProviderAPI.STATUS_COMPLETE.equalsIgnoreCase(state)) {
             return new SimpleDateFormat(getContext().getString(R.string.finalized_on_date_at_time),
                     Locale.getDefault()).format(date);
@@ -309,6 +376,7 @@ public class InstanceProvider extends ContentProvider {
                                     instanceFile);
                             File instanceDir = (new File(instanceFile)).getParentFile();
                             deleteAllFilesInDirectory(instanceDir);
+                            InstanceSnapshot.delete(new File(instanceFile));
                         } while (del.moveToNext());
                     }
                 } finally {
@@ -336,6 +404,7 @@ public class InstanceProvider extends ContentProvider {
                                     instanceFile);
                             File instanceDir = (new File(instanceFile)).getParentFile();
                             deleteAllFilesInDirectory(instanceDir);
+                            InstanceSnapshot.delete(new File(instanceFile));
                         } while (c.moveToNext());
                     }
                 } finally {
@@ -363,7 +432,7 @@ public class InstanceProvider extends ContentProvider {
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return count;
     }
 
@@ -420,7 +489,7 @@ public class InstanceProvider extends ContentProvider {
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return count;
     }
 
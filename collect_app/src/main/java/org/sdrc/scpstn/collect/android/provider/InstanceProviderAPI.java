@@ -31,6 +31,8 @@ public final class InstanceProviderAPI {
 
     // status for instances
     public static final String STATUS_INCOMPLETE = "incomplete";
+    // saved as complete, waiting for its submission to be packaged
+    public static final String STATUS_FINALIZING = "finalizing";
     public static final String STATUS_COMPLETE = "complete";
     public static final String STATUS_SUBMITTED = "submitted";
     public static final String STATUS_SUBMISSION_FAILED = "submissionFailed";
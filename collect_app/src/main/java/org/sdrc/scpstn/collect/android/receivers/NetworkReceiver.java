@@ -273,6 +273,11 @@ public class NetworkReceiver extends BroadcastReceiver implements InstanceUpload
         // do nothing
     }
 
+    @Override
+    public void fileProgressUpdate(String fileName, long bytesSent, long fileSize) {
+        // do nothing
+    }
+
 
     @Override
     public void authRequest(Uri url, HashMap<String, String> doneSoFar) {
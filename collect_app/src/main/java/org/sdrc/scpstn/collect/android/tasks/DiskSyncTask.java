@@ -24,6 +24,7 @@ import android.os.AsyncTask;
 import org.sdrc.scpstn.collect.android.R;
 import org.sdrc.scpstn.collect.android.application.Collect;
 import org.sdrc.scpstn.collect.android.dao.FormsDao;
+import org.sdrc.scpstn.collect.android.database.FileHashIndex;
 import org.sdrc.scpstn.collect.android.listeners.DiskSyncListener;
 import org.sdrc.scpstn.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.sdrc.scpstn.collect.android.utilities.FileUtils;
@@ -120,7 +121,7 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
                             // remove it from the list of forms (we only want forms
                             // we haven't added at the end)
                             formsToAdd.remove(sqlFile);
-                            String md5Computed = FileUtils.getMd5Hash(sqlFile);
+                            String md5Computed = FileHashIndex.getInstance().getMd5Hash(sqlFile);
                             if (md5Computed == null || md5 == null || !md5Computed.equals(md5)) {
                                 // Probably someone overwrite the file on the sdcard
                                 // So re-parse it and update it's information
@@ -175,6 +176,7 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
                             Collect.getInstance().getContentResolver()
                                     .update(updateUri, values, null, null);
                     Timber.i("[%d] %d records successfully updated", instance, count);
+                    FormPrecompiler.getInstance().enqueue(formDefFile);
                 }
                 uriToUpdate.clear();
 
@@ -213,6 +215,7 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
                         // insert failures are OK and expected if multiple
                         // DiskSync scanners are active.
                         formsDao.saveForm(values);
+                        FormPrecompiler.getInstance().enqueue(formDefFile);
                     } catch (SQLException e) {
                         Timber.i("[%d] %s", instance, e.toString());
                     }
@@ -42,6 +42,7 @@ import org.opendatakit.httpclientandroidlib.client.methods.HttpGet;
 import org.opendatakit.httpclientandroidlib.protocol.HttpContext;
 import org.sdrc.scpstn.collect.android.R;
 import org.sdrc.scpstn.collect.android.application.Collect;
+import org.sdrc.scpstn.collect.android.database.FileHashIndex;
 import org.sdrc.scpstn.collect.android.exception.TaskCancelledException;
 import org.sdrc.scpstn.collect.android.listeners.FormDownloaderListener;
 import org.sdrc.scpstn.collect.android.logic.FormDetails;
@@ -167,6 +168,9 @@ public class DownloadFormsTask extends
 
                         FileUtils.moveMediaFiles(tempMediaPath, formMediaPath);
                     }
+
+                    // parse the form now so that the first open reads the binary .formdef
+                    FormPrecompiler.getInstance().enqueue(fileResult.getFile());
                 } catch (IOException e) {
                     Log.e(t, e.getMessage());
 
@@ -349,7 +353,7 @@ public class DownloadFormsTask extends
                 FormsColumns.FORM_FILE_PATH
         };
         String[] selectionArgs = {
-                FileUtils.getMd5Hash(f)
+                FileHashIndex.getInstance().getMd5Hash(f)
         };
         String selection = FormsColumns.MD5_HASH + "=?";
 
@@ -706,7 +710,7 @@ public class DownloadFormsTask extends
                 if (!finalMediaFile.exists()) {
                     downloadFile(tempMediaFile, toDownload.downloadUrl);
                 } else {
-                    String currentFileHash = FileUtils.getMd5Hash(finalMediaFile);
+                    String currentFileHash = FileHashIndex.getInstance().getMd5Hash(finalMediaFile);
                     String downloadFileHash = toDownload.hash.substring(MD5_COLON_PREFIX.length());
 
                     if (!currentFileHash.contentEquals(downloadFileHash)) {
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sdrc.scpstn.collect.android.tasks;
+
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.app.NotificationCompat;
+
+import org.apache.commons.io.IOUtils;
+import org.sdrc.scpstn.collect.android.R;
+import org.sdrc.scpstn.collect.android.activities.NotificationActivity;
+import org.sdrc.scpstn.collect.android.application.Collect;
+import org.sdrc.scpstn.collect.android.dao.InstancesDao;
+import org.sdrc.scpstn.collect.android.exception.EncryptionException;
+import org.sdrc.scpstn.collect.android.logic.FormController.InstanceMetadata;
+import org.sdrc.scpstn.collect.android.logic.InstanceSnapshot;
+import org.sdrc.scpstn.collect.android.provider.InstanceProviderAPI;
+import org.sdrc.scpstn.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.sdrc.scpstn.collect.android.utilities.DurableFile;
+import org.sdrc.scpstn.collect.android.utilities.EncryptionUtils;
+import org.sdrc.scpstn.collect.android.utilities.EncryptionUtils.EncryptedFormInformation;
+import org.sdrc.scpstn.collect.android.utilities.ToastUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import timber.log.Timber;
+
+/**
+ * Packages finalized instances for the server on a worker thread, so that finalizing a form only
+ * waits for the instance itself to be saved. {@link SaveToDiskTask} writes a job file next to the
+ * instance and marks it {@link InstanceProviderAPI#STATUS_FINALIZING}; the queue then builds the
+ * submission.xml, encrypts the submission if the form requires it and marks the instance
+ * complete. Instances are only offered for upload once they are complete.
+ *
+ * The status and the job file are the persistent queue: jobs interrupted by the process being
+ * killed are started over by {@link #resumePending()} when the application starts. Every step
+ * can be repeated until the instance is marked complete, which happens before the plaintext
+ * files are removed. The instance is only marked complete if it is still being finalized: one
+ * saved again as incomplete in the meantime keeps that status and its files.
+ */
+public class FinalizeQueue {
+
+    // hidden, so that they are neither encrypted nor uploaded as attachments
+    private static final String JOB_FILE = ".finalize";
+    private static final String PENDING_SUBMISSION_FILE = ".submission.xml";
+
+    private static final String INSTANCE_ID = "instanceID";
+    private static final String FORM_HASH = "formHash";
+    private static final String ENTIRE_FORM = "entireForm";
+
+    private static FinalizeQueue singleton;
+
+    private final ExecutorService executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // instances queued or being finalized
+    private final Set<Uri> queued = Collections.synchronizedSet(new HashSet<Uri>());
+
+    private FinalizeQueue() {
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "FinalizeQueue");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static synchronized FinalizeQueue getInstance() {
+        if (singleton == null) {
+            singleton = new FinalizeQueue();
+        }
+        return singleton;
+    }
+
+    /**
+     * The part of the instance to submit when it is not the entire form, written when the
+     * instance is finalized since only the form controller can build it.
+     */
+    public static File getPendingSubmissionFile(File instanceXml) {
+        return new File(instanceXml.getParentFile(), PENDING_SUBMISSION_FILE);
+    }
+
+    /**
+     * Writes what the worker needs to finalize the instance without its form controller.
+     *
+     * @param entireForm false if the submission is written to
+     *                   {@link #getPendingSubmissionFile(File)}
+     */
+    public static void writeJob(File instanceXml, String instanceId, String formHash,
+            boolean entireForm) throws IOException {
+        Properties job = new Properties();
+        if (instanceId != null) {
+            job.setProperty(INSTANCE_ID, instanceId);
+        }
+        if (formHash != null) {
+            job.setProperty(FORM_HASH, formHash);
+        }
+        job.setProperty(ENTIRE_FORM, Boolean.toString(entireForm));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        job.store(bos, null);
+        DurableFile.write(getJobFile(instanceXml), bos.toByteArray());
+        // the attachments a server acknowledged belong to the previous submission
+        UploadLedger.delete(instanceXml.getParentFile());
+    }
+
+    /**
+     * Removes the job of an instance, after it was finalized or when it is saved again as
+     * incomplete.
+     */
+    public static void deleteJob(File instanceXml) {
+        deleteQuietly(getJobFile(instanceXml));
+        deleteQuietly(getPendingSubmissionFile(instanceXml));
+    }
+
+    static File getJobFile(File instanceXml) {
+        return new File(instanceXml.getParentFile(), JOB_FILE);
+    }
+
+    public void enqueue(final Uri instanceUri) {
+        if (!queued.add(instanceUri)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    finalizeInstance(instanceUri);
+                } finally {
+                    queued.remove(instanceUri);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues the instances whose finalization was interrupted.
+     */
+    public void resumePending() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Cursor c = null;
+                try {
+                    c = new InstancesDao().getInstancesCursor(null,
+                            InstanceColumns.STATUS + "=?",
+                            new String[]{InstanceProviderAPI.STATUS_FINALIZING}, null);
+                    while (c != null && c.moveToNext()) {
+                        enqueue(ContentUris.withAppendedId(InstanceColumns.CONTENT_URI,
+                                c.getLong(c.getColumnIndex(InstanceColumns._ID))));
+                    }
+                } catch (Exception e) {
+                    Timber.e(e, "Unable to resume finalizing instances");
+                } finally {
+                    if (c != null) {
+                        c.close();
+                    }
+                }
+            }
+        });
+    }
+
+    private void finalizeInstance(Uri uri) {
+        File instanceXml = null;
+        String displayName = null;
+        Cursor c = null;
+        try {
+            c = Collect.getInstance().getContentResolver().query(uri, null, null, null, null);
+            if (c == null || !c.moveToFirst()) {
+                Timber.w("Instance %s was deleted before it was finalized", uri);
+                return;
+            }
+            if (!InstanceProviderAPI.STATUS_FINALIZING.equals(
+                    c.getString(c.getColumnIndex(InstanceColumns.STATUS)))) {
+                return;
+            }
+            instanceXml = new File(c.getString(
+                    c.getColumnIndex(InstanceColumns.INSTANCE_FILE_PATH)));
+            displayName = c.getString(c.getColumnIndex(InstanceColumns.DISPLAY_NAME));
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+
+        try {
+            if (packageSubmission(uri, instanceXml)) {
+                deleteJob(instanceXml);
+                Collect.getInstance().sendBroadcast(
+                        new Intent("org.sdrc.scpstn.collect.android.FormSaved"));
+            }
+        } catch (Exception e) {
+            Timber.e(e, "Unable to finalize %s", instanceXml.getAbsolutePath());
+
+            // the instance is still intact, so it can be opened and finalized again; one that
+            // is already complete or saved again keeps its files
+            if (updateInstanceDatabase(uri, InstanceProviderAPI.STATUS_INCOMPLETE, true)) {
+                discardPackage(instanceXml);
+            }
+            deleteJob(instanceXml);
+
+            // the form may have been closed long ago, so the toast alone is easily missed
+            final String message = Collect.getInstance().getString(
+                    e instanceof EncryptionException ? R.string.encryption_error_message
+                            : R.string.finalizing_failed, e.getMessage());
+            notifyFailure(uri, displayName, message);
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    ToastUtils.showLongToast(message);
+                }
+            });
+        }
+    }
+
+    private static void notifyFailure(Uri uri, String displayName, String message) {
+        Intent notifyIntent = new Intent(Collect.getInstance(), NotificationActivity.class);
+        notifyIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        notifyIntent.putExtra(NotificationActivity.NOTIFICATION_KEY, message);
+
+        PendingIntent pendingNotify = PendingIntent.getActivity(Collect.getInstance(), 0,
+                notifyIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(Collect.getInstance())
+                .setSmallIcon(R.mipmap.notes)
+                .setContentTitle(displayName)
+                .setContentIntent(pendingNotify)
+                .setContentText(message)
+                .setAutoCancel(true);
+
+        NotificationManager notificationManager = (NotificationManager) Collect.getInstance()
+                .getSystemService(Context.NOTIFICATION_SERVICE);
+        notificationManager.notify(uri.toString(), 0, builder.build());
+    }
+
+    /**
+     * @return false if the instance was saved again as incomplete while it was being packaged,
+     * in which case it is left as it is.
+     */
+    boolean packageSubmission(Uri uri, File instanceXml) throws Exception {
+        Properties job = readJob(instanceXml);
+        boolean canEditAfterCompleted = Boolean.parseBoolean(job.getProperty(ENTIRE_FORM));
+        boolean isEncrypted = false;
+
+        // build a submission.xml to hold the data being submitted
+        // and (if appropriate) encrypt the files on the side
+        File submissionXml = new File(instanceXml.getParentFile(), "submission.xml");
+        copy(canEditAfterCompleted ? instanceXml : getPendingSubmissionFile(instanceXml),
+                submissionXml);
+
+        // see if the form is encrypted and we can encrypt it...
+        EncryptedFormInformation formInfo = EncryptionUtils.getEncryptedFormInformation(uri,
+                job.getProperty(FORM_HASH),
+                new InstanceMetadata(job.getProperty(INSTANCE_ID), null, false));
+        if (formInfo != null) {
+            // if we are encrypting, the form cannot be reopened afterward
+            canEditAfterCompleted = false;
+            // and encrypt the submission (this is a one-way operation)...
+            EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml, formInfo);
+            isEncrypted = true;
+        }
+
+        // At this point, we have:
+        // 1. the saved original instanceXml,
+        // 2. all the plaintext attachments
+        // 2. the submission.xml that is the completed xml (whether encrypting or not)
+        // 3. all the encrypted attachments if encrypting (isEncrypted = true).
+        //
+        // NEXT:
+        // 1. Update the instance database (with status complete).
+        // 2. Overwrite the instanceXml with the submission.xml
+        //    and remove the plaintext attachments if encrypting
+
+        if (!updateInstanceDatabase(uri, InstanceProviderAPI.STATUS_COMPLETE,
+                canEditAfterCompleted)) {
+            Timber.i("%s was saved again while it was being finalized",
+                    instanceXml.getAbsolutePath());
+            discardPackage(instanceXml);
+            return false;
+        }
+
+        if (!canEditAfterCompleted) {
+            // AT THIS POINT, there is no going back.  We are committed
+            // to returning "success" (true) whether or not we can
+            // rename "submission.xml" to instanceXml and whether or
+            // not we can delete the plaintext media files.
+            //
+            // Handle the fall-out for a failed "submission.xml" rename
+            // in the InstanceUploader task.  Leftover plaintext media
+            // files are handled during form deletion.
+
+            // delete the restore Xml file and its snapshot.
+            InstanceSnapshot.delete(instanceXml);
+            if (!instanceXml.delete()) {
+                Timber.e("Error deleting %s prior to renaming submission.xml",
+                        instanceXml.getAbsolutePath());
+                return true;
+            }
+
+            // rename the submission.xml to be the instanceXml
+            if (!submissionXml.renameTo(instanceXml)) {
+                Timber.e("Error renaming submission.xml to %s", instanceXml.getAbsolutePath());
+                return true;
+            }
+        } else {
+            // try to delete the submissionXml file, since it is
+            // identical to the existing instanceXml file
+            // (we don't need to delete and rename anything).
+            if (!submissionXml.delete()) {
+                Timber.w("Error deleting %s (instance is re-openable)",
+                        submissionXml.getAbsolutePath());
+            }
+        }
+
+        // if encrypted, delete all plaintext files
+        // (anything not named instanceXml or anything not ending in .enc)
+        if (isEncrypted) {
+            if (!EncryptionUtils.deletePlaintextFiles(instanceXml)) {
+                Timber.e("Error deleting plaintext files for %s", instanceXml.getAbsolutePath());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the submission.xml and encrypted files of a package that is not used.
+     */
+    private static void discardPackage(File instanceXml) {
+        File[] files = instanceXml.getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().equals("submission.xml") || file.getName().endsWith(".enc")) {
+                deleteQuietly(file);
+            }
+        }
+    }
+
+    private static Properties readJob(File instanceXml) throws IOException {
+        File jobFile = getJobFile(instanceXml);
+        if (!jobFile.exists()) {
+            throw new IOException("Finalize job " + jobFile.getAbsolutePath() + " is missing");
+        }
+        Properties job = new Properties();
+        InputStream is = new FileInputStream(jobFile);
+        try {
+            job.load(is);
+        } finally {
+            is.close();
+        }
+        return job;
+    }
+
+    private static void copy(File source, File destination) throws IOException {
+        DurableFile durableFile = new DurableFile(destination);
+        FileOutputStream fos = durableFile.startWrite();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(source);
+            IOUtils.copy(is, fos);
+            durableFile.finishWrite(fos);
+        } catch (IOException e) {
+            durableFile.failWrite(fos);
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Updates the instance unless it is no longer being finalized.
+     *
+     * @return false if the instance was not updated
+     */
+    private static boolean updateInstanceDatabase(Uri uri, String status,
+            boolean canEditAfterCompleted) {
+        ContentValues values = new ContentValues();
+        values.put(InstanceColumns.STATUS, status);
+        values.put(InstanceColumns.CAN_EDIT_WHEN_COMPLETE,
+                Boolean.toString(canEditAfterCompleted));
+        return Collect.getInstance().getContentResolver().update(uri, values,
+                InstanceColumns.STATUS + "=?",
+                new String[]{InstanceProviderAPI.STATUS_FINALIZING}) > 0;
+    }
+
+    private static void deleteQuietly(File file) {
+        if (file.exists() && !file.delete()) {
+            Timber.w("Unable to delete %s", file.getAbsolutePath());
+        }
+    }
+}
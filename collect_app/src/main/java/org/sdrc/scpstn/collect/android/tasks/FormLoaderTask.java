@@ -18,7 +18,6 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.os.AsyncTask;
 
-import org.apache.commons.io.IOUtils;
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.FormIndex;
 import org.javarosa.core.model.instance.InstanceInitializationFactory;
@@ -27,14 +26,13 @@ import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.instance.utils.DefaultAnswerResolver;
 import org.javarosa.core.reference.ReferenceManager;
 import org.javarosa.core.reference.RootTranslator;
-import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryModel;
 import org.javarosa.xform.parse.XFormParser;
-import org.javarosa.xform.util.XFormUtils;
 import org.javarosa.xpath.XPathTypeMismatchException;
 import org.sdrc.scpstn.collect.android.R;
 import org.sdrc.scpstn.collect.android.application.Collect;
+import org.sdrc.scpstn.collect.android.database.FileHashIndex;
 import org.sdrc.scpstn.collect.android.database.ItemsetDbAdapter;
 import org.sdrc.scpstn.collect.android.external.ExternalAnswerResolver;
 import org.sdrc.scpstn.collect.android.external.ExternalDataHandler;
@@ -44,22 +42,33 @@ import org.sdrc.scpstn.collect.android.external.ExternalDataReader;
 import org.sdrc.scpstn.collect.android.external.ExternalDataReaderImpl;
 import org.sdrc.scpstn.collect.android.external.handler.ExternalDataHandlerPull;
 import org.sdrc.scpstn.collect.android.listeners.FormLoaderListener;
+import org.sdrc.scpstn.collect.android.logic.BlankInstanceCache;
 import org.sdrc.scpstn.collect.android.logic.FileReferenceFactory;
 import org.sdrc.scpstn.collect.android.logic.FormController;
+import org.sdrc.scpstn.collect.android.logic.FormDefCache;
+import org.sdrc.scpstn.collect.android.logic.InstanceSnapshot;
+import org.sdrc.scpstn.collect.android.logic.InstanceStreamReader;
+import org.sdrc.scpstn.collect.android.logic.SavepointJournal;
+import org.sdrc.scpstn.collect.android.preferences.GeneralSharedPreferences;
+import org.sdrc.scpstn.collect.android.preferences.PreferenceKeys;
+import org.sdrc.scpstn.collect.android.utilities.DurableFile;
 import org.sdrc.scpstn.collect.android.utilities.FileUtils;
 import org.sdrc.scpstn.collect.android.utilities.ZipUtils;
+import org.xmlpull.v1.XmlPullParserException;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import au.com.bytecode.opencsv.CSVReader;
 import timber.log.Timber;
@@ -73,6 +82,22 @@ import timber.log.Timber;
 public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FECWrapper> {
     private static final String ITEMSETS_CSV = "itemsets.csv";
 
+    private static final Map<String, Object> ITEMSETS_LOCKS = new HashMap<String, Object>();
+
+    // Keep a core for the UI thread and this task; the stages are mostly I/O and SQLite bound.
+    private static final int LOAD_THREADS =
+            Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static final ExecutorService LOAD_EXECUTOR = Executors.newFixedThreadPool(LOAD_THREADS,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "FormLoaderStage");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     private FormLoaderListener stateListener;
     private String errorMsg;
     private String instancePath;
@@ -118,18 +143,200 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
      * Initialize {@link FormEntryController} with {@link FormDef} from binary or
      * from XML. If given an instance, it will be used to fill the {@link FormDef}
      * .
+     *
+     * Loading is split into stages. Reading the {@link FormDef} runs on this thread while the
+     * external data and itemsets imports, which only depend on the media folder, run on
+     * {@link #LOAD_EXECUTOR}. Instance import and initialization wait for the external data
+     * since calculations may call pulldata().
      */
     @Override
     protected FECWrapper doInBackground(String... path) {
-        FormDef fd = null;
-        FileInputStream fis = null;
         errorMsg = null;
 
         String formPath = path[0];
-
         File formXml = new File(formPath);
-        String formHash = FileUtils.getMd5Hash(formXml);
-        File formBin = new File(Collect.CACHE_PATH + File.separator + formHash + ".formdef");
+
+        // set paths to /sdcard/odk/forms/formfilename-media/
+        String formFileName = formXml.getName().substring(0, formXml.getName().lastIndexOf("."));
+        final File formMediaDir = new File(formXml.getParent(), formFileName + "-media");
+
+        externalDataManager = new ExternalDataManagerImpl(formMediaDir);
+
+        // zip archives may contain csv files, so they have to be expanded before the imports
+        unzipMediaArchives(formMediaDir);
+
+        Future<Void> externalDataLoad = LOAD_EXECUTOR.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                loadExternalData(formMediaDir);
+                return null;
+            }
+        });
+        Future<Void> itemsetsLoad = LOAD_EXECUTOR.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                loadItemsets(formMediaDir);
+                return null;
+            }
+        });
+
+        try {
+            String formHash = FileHashIndex.getInstance().getMd5Hash(formXml);
+            FormDef fd = loadFormDef(formXml, formHash);
+            if (errorMsg != null || fd == null) {
+                return null;
+            }
+
+            // add external data function handlers
+            ExternalDataHandler externalDataHandlerPull = new ExternalDataHandlerPull(
+                    externalDataManager);
+            fd.getEvaluationContext().addFunctionHandler(externalDataHandlerPull);
+
+            try {
+                awaitStage(externalDataLoad);
+            } catch (Exception e) {
+                Timber.e(e, "Exception thrown while loading external data");
+                errorMsg = e.getMessage();
+                return null;
+            }
+
+            if (isCancelled()) {
+                // that means that the user has cancelled, so no need to go further
+                return null;
+            }
+
+            // create FormEntryController from formdef
+            FormEntryModel fem = new FormEntryModel(fd);
+            FormEntryController fec = new FormEntryController(fem);
+
+            boolean usedSavepoint = false;
+
+            try {
+                // import existing data into formdef
+                if (instancePath != null) {
+                    File instance = new File(instancePath);
+                    File shadowInstance = SaveToDiskTask.savepointFile(instance);
+                    if (shadowInstance.exists() && (shadowInstance.lastModified()
+                            > instance.lastModified())) {
+                        // the savepoint is newer than the saved value of the instance.
+                        // use it.
+                        usedSavepoint = true;
+                        instance = shadowInstance;
+                        Timber.w("Loading instance from shadow file: %s", shadowInstance.getAbsolutePath());
+                    }
+                    if (instance.exists()) {
+                        // This order is important. Import data, then initialize.
+                        try {
+                            if (usedSavepoint || !restoreSnapshot(instance, formHash, fec)) {
+                                importData(instance, fec);
+                            }
+                            fd.initialize(false, new InstanceInitializationFactory());
+                        } catch (RuntimeException e) {
+                            Timber.e(e);
+
+                            // SCTO-633
+                            if (usedSavepoint
+                                    && !(e.getCause() instanceof XPathTypeMismatchException)) {
+                                // this means that the .save file is corrupted or 0-sized, so
+                                // don't use it.
+                                usedSavepoint = false;
+                                instancePath = null;
+                                fd.initialize(true, new InstanceInitializationFactory());
+                            } else {
+                                // this means that the saved instance is corrupted.
+                                throw e;
+                            }
+                        }
+                    } else {
+                        BlankInstanceCache.getInstance().initializeNewInstance(fd, formHash,
+                                formXml);
+                    }
+                } else {
+                    BlankInstanceCache.getInstance().initializeNewInstance(fd, formHash, formXml);
+                }
+            } catch (RuntimeException e) {
+                Timber.e(e);
+                if (e.getCause() instanceof XPathTypeMismatchException) {
+                    // this is a case of
+                    // https://bitbucket.org/m
+                    // .sundt/javarosa/commits/e5d344783e7968877402bcee11828fa55fac69de
+                    // the data are imported, the survey will be unusable
+                    // but we should give the option to the user to edit the form
+                    // otherwise the survey will be TOTALLY inaccessible.
+                    Timber.w("We have a syntactically correct instance, but the data threw an "
+                                    + "exception inside JR. We should allow editing.");
+                } else {
+                    errorMsg = e.getMessage();
+                    return null;
+                }
+            }
+
+            try {
+                awaitStage(itemsetsLoad);
+            } catch (Exception e) {
+                // the form is still usable, only itemset based selects will be empty
+                Timber.e(e, "Exception thrown while loading itemsets");
+            }
+
+            // Remove previous forms
+            ReferenceManager._().clearSession();
+
+            // This should get moved to the Application Class
+            if (ReferenceManager._().getFactories().length == 0) {
+                // this is /sdcard/odk
+                ReferenceManager._().addReferenceFactory(new FileReferenceFactory(Collect.ODK_ROOT));
+            }
+
+            // Set jr://... to point to /sdcard/odk/forms/filename-media/
+            ReferenceManager._().addSessionRootTranslator(
+                    new RootTranslator("jr://images/", "jr://file/forms/" + formFileName + "-media/"));
+            ReferenceManager._().addSessionRootTranslator(
+                    new RootTranslator("jr://image/", "jr://file/forms/" + formFileName + "-media/"));
+            ReferenceManager._().addSessionRootTranslator(
+                    new RootTranslator("jr://audio/", "jr://file/forms/" + formFileName + "-media/"));
+            ReferenceManager._().addSessionRootTranslator(
+                    new RootTranslator("jr://video/", "jr://file/forms/" + formFileName + "-media/"));
+
+            // clean up vars
+            fd = null;
+            formXml = null;
+            formPath = null;
+
+            FormController fc = new FormController(formMediaDir, fec, instancePath == null ? null
+                    : new File(instancePath));
+            fc.setFormHash(formHash);
+            if (usedSavepoint) {
+                // the savepoint is its last snapshot plus the changes journaled since
+                SavepointJournal.replay(SaveToDiskTask.savepointFile(new File(instancePath)), fc);
+            }
+            if (xpath != null) {
+                // we are resuming after having terminated -- set index to this
+                // position...
+                FormIndex idx = fc.getIndexFromXPath(xpath);
+                fc.jumpToIndex(idx);
+            }
+            if (waitingXPath != null) {
+                FormIndex idx = fc.getIndexFromXPath(waitingXPath);
+                fc.setIndexWaitingForData(idx);
+            }
+            data = new FECWrapper(fc, usedSavepoint);
+            return data;
+        } finally {
+            // stages still running when loading stopped early are interrupted, and stop at the
+            // next row they import
+            externalDataLoad.cancel(true);
+            itemsetsLoad.cancel(true);
+        }
+    }
+
+    /**
+     * Reads the {@link FormDef} from the in-memory cache, the serialized .formdef or the XML, in
+     * that order of preference.
+     *
+     * @return the form, or null if it could not be read, in which case errorMsg is set
+     */
+    private FormDef loadFormDef(File formXml, String formHash) {
+        File formBin = FormPrecompiler.getFormDefFile(formHash);
 
         publishProgress(
                 Collect.getInstance().getString(R.string.survey_loading_reading_form_message));
@@ -143,12 +350,20 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         //      }
         //    });
 
-        if (formBin.exists()) {
+        FormDefCache formDefCache = FormDefCache.getInstance();
+        FormDef fd = formDefCache.get(formHash);
+        if (fd != null) {
+            Timber.i("Loaded %s from the in-memory form cache", formXml.getName());
+        } else if (formBin.exists()) {
             // if we have binary, deserialize binary
             Timber.i("Attempting to load %s from cached file: %s",
                     formXml.getName(), formBin.getAbsolutePath());
-            fd = deserializeFormDef(formBin);
-            if (fd == null) {
+            // read from the bytes themselves: a form larger than the cache is not kept there
+            byte[] image = FileUtils.getFileAsBytes(formBin);
+            fd = FormDefCache.readFormDef(image);
+            if (fd != null) {
+                formDefCache.put(formHash, image);
+            } else {
                 // some error occured with deserialization. Remove the file, and make a
                 // new .formdef
                 // from xml
@@ -161,194 +376,95 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
             // no binary, read from xml
             try {
                 Timber.i("Attempting to load from: %s", formXml.getAbsolutePath());
-                fis = new FileInputStream(formXml);
-                fd = XFormUtils.getFormFromInputStream(fis);
+                fd = FormPrecompiler.parseFormDef(formXml);
                 if (fd == null) {
                     errorMsg = "Error reading XForm file";
                 } else {
-                    serializeFormDef(fd, formPath);
+                    cacheFormDef(fd, formHash, formBin);
                 }
             } catch (Exception e) {
                 Timber.e(e);
                 errorMsg = e.getMessage();
-            } finally {
-                IOUtils.closeQuietly(fis);
             }
         }
+        return fd;
+    }
 
-        if (errorMsg != null || fd == null) {
-            return null;
-        }
-
-        // set paths to /sdcard/odk/forms/formfilename-media/
-        String formFileName = formXml.getName().substring(0, formXml.getName().lastIndexOf("."));
-        File formMediaDir = new File(formXml.getParent(), formFileName + "-media");
-
-        externalDataManager = new ExternalDataManagerImpl(formMediaDir);
-
-        // add external data function handlers
-        ExternalDataHandler externalDataHandlerPull = new ExternalDataHandlerPull(
-                externalDataManager);
-        fd.getEvaluationContext().addFunctionHandler(externalDataHandlerPull);
-
-        try {
-            loadExternalData(formMediaDir);
-        } catch (Exception e) {
-            Timber.e(e, "Exception thrown while loading external data");
-            errorMsg = e.getMessage();
-            return null;
-        }
-
-        if (isCancelled()) {
-            // that means that the user has cancelled, so no need to go further
-            return null;
-        }
-
-        // create FormEntryController from formdef
-        FormEntryModel fem = new FormEntryModel(fd);
-        FormEntryController fec = new FormEntryController(fem);
-
-        boolean usedSavepoint = false;
-
+    /**
+     * Waits for a stage running on {@link #LOAD_EXECUTOR} and rethrows its failure.
+     */
+    private void awaitStage(Future<Void> stage) throws Exception {
         try {
-            // import existing data into formdef
-            if (instancePath != null) {
-                File instance = new File(instancePath);
-                File shadowInstance = SaveToDiskTask.savepointFile(instance);
-                if (shadowInstance.exists() && (shadowInstance.lastModified()
-                        > instance.lastModified())) {
-                    // the savepoint is newer than the saved value of the instance.
-                    // use it.
-                    usedSavepoint = true;
-                    instance = shadowInstance;
-                    Timber.w("Loading instance from shadow file: %s", shadowInstance.getAbsolutePath());
-                }
-                if (instance.exists()) {
-                    // This order is important. Import data, then initialize.
-                    try {
-                        importData(instance, fec);
-                        fd.initialize(false, new InstanceInitializationFactory());
-                    } catch (RuntimeException e) {
-                        Timber.e(e);
-
-                        // SCTO-633
-                        if (usedSavepoint
-                                && !(e.getCause() instanceof XPathTypeMismatchException)) {
-                            // this means that the .save file is corrupted or 0-sized, so
-                            // don't use it.
-                            usedSavepoint = false;
-                            instancePath = null;
-                            fd.initialize(true, new InstanceInitializationFactory());
-                        } else {
-                            // this means that the saved instance is corrupted.
-                            throw e;
-                        }
-                    }
-                } else {
-                    fd.initialize(true, new InstanceInitializationFactory());
-                }
-            } else {
-                fd.initialize(true, new InstanceInitializationFactory());
-            }
-        } catch (RuntimeException e) {
-            Timber.e(e);
-            if (e.getCause() instanceof XPathTypeMismatchException) {
-                // this is a case of
-                // https://bitbucket.org/m
-                // .sundt/javarosa/commits/e5d344783e7968877402bcee11828fa55fac69de
-                // the data are imported, the survey will be unusable
-                // but we should give the option to the user to edit the form
-                // otherwise the survey will be TOTALLY inaccessible.
-                Timber.w("We have a syntactically correct instance, but the data threw an "
-                                + "exception inside JR. We should allow editing.");
-            } else {
-                errorMsg = e.getMessage();
-                return null;
+            stage.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
             }
+            throw e;
         }
+    }
 
-        // Remove previous forms
-        ReferenceManager._().clearSession();
+    /**
+     * Itemsets of a form are imported by one loader at a time, so that a load started while an
+     * earlier one of the same form is still importing waits for it rather than importing again.
+     */
+    private static synchronized Object getItemsetsLock(String csvPath) {
+        Object lock = ITEMSETS_LOCKS.get(csvPath);
+        if (lock == null) {
+            lock = new Object();
+            ITEMSETS_LOCKS.put(csvPath, lock);
+        }
+        return lock;
+    }
 
+    private void loadItemsets(File formMediaDir) {
         // for itemsets.csv, we only check to see if the itemset file has been
         // updated
         File csv = new File(formMediaDir.getAbsolutePath() + "/" + ITEMSETS_CSV);
-        String csvmd5 = null;
         if (csv.exists()) {
-            csvmd5 = FileUtils.getMd5Hash(csv);
-            boolean readFile = false;
-            ItemsetDbAdapter ida = new ItemsetDbAdapter();
-            ida.open();
-            // get the database entry (if exists) for this itemsets.csv, based
-            // on the path
-            Cursor c = ida.getItemsets(csv.getAbsolutePath());
-            if (c != null) {
-                if (c.getCount() == 1) {
-                    c.moveToFirst(); // should be only one, ever, if any
-                    String oldmd5 = c.getString(c.getColumnIndex("hash"));
-                    if (oldmd5.equals(csvmd5)) {
-                        // they're equal, do nothing
-                    } else {
-                        // the csv has been updated, delete the old entries
-                        ida.dropTable(ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()),
-                                csv.getAbsolutePath());
-                        // and read the new
-                        readFile = true;
-                    }
+            synchronized (getItemsetsLock(csv.getAbsolutePath())) {
+                loadItemsets(csv);
+            }
+        }
+    }
+
+    private void loadItemsets(File csv) {
+        String csvmd5 = FileHashIndex.getInstance().getMd5Hash(csv);
+        boolean readFile = false;
+        ItemsetDbAdapter ida = new ItemsetDbAdapter();
+        ida.open();
+        // get the database entry (if exists) for this itemsets.csv, based
+        // on the path
+        Cursor c = ida.getItemsets(csv.getAbsolutePath());
+        if (c != null) {
+            if (c.getCount() == 1) {
+                c.moveToFirst(); // should be only one, ever, if any
+                String oldmd5 = c.getString(c.getColumnIndex("hash"));
+                if (oldmd5.equals(csvmd5)) {
+                    // they're equal, do nothing
                 } else {
-                    // new csv, add it
+                    // the csv has been updated, delete the old entries
+                    ida.dropTable(ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()),
+                            csv.getAbsolutePath());
+                    // and read the new
                     readFile = true;
                 }
-                c.close();
-            }
-            ida.close();
-            if (readFile) {
-                readCSV(csv, csvmd5, ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()));
+            } else {
+                // new csv, add it
+                readFile = true;
             }
+            c.close();
         }
-
-        // This should get moved to the Application Class
-        if (ReferenceManager._().getFactories().length == 0) {
-            // this is /sdcard/odk
-            ReferenceManager._().addReferenceFactory(new FileReferenceFactory(Collect.ODK_ROOT));
-        }
-
-        // Set jr://... to point to /sdcard/odk/forms/filename-media/
-        ReferenceManager._().addSessionRootTranslator(
-                new RootTranslator("jr://images/", "jr://file/forms/" + formFileName + "-media/"));
-        ReferenceManager._().addSessionRootTranslator(
-                new RootTranslator("jr://image/", "jr://file/forms/" + formFileName + "-media/"));
-        ReferenceManager._().addSessionRootTranslator(
-                new RootTranslator("jr://audio/", "jr://file/forms/" + formFileName + "-media/"));
-        ReferenceManager._().addSessionRootTranslator(
-                new RootTranslator("jr://video/", "jr://file/forms/" + formFileName + "-media/"));
-
-        // clean up vars
-        fis = null;
-        fd = null;
-        formBin = null;
-        formXml = null;
-        formPath = null;
-
-        FormController fc = new FormController(formMediaDir, fec, instancePath == null ? null
-                : new File(instancePath));
-        if (xpath != null) {
-            // we are resuming after having terminated -- set index to this
-            // position...
-            FormIndex idx = fc.getIndexFromXPath(xpath);
-            fc.jumpToIndex(idx);
-        }
-        if (waitingXPath != null) {
-            FormIndex idx = fc.getIndexFromXPath(waitingXPath);
-            fc.setIndexWaitingForData(idx);
+        ida.close();
+        if (readFile) {
+            publishProgress(Collect.getInstance()
+                    .getString(R.string.survey_loading_reading_itemsets_message));
+            readCSV(csv, csvmd5, ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()));
         }
-        data = new FECWrapper(fc, usedSavepoint);
-        return data;
-
     }
 
-    @SuppressWarnings("unchecked")
-    private void loadExternalData(File mediaFolder) {
+    private void unzipMediaArchives(File mediaFolder) {
         // SCTO-594
         File[] zipFiles = mediaFolder.listFiles(new FileFilter() {
             @Override
@@ -366,7 +482,10 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                 }
             }
         }
+    }
 
+    @SuppressWarnings("unchecked")
+    private void loadExternalData(File mediaFolder) {
         File[] csvFiles = mediaFolder.listFiles(new FileFilter() {
             @Override
             public boolean accept(File file) {
@@ -388,6 +507,13 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
 
             if (externalDataMap.size() > 0) {
 
+                if (GeneralSharedPreferences.getInstance().getBoolean(
+                        PreferenceKeys.KEY_LAZY_EXTERNAL_DATA, false)) {
+                    // imported when pulldata() or search() first needs them
+                    externalDataManager.deferImport(externalDataMap);
+                    return;
+                }
+
                 publishProgress(Collect.getInstance()
                         .getString(R.string.survey_loading_reading_csv_message));
 
@@ -416,11 +542,18 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         publishProgress(
                 Collect.getInstance().getString(R.string.survey_loading_reading_data_message));
 
-        // convert files into a byte array
-        byte[] fileBytes = FileUtils.getFileAsBytes(instanceFile);
+        // stream the saved instance straight into a tree rather than buffering the whole file
+        // and a DOM of it; parse failures stay runtime exceptions so that a corrupted
+        // savepoint still falls back to the saved instance
+        TreeElement savedRoot;
+        try {
+            savedRoot = InstanceStreamReader.readInstance(instanceFile);
+        } catch (IOException | XmlPullParserException e) {
+            throw new RuntimeException("Unable to read instance " + instanceFile.getAbsolutePath(),
+                    e);
+        }
 
-        // get the root of the saved and template instances
-        TreeElement savedRoot = XFormParser.restoreDataModel(fileBytes, null).getRoot();
+        // get the root of the template instance
         TreeElement templateRoot = fec.getModel().getForm().getInstance().getRoot().deepCopy(true);
 
         // weak check for matching forms
@@ -438,74 +571,64 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
             templateRoot.populate(savedRoot, fec.getModel().getForm());
             XFormParser.setAnswerResolver(new DefaultAnswerResolver());
 
-            // populated model to current form
-            fec.getModel().getForm().getInstance().setRoot(templateRoot);
-
-            // fix any language issues
-            // :
-            // http://bitbucket.org/javarosa/main/issue/5/itext-n-appearing-in-restored-instances
-            if (fec.getModel().getLanguages() != null) {
-                fec.getModel().getForm()
-                        .localeChanged(fec.getModel().getLanguage(),
-                                fec.getModel().getForm().getLocalizer());
-            }
-
+            setInstanceRoot(templateRoot, fec);
             return true;
 
         }
     }
 
     /**
-     * Read serialized {@link FormDef} from file and recreate as object.
+     * Restores the populated instance from the binary snapshot written when it was last saved,
+     * which avoids parsing the XML and resolving every answer again.
      *
-     * @param formDef serialized FormDef file
-     * @return {@link FormDef} object
+     * @return false if there is no snapshot for this exact instance file and form
      */
-    public FormDef deserializeFormDef(File formDef) {
-
-        // TODO: any way to remove reliance on jrsp?
-        FileInputStream fis = null;
-        FormDef fd = null;
-        try {
-            // create new form def
-            fd = new FormDef();
-            fis = new FileInputStream(formDef);
-            DataInputStream dis = new DataInputStream(fis);
+    private boolean restoreSnapshot(File instanceFile, String formHash, FormEntryController fec) {
+        TreeElement snapshotRoot = InstanceSnapshot.read(instanceFile, formHash);
+        if (snapshotRoot == null) {
+            return false;
+        }
+        TreeElement templateRoot = fec.getModel().getForm().getInstance().getRoot();
+        if (!snapshotRoot.getName().equals(templateRoot.getName())) {
+            Timber.w("Instance snapshot does not match template form definition");
+            return false;
+        }
 
-            // read serialized formdef into new formdef
-            fd.readExternal(dis, ExtUtil.defaultPrototypes());
-            dis.close();
+        publishProgress(
+                Collect.getInstance().getString(R.string.survey_loading_reading_data_message));
+        Timber.i("Restoring %s from its snapshot", instanceFile.getName());
+        setInstanceRoot(snapshotRoot, fec);
+        return true;
+    }
 
-        } catch (Exception e) {
-            Timber.e(e);
-            fd = null;
+    private void setInstanceRoot(TreeElement root, FormEntryController fec) {
+        // populated model to current form
+        fec.getModel().getForm().getInstance().setRoot(root);
+
+        // fix any language issues
+        // :
+        // http://bitbucket.org/javarosa/main/issue/5/itext-n-appearing-in-restored-instances
+        if (fec.getModel().getLanguages() != null) {
+            fec.getModel().getForm()
+                    .localeChanged(fec.getModel().getLanguage(),
+                            fec.getModel().getForm().getLocalizer());
         }
-
-        return fd;
     }
 
     /**
-     * Write the FormDef to the file system as a binary blog.
-     *
-     * @param filepath path to the form file
+     * Serializes a freshly parsed form once, for both the in-memory cache and the .formdef file.
+     * The file is written atomically since {@link FormPrecompiler} may write it at the same time.
      */
-    public void serializeFormDef(FormDef fd, String filepath) {
-        // calculate unique md5 identifier
-        String hash = FileUtils.getMd5Hash(new File(filepath));
-        File formDef = new File(Collect.CACHE_PATH + File.separator + hash + ".formdef");
-
-        // formdef does not exist, create one.
-        if (!formDef.exists()) {
-            FileOutputStream fos;
-            try {
-                fos = new FileOutputStream(formDef);
-                DataOutputStream dos = new DataOutputStream(fos);
-                fd.writeExternal(dos);
-                dos.flush();
-                dos.close();
-            } catch (IOException e) {
-                Timber.e(e);
+    private static void cacheFormDef(FormDef fd, String formHash, File formBin) {
+        try {
+            byte[] image = FormDefCache.writeFormDef(fd);
+            FormDefCache.getInstance().put(formHash, image);
+            if (!formBin.exists()) {
+                DurableFile.write(formBin, image);
             }
+        } catch (IOException e) {
+            // the form is still usable, it is only parsed again next time
+            Timber.e(e, "Unable to cache %s", formBin.getAbsolutePath());
         }
     }
 
@@ -589,6 +712,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         ItemsetDbAdapter ida = new ItemsetDbAdapter();
         ida.open();
         boolean withinTransaction = false;
+        boolean interrupted = false;
 
         try {
             reader = new CSVReader(new FileReader(csv));
@@ -597,6 +721,10 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
             String[] columnHeaders = null;
             int lineNumber = 0;
             while ((nextLine = reader.readNext()) != null) {
+                if (Thread.currentThread().isInterrupted()) {
+                    interrupted = true;
+                    break;
+                }
                 lineNumber++;
                 if (lineNumber == 1) {
                     // first line of csv is column headers
@@ -622,6 +750,11 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
             if (withinTransaction) {
                 ida.commit();
             }
+            if (interrupted) {
+                // drop the partial import so that the next load of the form imports it again
+                Timber.i("Import of %s was interrupted", csv.getAbsolutePath());
+                ida.dropTable(pathHash, csv.getAbsolutePath());
+            }
             ida.close();
         }
     }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sdrc.scpstn.collect.android.tasks;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.xform.util.XFormUtils;
+import org.sdrc.scpstn.collect.android.application.Collect;
+import org.sdrc.scpstn.collect.android.database.FileHashIndex;
+import org.sdrc.scpstn.collect.android.listeners.FormPrecompileListener;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import timber.log.Timber;
+
+/**
+ * Parses newly installed or changed forms on a low-priority worker thread and writes the binary
+ * .formdef into {@link Collect#CACHE_PATH}, so that the first time a form is opened
+ * {@link FormLoaderTask} can deserialize it instead of parsing the XML.
+ */
+public class FormPrecompiler {
+
+    public enum Status {
+        QUEUED, COMPILING, READY, FAILED
+    }
+
+    // JavaRosa's parser keeps static state, so only one form may be parsed at a time.
+    private static final Object PARSE_LOCK = new Object();
+
+    private static FormPrecompiler singleton;
+
+    private final ExecutorService executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, Status> statuses = new ConcurrentHashMap<String, Status>();
+    private final CopyOnWriteArrayList<FormPrecompileListener> listeners =
+            new CopyOnWriteArrayList<FormPrecompileListener>();
+
+    private FormPrecompiler() {
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "FormPrecompiler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static synchronized FormPrecompiler getInstance() {
+        if (singleton == null) {
+            singleton = new FormPrecompiler();
+        }
+        return singleton;
+    }
+
+    /**
+     * Parses the given XForm. Shared with {@link FormLoaderTask} so that a form load never
+     * runs the parser concurrently with a background precompile.
+     */
+    public static FormDef parseFormDef(File formXml) throws IOException {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(formXml);
+            synchronized (PARSE_LOCK) {
+                return XFormUtils.getFormFromInputStream(fis);
+            }
+        } finally {
+            IOUtils.closeQuietly(fis);
+        }
+    }
+
+    /**
+     * @return the binary form definition file used for the form with the given md5
+     */
+    public static File getFormDefFile(String formHash) {
+        return new File(Collect.CACHE_PATH + File.separator + formHash + ".formdef");
+    }
+
+    public void enqueue(final File formXml) {
+        final String formPath = formXml.getAbsolutePath();
+        Status current = statuses.get(formPath);
+        if (current == Status.QUEUED || current == Status.COMPILING) {
+            return;
+        }
+        setStatus(formPath, Status.QUEUED);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                setStatus(formPath, Status.COMPILING);
+                setStatus(formPath, precompile(formXml) ? Status.READY : Status.FAILED);
+            }
+        });
+    }
+
+    /**
+     * @param formPath      absolute path of the form definition
+     * @param formCachePath value of the form's JRCACHE_FILE_PATH column
+     * @return the precompile status of the form, or null if nothing is known about it
+     */
+    public Status getStatus(String formPath, String formCachePath) {
+        Status status = statuses.get(formPath);
+        if (status == null && formCachePath != null && new File(formCachePath).exists()) {
+            status = Status.READY;
+        }
+        return status;
+    }
+
+    public void addListener(FormPrecompileListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(FormPrecompileListener listener) {
+        listeners.remove(listener);
+    }
+
+    private boolean precompile(File formXml) {
+        if (!formXml.exists()) {
+            return false;
+        }
+        String formHash = FileHashIndex.getInstance().getMd5Hash(formXml);
+        if (formHash == null) {
+            return false;
+        }
+        File formBin = getFormDefFile(formHash);
+        if (formBin.exists()) {
+            return true;
+        }
+
+        Timber.i("Precompiling %s", formXml.getAbsolutePath());
+        File tempFile = new File(formBin.getAbsolutePath() + ".tmp");
+        DataOutputStream dos = null;
+        try {
+            FormDef fd = parseFormDef(formXml);
+            if (fd == null) {
+                return false;
+            }
+            dos = new DataOutputStream(new FileOutputStream(tempFile));
+            fd.writeExternal(dos);
+            dos.flush();
+            dos.close();
+            dos = null;
+            // a form load may already have written the same file in the meantime
+            return formBin.exists() || tempFile.renameTo(formBin);
+        } catch (Exception e) {
+            Timber.e(e, "Unable to precompile %s", formXml.getAbsolutePath());
+            return false;
+        } finally {
+            IOUtils.closeQuietly(dos);
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private void setStatus(final String formPath, Status status) {
+        statuses.put(formPath, status);
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (FormPrecompileListener listener : listeners) {
+                    listener.precompileStatusChanged(formPath);
+                }
+            }
+        });
+    }
+}
@@ -14,23 +14,28 @@
 
 package org.sdrc.scpstn.collect.android.tasks;
 
-import android.content.ContentValues;
+import android.content.ContentProviderOperation;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.util.Base64;
 import android.webkit.MimeTypeMap;
 
 import org.sdrc.scpstn.collect.android.R;
 import org.sdrc.scpstn.collect.android.application.Collect;
+import org.sdrc.scpstn.collect.android.dao.InstancesDao;
 import org.sdrc.scpstn.collect.android.logic.PropertyManager;
+import org.sdrc.scpstn.collect.android.preferences.GeneralSharedPreferences;
 import org.sdrc.scpstn.collect.android.preferences.PreferenceKeys;
 import org.sdrc.scpstn.collect.android.preferences.PreferencesActivity;
 import org.sdrc.scpstn.collect.android.provider.InstanceProviderAPI;
 import org.sdrc.scpstn.collect.android.provider.InstanceProviderAPI.InstanceColumns;
 import org.sdrc.scpstn.collect.android.utilities.ApplicationConstants;
 import org.sdrc.scpstn.collect.android.utilities.ResponseMessageParser;
+import org.sdrc.scpstn.collect.android.utilities.UriRemapCache;
 import org.sdrc.scpstn.collect.android.utilities.WebUtils;
 import org.opendatakit.httpclientandroidlib.Header;
 import org.opendatakit.httpclientandroidlib.HttpEntity;
@@ -46,10 +51,13 @@ import org.opendatakit.httpclientandroidlib.entity.ContentType;
 import org.opendatakit.httpclientandroidlib.entity.mime.MultipartEntityBuilder;
 import org.opendatakit.httpclientandroidlib.entity.mime.content.FileBody;
 import org.opendatakit.httpclientandroidlib.entity.mime.content.StringBody;
+import org.opendatakit.httpclientandroidlib.protocol.BasicHttpContext;
 import org.opendatakit.httpclientandroidlib.protocol.HttpContext;
 
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
@@ -61,6 +69,14 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import timber.log.Timber;
 
@@ -113,6 +129,20 @@ public class InstanceServerUploader extends InstanceUploader {
     private static final int CONNECTION_TIMEOUT = 60000;
     private static final String fail = "Error: ";
     private static final String URL_PATH_SEP = "/";
+    // status changes applied to the instances database at once
+    private static final int STATUS_UPDATE_BATCH_SIZE = 20;
+
+    private static final int MAX_UPLOAD_CONCURRENCY = 4;
+
+    private final ArrayList<ContentProviderOperation> statusUpdates =
+            new ArrayList<ContentProviderOperation>();
+
+    // mapping of Uris to avoid redirects, kept across upload sessions
+    private final UriRemapCache uriRemap = UriRemapCache.getInstance();
+
+    private ExecutorService executor;
+    private int concurrency;
+    private int completedUploads;
 
     /**
      * Uploads to urlString the submission identified by id with filepath of instance
@@ -124,24 +154,24 @@ public class InstanceServerUploader extends InstanceUploader {
      * @return false if credentials are required and we should terminate immediately.
      */
     private boolean uploadOneSubmission(String urlString, String id, String instanceFilePath,
-                                        Uri toUpdate, HttpContext localContext, Map<Uri, Uri> uriRemap, Outcome outcome) {
+                                        Uri toUpdate, HttpContext localContext, UriRemapCache uriRemap, Outcome outcome) {
 
         Collect.getInstance().getActivityLogger().logAction(this, urlString, instanceFilePath);
 
         File instanceFile = new File(instanceFilePath);
-        ContentValues cv = new ContentValues();
         Uri u = Uri.parse(urlString);
         HttpClient httpclient = WebUtils.createHttpClient(CONNECTION_TIMEOUT);
 
         ResponseMessageParser messageParser = null;
         boolean openRosaServer = false;
-        if (uriRemap.containsKey(u)) {
+        Uri remapped = uriRemap.get(u);
+        if (remapped != null) {
             // we already issued a head request and got a response,
             // so we know the proper URL to send the submission to
             // and the proper scheme. We also know that it was an
             // OpenRosa compliant server.
             openRosaServer = true;
-            u = uriRemap.get(u);
+            u = remapped;
 
             // if https then enable preemptive basic auth...
             if (u.getScheme().equals("https")) {
@@ -197,19 +227,13 @@ public class InstanceServerUploader extends InstanceUploader {
                                                 + "Unexpected redirection attempt to a different "
                                                 + "host: "
                                                 + newURI.toString());
-                                cv.put(InstanceColumns.STATUS,
-                                        InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-                                Collect.getInstance().getContentResolver()
-                                        .update(toUpdate, cv, null, null);
+                                recordStatus(toUpdate, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                                 return true;
                             }
                         } catch (Exception e) {
                             Timber.e(e, "Exception thrown parsing URI for url %s", urlString);
                             outcome.results.put(id, fail + urlString + " " + e.toString());
-                            cv.put(InstanceColumns.STATUS,
-                                    InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-                            Collect.getInstance().getContentResolver()
-                                    .update(toUpdate, cv, null, null);
+                            recordStatus(toUpdate, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                             return true;
                         }
                     }
@@ -225,10 +249,7 @@ public class InstanceServerUploader extends InstanceUploader {
                                 fail
                                         + "Invalid status code on Head request.  If you have a "
                                         + "web proxy, you may need to login to your network. ");
-                        cv.put(InstanceColumns.STATUS,
-                                InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-                        Collect.getInstance().getContentResolver()
-                                .update(toUpdate, cv, null, null);
+                        recordStatus(toUpdate, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                         return true;
                     }
                 }
@@ -249,8 +270,7 @@ public class InstanceServerUploader extends InstanceUploader {
                     outcome.results.put(id, fail + "Network Connection Refused");
                     Timber.e(e, "Network Connection Refused");
                 }
-                cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-                Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
+                recordStatus(toUpdate, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 return true;
             } catch (Exception e) {
                 String msg = e.getMessage();
@@ -259,8 +279,7 @@ public class InstanceServerUploader extends InstanceUploader {
                 }
                 outcome.results.put(id, fail + "Generic Exception: " + msg);
                 Timber.e(e);
-                cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-                Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
+                recordStatus(toUpdate, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 return true;
             }
         }
@@ -294,11 +313,14 @@ public class InstanceServerUploader extends InstanceUploader {
 
         if (!instanceFile.exists() && !submissionFile.exists()) {
             outcome.results.put(id, fail + "instance XML file does not exist!");
-            cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-            Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
+            recordStatus(toUpdate, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
             return true;
         }
 
+        // attachments the server acknowledged before the last attempt was interrupted
+        UploadLedger ledger = UploadLedger.load(instanceFile.getParentFile(), urlString,
+                submissionFile);
+
         // find all files in parent directory
         File[] allFiles = instanceFile.getParentFile().listFiles();
 
@@ -313,6 +335,9 @@ public class InstanceServerUploader extends InstanceUploader {
                 continue; // the xml file has already been added
             } else if (fileName.equals(submissionFile.getName())) {
                 continue; // the xml file has already been added
+            } else if (ledger.isAcknowledged(f)) {
+                Timber.i("%s was acknowledged by the server in an earlier post", fileName);
+                continue;
             }
 
             String extension = getFileExtension(fileName);
@@ -349,7 +374,7 @@ public class InstanceServerUploader extends InstanceUploader {
             MultipartEntityBuilder builder = MultipartEntityBuilder.create();
 
             // add the submission file first...
-            FileBody fb = new FileBody(submissionFile, ContentType.TEXT_XML);
+            FileBody fb = new ProgressFileBody(submissionFile, ContentType.TEXT_XML);
             builder.addPart("xml_submission_file", fb);
             Timber.i("added xml_submission_file: %s", submissionFile.getName());
             byteCount += submissionFile.length();
@@ -369,7 +394,7 @@ public class InstanceServerUploader extends InstanceUploader {
                         contentType = ContentType.APPLICATION_OCTET_STREAM;
                     }
                 }
-                fb = new FileBody(f, contentType);
+                fb = new ProgressFileBody(f, contentType);
                 builder.addPart(f.getName(), fb);
                 byteCount += f.length();
                 Timber.i("added file of type '%s' %s", contentType, f.getName());
@@ -411,6 +436,16 @@ public class InstanceServerUploader extends InstanceUploader {
                 // If it wasn't, the submission has failed.
                 if (responseCode != HttpStatus.SC_CREATED
                         && responseCode != HttpStatus.SC_ACCEPTED) {
+                    if (remapped != null && (responseCode == HttpStatus.SC_UNAUTHORIZED
+                            || (responseCode >= HttpStatus.SC_MULTIPLE_CHOICES
+                            && responseCode < HttpStatus.SC_BAD_REQUEST))) {
+                        // the server moved or wants credentials since we last asked it:
+                        // forget the remap and start over with a head request
+                        Timber.i("Uri remap for %s is stale (%d)", urlString, responseCode);
+                        uriRemap.remove(Uri.parse(urlString));
+                        return uploadOneSubmission(urlString, id, instanceFilePath, toUpdate,
+                                localContext, uriRemap, outcome);
+                    }
                     if (responseCode == HttpStatus.SC_OK) {
                         outcome.results.put(id, fail + "Network login failure? Again?");
                     } else if (responseCode == HttpStatus.SC_UNAUTHORIZED) {
@@ -428,12 +463,13 @@ public class InstanceServerUploader extends InstanceUploader {
                         }
 
                     }
-                    cv.put(InstanceColumns.STATUS,
-                            InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-                    Collect.getInstance().getContentResolver()
-                            .update(toUpdate, cv, null, null);
+                    recordStatus(toUpdate, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                     return true;
                 }
+                if (j < files.size()) {
+                    // the rest of the attachments follow in the next post
+                    ledger.acknowledge(files.subList(lastJ, j));
+                }
             } catch (IOException e) {
                 if (e instanceof UnknownHostException || e instanceof ConnectTimeoutException) {
                     Timber.i(e);
@@ -445,12 +481,13 @@ public class InstanceServerUploader extends InstanceUploader {
                     msg = e.toString();
                 }
                 outcome.results.put(id, fail + "Generic Exception: " + msg);
-                cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-                Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
+                recordStatus(toUpdate, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 return true;
             }
         }
 
+        ledger.delete();
+
         // If response from server is valid use that else use default messaging
         if (messageParser.isValid()) {
             outcome.results.put(id, messageParser.getMessageResponse());
@@ -459,67 +496,70 @@ public class InstanceServerUploader extends InstanceUploader {
             outcome.results.put(id, Collect.getInstance().getString(R.string.success));
         }
 
-        cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMITTED);
-        Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
+        recordStatus(toUpdate, InstanceProviderAPI.STATUS_SUBMITTED);
         return true;
     }
 
-    private boolean processChunk(int low, int high, Outcome outcome, Long... values) {
-        if (values == null) {
-            // don't try anything if values is null
-            return false;
+    /**
+     * Buffers the new status of an instance. Updating the instances one by one would requery the
+     * open instance lists after every submission.
+     */
+    private synchronized void recordStatus(Uri toUpdate, String status) {
+        statusUpdates.add(ContentProviderOperation.newUpdate(toUpdate)
+                .withValue(InstanceColumns.STATUS, status)
+                .build());
+        if (statusUpdates.size() >= STATUS_UPDATE_BATCH_SIZE) {
+            flushStatusUpdates();
         }
+    }
 
-        /*StringBuilder selectionBuf = new StringBuilder(InstanceColumns._ID + " IN (");
-        String[] selectionArgs = new String[high - low];
-        for (int i = 0; i < (high - low); i++) {
-            if (i > 0) {
-                selectionBuf.append(",");
-            }
-            selectionBuf.append("?");
-            selectionArgs[i] = values[i + low].toString();
+    private synchronized void flushStatusUpdates() {
+        if (statusUpdates.isEmpty()) {
+            return;
         }
+        try {
+            new InstancesDao().updateInstances(statusUpdates);
+        } catch (RemoteException | OperationApplicationException e) {
+            Timber.e(e, "Unable to update the status of %d instances", statusUpdates.size());
+        } finally {
+            statusUpdates.clear();
+        }
+    }
 
-        selectionBuf.append(")");
-        String selection = selectionBuf.toString();*/
-
-        String selection = InstanceColumns._ID + "=?";
-        String[] selectionArgs = new String[(values == null) ? 0 : values.length];
-        if (values != null) {
-            for (int i = 0; i < values.length; i++) {
-                if (i != values.length - 1) {
-                    selection += " or " + InstanceColumns._ID + "=?";
-                }
-                selectionArgs[i] = values[i].toString();
-            }
+    private boolean processChunk(int low, int high, Outcome outcome, Long... values) {
+        if (values == null) {
+            // don't try anything if values is null
+            return false;
         }
 
         String deviceId = new PropertyManager(Collect.getInstance().getApplicationContext())
                 .getSingularProperty(PropertyManager.withUri(PropertyManager.PROPMGR_DEVICE_ID));
 
         // get shared HttpContext so that authentication and cookies are retained.
-        HttpContext localContext = Collect.getInstance().getHttpContext();
+        final HttpContext localContext = Collect.getInstance().getHttpContext();
 
-        Map<Uri, Uri> uriRemap = new HashMap<Uri, Uri>();
+        CompletionService<Outcome> uploads = new ExecutorCompletionService<Outcome>(executor);
+        // the instance each submission being sent belongs to
+        Map<Future<Outcome>, Uri> inFlight = new HashMap<Future<Outcome>, Uri>();
+        boolean proceed = true;
 
         Cursor c = null;
         try {
-            //c = new InstancesDao().getInstancesCursor(selection, selectionArgs);
-            c = Collect.getInstance().getContentResolver().query(InstanceColumns.CONTENT_URI, null, selection,
-                    selectionArgs, null);
+            // only the instances of this chunk
+            c = new InstancesDao().getInstancesCursorForIds(low, high, values);
 
             if (c != null && c.getCount() > 0) {
                 c.moveToPosition(-1);
-                while (c.moveToNext()) {
+                while (proceed && c.moveToNext()) {
                     if (isCancelled()) {
-                        return false;
+                        proceed = false;
+                        break;
                     }
 
-                    publishProgress(c.getPosition() + 1 + low, values.length);
-                    String instance = c.getString(
+                    final String instance = c.getString(
                             c.getColumnIndex(InstanceColumns.INSTANCE_FILE_PATH));
-                    String id = c.getString(c.getColumnIndex(InstanceColumns._ID));
-                    Uri toUpdate = Uri.withAppendedPath(InstanceColumns.CONTENT_URI, id);
+                    final String id = c.getString(c.getColumnIndex(InstanceColumns._ID));
+                    final Uri toUpdate = Uri.withAppendedPath(InstanceColumns.CONTENT_URI, id);
 
                     // Use the app's configured URL unless the form included a submission URL
                     int subIdx = c.getColumnIndex(InstanceColumns.SUBMISSION_URI);
@@ -566,9 +606,24 @@ public class InstanceServerUploader extends InstanceUploader {
                         Timber.i(e, "Error encoding URL for device id : %s", deviceId);
                     }
 
-                    if (!uploadOneSubmission(urlString, id, instance, toUpdate, localContext,
-                            uriRemap, outcome)) {
-                        return false; // get credentials...
+                    final String submissionUrlString = urlString;
+                    Future<Outcome> upload = uploads.submit(new Callable<Outcome>() {
+                        @Override
+                        public Outcome call() {
+                            // each upload sets up its own authentication on top of the shared
+                            // cookies and credentials
+                            Outcome instanceOutcome = new Outcome();
+                            uploadOneSubmission(submissionUrlString, id, instance, toUpdate,
+                                    new BasicHttpContext(localContext), uriRemap,
+                                    instanceOutcome);
+                            return instanceOutcome;
+                        }
+                    });
+                    inFlight.put(upload, toUpdate);
+
+                    // wait for a submission to complete before starting another one
+                    if (inFlight.size() == concurrency) {
+                        proceed = collectUpload(uploads, inFlight, outcome, values.length);
                     }
                 }
             }
@@ -576,26 +631,129 @@ public class InstanceServerUploader extends InstanceUploader {
             if (c != null) {
                 c.close();
             }
+            // the submissions still being sent are completed even if no more are started, or the
+            // task is cancelled, so that their results and status are not lost
+            while (!inFlight.isEmpty()) {
+                proceed &= collectUpload(uploads, inFlight, outcome, values.length);
+            }
+            flushStatusUpdates();
         }
 
-        return true;
+        return proceed;
+    }
+
+    /**
+     * Waits for the next submission to complete and adds its results to the outcome, so that
+     * they are in the order the submissions completed. The submission is waited for even if the
+     * task is interrupted, since it is being sent anyway.
+     *
+     * @return false if credentials are required or the task was interrupted, and we should
+     * terminate immediately.
+     */
+    private boolean collectUpload(CompletionService<Outcome> uploads,
+                                  Map<Future<Outcome>, Uri> inFlight, Outcome outcome,
+                                  int total) {
+        boolean interrupted = false;
+        Future<Outcome> upload = null;
+        while (upload == null) {
+            try {
+                upload = uploads.take();
+            } catch (InterruptedException e) {
+                // the task was cancelled
+                interrupted = true;
+            }
+        }
+        Uri toUpdate = inFlight.remove(upload);
+
+        Outcome instanceOutcome;
+        try {
+            instanceOutcome = getUninterruptibly(upload);
+        } catch (ExecutionException e) {
+            Timber.e(e.getCause());
+            instanceOutcome = new Outcome();
+            instanceOutcome.results.put(toUpdate.getLastPathSegment(),
+                    fail + "Generic Exception: " + e.getCause());
+            recordStatus(toUpdate, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        outcome.results.putAll(instanceOutcome.results);
+        publishProgress(++completedUploads, total);
+
+        if (instanceOutcome.authRequestingServer != null) {
+            outcome.authRequestingServer = instanceOutcome.authRequestingServer;
+            return false; // get credentials...
+        }
+        return !interrupted;
+    }
+
+    /**
+     * @param upload a submission that has completed
+     */
+    private static Outcome getUninterruptibly(Future<Outcome> upload) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return upload.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     protected Outcome doInBackground(Long... values) {
         Outcome outcome = new Outcome();
-        int counter = 0;
-        while (counter * ApplicationConstants.SQLITE_MAX_VARIABLE_NUMBER < values.length) {
-            int low = counter * ApplicationConstants.SQLITE_MAX_VARIABLE_NUMBER;
-            int high = (counter + 1) * ApplicationConstants.SQLITE_MAX_VARIABLE_NUMBER;
-            if (high > values.length) {
-                high = values.length;
+        concurrency = getUploadConcurrency();
+        executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "InstanceServerUploader");
+                thread.setDaemon(true);
+                return thread;
             }
-            if (!processChunk(low, high, outcome, values)) {
-                return outcome;
+        });
+        try {
+            int counter = 0;
+            while (counter * ApplicationConstants.SQLITE_MAX_VARIABLE_NUMBER < values.length) {
+                int low = counter * ApplicationConstants.SQLITE_MAX_VARIABLE_NUMBER;
+                int high = (counter + 1) * ApplicationConstants.SQLITE_MAX_VARIABLE_NUMBER;
+                if (high > values.length) {
+                    high = values.length;
+                }
+                if (!processChunk(low, high, outcome, values)) {
+                    return outcome;
+                }
+                counter++;
             }
-            counter++;
+            return outcome;
+        } finally {
+            executor.shutdown();
+            Timber.i("%d requests sent over %d connections", WebUtils.getRequestCount(),
+                    WebUtils.getConnectionCount());
+        }
+    }
+
+    /**
+     * The number of submissions sent at the same time. Sending several at once hides the latency
+     * of each HEAD and POST round trip on slow connections.
+     */
+    private static int getUploadConcurrency() {
+        String concurrency = (String) GeneralSharedPreferences.getInstance()
+                .get(PreferenceKeys.KEY_UPLOAD_CONCURRENCY);
+        try {
+            return Math.max(1, Math.min(MAX_UPLOAD_CONCURRENCY, Integer.parseInt(concurrency)));
+        } catch (NumberFormatException e) {
+            Timber.w("Invalid upload concurrency %s", concurrency);
+            return 1;
         }
-        return outcome;
     }
 
     private String getServerSubmissionURL() {
@@ -629,4 +787,48 @@ public class InstanceServerUploader extends InstanceUploader {
         }
         return fileName.substring(dotIndex + 1).toLowerCase(Locale.ROOT);
     }
+
+    /**
+     * A file part that reports the bytes of the file written to the connection, each time another
+     * percent of it is sent. A post that is retried starts the count over.
+     */
+    private class ProgressFileBody extends FileBody {
+
+        ProgressFileBody(File file, ContentType contentType) {
+            super(file, contentType);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            final String fileName = getFilename();
+            final long fileSize = getContentLength();
+            publishFileProgress(fileName, 0, fileSize);
+
+            super.writeTo(new FilterOutputStream(out) {
+                private long bytesSent;
+                private long lastPercent;
+
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    sent(1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    sent(len);
+                }
+
+                private void sent(int count) {
+                    bytesSent += count;
+                    long percent = fileSize > 0 ? bytesSent * 100 / fileSize : 100;
+                    if (percent != lastPercent) {
+                        lastPercent = percent;
+                        publishFileProgress(fileName, bytesSent, fileSize);
+                    }
+                }
+            });
+        }
+    }
 }
@@ -129,7 +129,7 @@ public class InstanceSyncTask extends AsyncTask<Void, String, String> {
                         Collect.getInstance().getApplicationContext()).getBoolean(
                         PreferenceKeys.KEY_INSTANCE_SYNC, true);
 
-                int counter = 0;
+                List<ContentValues> newInstances = new ArrayList<>();
                 // Begin parsing and add them to the content provider
                 for (String candidateInstance : candidateInstances) {
                     String instanceFormId = getFormIdFromInstance(candidateInstance);
@@ -163,10 +163,7 @@ public class InstanceSyncTask extends AsyncTask<Void, String, String> {
                                 values.put(InstanceColumns.STATUS, instanceSyncFlag
                                         ? InstanceProviderAPI.STATUS_COMPLETE : InstanceProviderAPI.STATUS_INCOMPLETE);
                                 values.put(InstanceColumns.CAN_EDIT_WHEN_COMPLETE, Boolean.toString(true));
-                                // save the new instance object
-                                Collect.getInstance().getContentResolver()
-                                        .insert(InstanceColumns.CONTENT_URI, values);
-                                counter++;
+                                newInstances.add(values);
                             }
                         } finally {
                             if (formCursor != null) {
@@ -175,6 +172,9 @@ public class InstanceSyncTask extends AsyncTask<Void, String, String> {
                         }
                     }
                 }
+                // save the new instance objects in one transaction
+                int counter = instancesDao.saveInstances(
+                        newInstances.toArray(new ContentValues[newInstances.size()]));
                 if (counter > 0) {
                     currentStatus += String.format(
                             Collect.getInstance().getString(R.string.instance_scan_count),
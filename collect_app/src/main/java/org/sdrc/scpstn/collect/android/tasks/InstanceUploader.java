@@ -20,6 +20,8 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 
 import org.sdrc.scpstn.collect.android.application.Collect;
 import org.sdrc.scpstn.collect.android.dao.FormsDao;
@@ -34,6 +36,7 @@ import org.sdrc.scpstn.collect.android.utilities.ApplicationConstants;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 
@@ -43,6 +46,8 @@ public abstract class InstanceUploader extends AsyncTask<Long, Integer, Instance
 
     private InstanceUploaderListener stateListener;
 
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
     @Override
     protected void onPostExecute(Outcome outcome) {
         synchronized (this) {
@@ -128,6 +133,24 @@ public abstract class InstanceUploader extends AsyncTask<Long, Integer, Instance
         }
     }
 
+    /**
+     * Reports how much of a file was sent, from whichever thread is sending it. publishProgress
+     * only carries integers, so the update is posted to the main thread instead.
+     */
+    protected void publishFileProgress(final String fileName, final long bytesSent,
+            final long fileSize) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (InstanceUploader.this) {
+                    if (stateListener != null && !isCancelled()) {
+                        stateListener.fileProgressUpdate(fileName, bytesSent, fileSize);
+                    }
+                }
+            }
+        });
+    }
+
     public void setUploaderListener(InstanceUploaderListener sl) {
         synchronized (this) {
             stateListener = sl;
@@ -136,7 +159,8 @@ public abstract class InstanceUploader extends AsyncTask<Long, Integer, Instance
 
     public static class Outcome {
         Uri authRequestingServer = null;
-        public HashMap<String, String> results = new HashMap<String, String>();
+        // in the order the submissions completed
+        public HashMap<String, String> results = new LinkedHashMap<String, String>();
     }
 
     // If the form explicitly sets the auto-delete property, then it overrides the preferences.
@@ -20,10 +20,10 @@ package org.sdrc.scpstn.collect.android.tasks;
 
 import android.os.AsyncTask;
 
-import org.javarosa.core.services.transport.payload.ByteArrayPayload;
 import org.sdrc.scpstn.collect.android.application.Collect;
 import org.sdrc.scpstn.collect.android.listeners.SavePointListener;
 import org.sdrc.scpstn.collect.android.logic.FormController;
+import org.sdrc.scpstn.collect.android.logic.SavepointJournal;
 
 import java.io.File;
 
@@ -60,18 +60,21 @@ public class SavePointTask extends AsyncTask<Void, Void, String> {
             try {
                 FormController formController = Collect.getInstance().getFormController();
                 File temp = SaveToDiskTask.savepointFile(formController.getInstancePath());
-                ByteArrayPayload payload = formController.getFilledInFormXml();
+                SavepointJournal journal = formController.getSavepointJournal(temp);
 
                 if (priority < lastPriorityUsed) {
                     Timber.w("Savepoint thread (p=%d) was cancelled (b) because another one is waiting (p=%d)", priority, lastPriorityUsed);
                     return null;
                 }
 
-                // write out xml
-                SaveToDiskTask.exportXmlFile(payload, temp.getAbsolutePath());
+                // only the changes since the previous savepoint, unless it is time for a new
+                // snapshot of the whole instance
+                SavepointJournal.Checkpoint checkpoint = formController.takeSavepoint();
+                journal.write(checkpoint);
 
                 long end = System.currentTimeMillis();
-                Timber.i("Savepoint ms: %s to %s", Long.toString(end - start), temp.toString());
+                Timber.i("Savepoint ms: %s to %s (%s)", Long.toString(end - start), temp.toString(),
+                        checkpoint.isSnapshot() ? "snapshot" : "journal");
 
                 return null;
             } catch (Exception e) {
@@ -14,30 +14,31 @@
 
 package org.sdrc.scpstn.collect.android.tasks;
 
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 
-import org.javarosa.core.services.transport.payload.ByteArrayPayload;
 import org.javarosa.form.api.FormEntryController;
 import org.sdrc.scpstn.collect.android.R;
 import org.sdrc.scpstn.collect.android.application.Collect;
 import org.sdrc.scpstn.collect.android.dao.InstancesDao;
-import org.sdrc.scpstn.collect.android.exception.EncryptionException;
 import org.sdrc.scpstn.collect.android.listeners.FormSavedListener;
 import org.sdrc.scpstn.collect.android.logic.FormController;
+import org.sdrc.scpstn.collect.android.logic.InstanceSnapshot;
+import org.sdrc.scpstn.collect.android.logic.SavepointJournal;
 import org.sdrc.scpstn.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.sdrc.scpstn.collect.android.provider.InstanceProviderAPI;
 import org.sdrc.scpstn.collect.android.provider.InstanceProviderAPI.InstanceColumns;
-import org.sdrc.scpstn.collect.android.utilities.EncryptionUtils;
-import org.sdrc.scpstn.collect.android.utilities.EncryptionUtils.EncryptedFormInformation;
+import org.sdrc.scpstn.collect.android.utilities.DurableFile;
 import org.sdrc.scpstn.collect.android.utilities.FileUtils;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.io.OutputStream;
 
 import timber.log.Timber;
 
@@ -60,7 +61,6 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
     public static final int VALIDATE_ERROR = 502;
     public static final int VALIDATED = 503;
     public static final int SAVED_AND_EXIT = 504;
-    public static final int ENCRYPTION_ERROR = 505;
 
 
     public SaveToDiskTask(Uri uri, Boolean saveAndExit, Boolean markCompleted, String updatedName) {
@@ -127,16 +127,18 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
         try {
             exportData(markCompleted);
 
-            // attempt to remove any scratch file
+            // attempt to remove any scratch file and its journal
+            formController.discardSavepoint();
             File shadowInstance = savepointFile(formController.getInstancePath());
             if (shadowInstance.exists()) {
                 FileUtils.deleteAndReport(shadowInstance);
             }
+            File shadowJournal = SavepointJournal.getJournalFile(shadowInstance);
+            if (shadowJournal.exists()) {
+                FileUtils.deleteAndReport(shadowJournal);
+            }
 
             saveResult.setSaveResult(save ? SAVED_AND_EXIT : SAVED, markCompleted);
-        } catch (EncryptionException e) {
-            saveResult.setSaveErrorMessage(e.getMessage());
-            saveResult.setSaveResult(ENCRYPTION_ERROR, markCompleted);
         } catch (Exception e) {
             Timber.e(e);
 
@@ -159,7 +161,7 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
         if (incomplete || !markCompleted) {
             values.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_INCOMPLETE);
         } else {
-            values.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_COMPLETE);
+            values.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_FINALIZING);
         }
         // update this whether or not the status is complete...
         values.put(InstanceColumns.CAN_EDIT_WHEN_COMPLETE, Boolean.toString(canEditAfterCompleted));
@@ -244,164 +246,94 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
      * In theory we don't have to write to disk, and this is where you'd add
      * other methods.
      */
-    private void exportData(boolean markCompleted) throws IOException, EncryptionException {
+    private void exportData(boolean markCompleted) throws IOException {
         FormController formController = Collect.getInstance().getFormController();
 
         publishProgress(Collect.getInstance().getString(R.string.survey_saving_collecting_message));
 
-        ByteArrayPayload payload = formController.getFilledInFormXml();
         // write out xml
         String instancePath = formController.getInstancePath().getAbsolutePath();
 
         publishProgress(Collect.getInstance().getString(R.string.survey_saving_saving_message));
 
-        exportXmlFile(payload, instancePath);
-
-        // update the uri. We have exported the reloadable instance, so update status...
-        // Since we saved a reloadable instance, it is flagged as re-openable so that if any error
-        // occurs during the packaging of the data for the server fails (e.g., encryption),
-        // we can still reopen the filled-out form and re-save it at a later time.
-        updateInstanceDatabase(true, true);
+        exportXmlFile(formController, false, instancePath);
+        InstanceSnapshot.write(formController, new File(instancePath));
 
+        File instanceXml = formController.getInstancePath();
         if (markCompleted) {
-            // now see if the packaging of the data for the server would make it
-            // non-reopenable (e.g., encryption or send an SMS or other fraction of the form).
-            boolean canEditAfterCompleted = formController.isSubmissionEntireForm();
-            boolean isEncrypted = false;
-
-            // build a submission.xml to hold the data being submitted
-            // and (if appropriate) encrypt the files on the side
-
-            // pay attention to the ref attribute of the submission profile...
-            File instanceXml = formController.getInstancePath();
-            File submissionXml = new File(instanceXml.getParentFile(), "submission.xml");
-
-            payload = formController.getSubmissionXml();
-
-            // write out submission.xml -- the data to actually submit to aggregate
-
-            publishProgress(
-                    Collect.getInstance().getString(R.string.survey_saving_finalizing_message));
-
-            exportXmlFile(payload, submissionXml.getAbsolutePath());
-
-            // see if the form is encrypted and we can encrypt it...
-            EncryptedFormInformation formInfo = EncryptionUtils.getEncryptedFormInformation(uri,
-                    formController.getSubmissionMetadata());
-            if (formInfo != null) {
-                // if we are encrypting, the form cannot be reopened afterward
-                canEditAfterCompleted = false;
-                // and encrypt the submission (this is a one-way operation)...
-
-                publishProgress(
-                        Collect.getInstance().getString(R.string.survey_saving_encrypting_message));
-
-                EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml, formInfo);
-                isEncrypted = true;
+            // the submission is packaged by the finalize queue, which no longer has the form
+            // controller: write down what it needs next to the instance. Only a submission that
+            // is a fraction of the form has to be serialized now.
+            boolean entireForm = formController.isSubmissionEntireForm();
+            if (!entireForm) {
+                exportXmlFile(formController, true,
+                        FinalizeQueue.getPendingSubmissionFile(instanceXml).getAbsolutePath());
             }
+            FinalizeQueue.writeJob(instanceXml, formController.getSubmissionMetadata().instanceId,
+                    formController.getFormHash(), entireForm);
+        } else {
+            // the instance was finalized before and is being saved as incomplete again
+            FinalizeQueue.deleteJob(instanceXml);
+        }
 
-            // At this point, we have:
-            // 1. the saved original instanceXml,
-            // 2. all the plaintext attachments
-            // 2. the submission.xml that is the completed xml (whether encrypting or not)
-            // 3. all the encrypted attachments if encrypting (isEncrypted = true).
-            //
-            // NEXT:
-            // 1. Update the instance database (with status complete).
-            // 2. Overwrite the instanceXml with the submission.xml
-            //    and remove the plaintext attachments if encrypting
-
-            updateInstanceDatabase(false, canEditAfterCompleted);
-
-            if (!canEditAfterCompleted) {
-                // AT THIS POINT, there is no going back.  We are committed
-                // to returning "success" (true) whether or not we can
-                // rename "submission.xml" to instanceXml and whether or
-                // not we can delete the plaintext media files.
-                //
-                // Handle the fall-out for a failed "submission.xml" rename
-                // in the InstanceUploader task.  Leftover plaintext media
-                // files are handled during form deletion.
-
-                // delete the restore Xml file.
-                if (!instanceXml.delete()) {
-                    String msg = "Error deleting " + instanceXml.getAbsolutePath()
-                            + " prior to renaming submission.xml";
-                    Timber.e(msg);
-                    throw new IOException(msg);
-                }
+        // update the uri. We have exported the reloadable instance, so update status...
+        // A finalized instance is not re-openable until the queue has packaged it. If the
+        // packaging fails (e.g., encryption), the queue flags it incomplete and re-openable again
+        // so that the filled-out form can be re-saved at a later time.
+        updateInstanceDatabase(!markCompleted, !markCompleted);
 
-                // rename the submission.xml to be the instanceXml
-                if (!submissionXml.renameTo(instanceXml)) {
-                    String msg =
-                            "Error renaming submission.xml to " + instanceXml.getAbsolutePath();
-                    Timber.e(msg);
-                    throw new IOException(msg);
-                }
-            } else {
-                // try to delete the submissionXml file, since it is
-                // identical to the existing instanceXml file
-                // (we don't need to delete and rename anything).
-                if (!submissionXml.delete()) {
-                    String msg = "Error deleting " + submissionXml.getAbsolutePath()
-                            + " (instance is re-openable)";
-                    Timber.w(msg);
-                }
-            }
+        if (markCompleted) {
+            FinalizeQueue.getInstance().enqueue(getInstanceUri(instanceXml));
+        }
+    }
 
-            // if encrypted, delete all plaintext files
-            // (anything not named instanceXml or anything not ending in .enc)
-            if (isEncrypted) {
-                if (!EncryptionUtils.deletePlaintextFiles(instanceXml)) {
-                    Timber.e("Error deleting plaintext files for %s", instanceXml.getAbsolutePath());
-                }
+    /**
+     * The uri of the saved instance, also when FormEntryActivity was started with a form.
+     */
+    private Uri getInstanceUri(File instanceXml) {
+        if (Collect.getInstance().getContentResolver().getType(uri).equals(
+                InstanceColumns.CONTENT_ITEM_TYPE)) {
+            return uri;
+        }
+        Cursor c = null;
+        try {
+            c = new InstancesDao().getInstancesCursorForFilePath(instanceXml.getAbsolutePath());
+            c.moveToFirst();
+            return ContentUris.withAppendedId(InstanceColumns.CONTENT_URI,
+                    c.getLong(c.getColumnIndex(InstanceColumns._ID)));
+        } finally {
+            if (c != null) {
+                c.close();
             }
         }
     }
 
 
     /**
-     * This method actually writes the xml to disk.
+     * This method actually writes the xml to disk. The instance is serialized straight into the
+     * file as it is walked, so the memory used no longer grows with the size of the instance.
+     *
+     * @param submission true to write the portion of the form to be submitted, false for the
+     *                   entire re-openable instance
      */
-    static void exportXmlFile(ByteArrayPayload payload, String path) throws IOException {
-        File file = new File(path);
-        if (file.exists() && !file.delete()) {
-            throw new IOException("Cannot overwrite " + path + ". Perhaps the file is locked?");
-        }
-
-        // create data stream
-        InputStream is = payload.getPayloadStream();
-        int len = (int) payload.getLength();
-
-        // read from data stream
-        byte[] data = new byte[len];
-        // try {
-        int read = is.read(data, 0, len);
-        if (read > 0) {
-            // write xml file
-            RandomAccessFile randomAccessFile = null;
-            try {
-                // String filename = path + File.separator +
-                // path.substring(path.lastIndexOf(File.separator) + 1) + ".xml";
-                randomAccessFile = new RandomAccessFile(file, "rws");
-                randomAccessFile.write(data);
-            } finally {
-                if (randomAccessFile != null) {
-                    try {
-                        randomAccessFile.close();
-                    } catch (IOException e) {
-                        Timber.e(e, "Error closing RandomAccessFile: %s", path);
-                    }
-                }
+    static void exportXmlFile(FormController formController, boolean submission, String path)
+            throws IOException {
+        // a crash while saving leaves the previous version of the file in place
+        DurableFile durableFile = new DurableFile(new File(path));
+        FileOutputStream fos = durableFile.startWrite();
+        try {
+            OutputStream os = new BufferedOutputStream(fos);
+            if (submission) {
+                formController.writeSubmissionXml(os);
+            } else {
+                formController.writeFilledInFormXml(os);
             }
+            os.flush();
+            durableFile.finishWrite(fos);
+        } catch (IOException | RuntimeException e) {
+            durableFile.failWrite(fos);
+            throw e;
         }
-        //        } catch (IOException e) {
-        //            Log.e(t, "Error reading from payload data stream");
-        //            e.printStackTrace();
-        //            return false;
-        //        }
-        //
-        //        return false;
     }
 
     @Override
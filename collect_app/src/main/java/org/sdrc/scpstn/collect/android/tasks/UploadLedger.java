@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sdrc.scpstn.collect.android.tasks;
+
+import android.net.Uri;
+
+import org.sdrc.scpstn.collect.android.utilities.DurableFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
+
+import timber.log.Timber;
+
+/**
+ * Records, next to an instance, the attachments the server acknowledged with a 201 or 202 while
+ * a submission too large for one post was sent in several *isIncomplete* posts, so that an upload
+ * interrupted halfway is resumed with the attachments that are left rather than started over.
+ *
+ * The ledger only holds for the submission file and server it was written for: a different
+ * server, a re-finalized submission or a changed attachment starts the upload from scratch. It is
+ * a hidden file, so it is neither encrypted nor uploaded, and it is deleted once the submission
+ * is complete.
+ */
+class UploadLedger {
+
+    static final String LEDGER_FILE_NAME = ".upload_ledger";
+
+    private static final String SERVER = "server";
+    private static final String SUBMISSION = "submission";
+    private static final String ATTACHMENT_PREFIX = "attachment.";
+
+    private final File ledgerFile;
+    private final Properties entries;
+
+    private UploadLedger(File ledgerFile, Properties entries) {
+        this.ledgerFile = ledgerFile;
+        this.entries = entries;
+    }
+
+    /**
+     * @return the ledger of the upload of submissionFile to urlString, empty if there is none or
+     * it was written for another server or version of the submission.
+     */
+    static UploadLedger load(File instanceDir, String urlString, File submissionFile) {
+        File ledgerFile = new File(instanceDir, LEDGER_FILE_NAME);
+        String server = getServerKey(urlString);
+        String submission = getFingerprint(submissionFile);
+
+        Properties entries = new Properties();
+        if (ledgerFile.exists()) {
+            InputStream is = null;
+            try {
+                is = new FileInputStream(ledgerFile);
+                entries.load(is);
+            } catch (IOException e) {
+                Timber.w(e, "Unable to read %s", ledgerFile.getAbsolutePath());
+                entries.clear();
+            } finally {
+                if (is != null) {
+                    try {
+                        is.close();
+                    } catch (IOException e) {
+                        Timber.w(e);
+                    }
+                }
+            }
+            if (!server.equals(entries.getProperty(SERVER))
+                    || !submission.equals(entries.getProperty(SUBMISSION))) {
+                entries.clear();
+            }
+        }
+        entries.setProperty(SERVER, server);
+        entries.setProperty(SUBMISSION, submission);
+        return new UploadLedger(ledgerFile, entries);
+    }
+
+    /**
+     * @return true if the server acknowledged this very attachment in an earlier post.
+     */
+    boolean isAcknowledged(File attachment) {
+        return getFingerprint(attachment).equals(
+                entries.getProperty(ATTACHMENT_PREFIX + attachment.getName()));
+    }
+
+    /**
+     * Records the attachments of a post the server answered with a 201 or 202. A ledger that
+     * cannot be written only costs sending these attachments again on a retry.
+     */
+    void acknowledge(List<File> attachments) {
+        for (File attachment : attachments) {
+            entries.setProperty(ATTACHMENT_PREFIX + attachment.getName(),
+                    getFingerprint(attachment));
+        }
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            entries.store(bos, null);
+            DurableFile.write(ledgerFile, bos.toByteArray());
+        } catch (IOException e) {
+            Timber.w(e, "Unable to write %s", ledgerFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Forgets the ledger once the submission is complete.
+     */
+    void delete() {
+        delete(ledgerFile.getParentFile());
+    }
+
+    static void delete(File instanceDir) {
+        File ledgerFile = new File(instanceDir, LEDGER_FILE_NAME);
+        if (ledgerFile.exists() && !ledgerFile.delete()) {
+            Timber.w("Unable to delete %s", ledgerFile.getAbsolutePath());
+        }
+    }
+
+    // the credentials in the query are no business of a file on the sd card
+    private static String getServerKey(String urlString) {
+        return Uri.parse(urlString).buildUpon().clearQuery().fragment(null).build().toString();
+    }
+
+    private static String getFingerprint(File file) {
+        return file.getName() + ":" + file.length() + ":" + file.lastModified();
+    }
+}
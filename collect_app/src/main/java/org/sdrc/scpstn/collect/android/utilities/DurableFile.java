@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sdrc.scpstn.collect.android.utilities;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import timber.log.Timber;
+
+/**
+ * Replaces a file durably and atomically: the new content is written to a temporary file next to
+ * it with ordinary buffered writes, synced to storage once, and then renamed over the file. A
+ * crash at any point leaves either the previous file or the complete new one, never a partial
+ * write, and costs one fsync per file rather than one per write as with RandomAccessFile in
+ * "rws" mode.
+ *
+ * The temporary file is hidden (its name starts with a dot) so that one left behind by a crash
+ * is not mistaken for an attachment of the instance it sits next to. It is overwritten by the
+ * next write.
+ *
+ * Usage follows android.util.AtomicFile:
+ * <pre>
+ * FileOutputStream fos = durableFile.startWrite();
+ * try {
+ *     ... write to fos, flushing any stream wrapping it ...
+ *     durableFile.finishWrite(fos);
+ * } catch (IOException e) {
+ *     durableFile.failWrite(fos);
+ *     throw e;
+ * }
+ * </pre>
+ */
+public class DurableFile {
+
+    /**
+     * Notified after the new content of a file is synced and before it replaces the file.
+     */
+    interface RenameListener {
+        void beforeRename(File file);
+    }
+
+    // only set by tests, to simulate the process being killed between the sync and the rename
+    static volatile RenameListener renameListener;
+
+    private final File file;
+    private final File tempFile;
+
+    public DurableFile(File file) {
+        this.file = file;
+        tempFile = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    File getTempFile() {
+        return tempFile;
+    }
+
+    /**
+     * @return a stream to write the new content to, which has to be passed to
+     * {@link #finishWrite(FileOutputStream)} or {@link #failWrite(FileOutputStream)}
+     */
+    public FileOutputStream startWrite() throws IOException {
+        return new FileOutputStream(tempFile);
+    }
+
+    /**
+     * Syncs the new content and puts it in place of the file. Streams wrapping the one returned by
+     * {@link #startWrite()} must have been flushed.
+     */
+    public void finishWrite(FileOutputStream fos) throws IOException {
+        try {
+            fos.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        RenameListener listener = renameListener;
+        if (listener != null) {
+            listener.beforeRename(file);
+        }
+        // renaming replaces the file atomically on Android, the delete is only needed on
+        // file systems that refuse to rename over an existing file
+        if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+            throw new IOException("Unable to replace " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Abandons the new content, leaving the file as it was.
+     */
+    public void failWrite(FileOutputStream fos) {
+        IOUtils.closeQuietly(fos);
+        if (tempFile.exists() && !tempFile.delete()) {
+            Timber.w("Unable to delete %s", tempFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Durably replaces the content of a file.
+     */
+    public static void write(File file, byte[] data) throws IOException {
+        DurableFile durableFile = new DurableFile(file);
+        FileOutputStream fos = durableFile.startWrite();
+        try {
+            fos.write(data);
+            durableFile.finishWrite(fos);
+        } catch (IOException e) {
+            durableFile.failWrite(fos);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sdrc.scpstn.collect.android.utilities;
+
+import android.util.LruCache;
+
+import java.security.PublicKey;
+
+/**
+ * Cache of the encryption settings of forms, keyed by the md5 of the form definition file, so
+ * that finalizing instances does not query the forms provider and parse the form's RSA public key
+ * each time. Forms without a public key are cached too, as not encrypted.
+ *
+ * A new version of a form has a different hash; entries of forms that are replaced or deleted are
+ * evicted by the forms provider.
+ */
+public class EncryptedFormCache {
+
+    private static final int MAX_FORMS = 32;
+
+    private static EncryptedFormCache singleton;
+
+    private final LruCache<String, Entry> entries = new LruCache<String, Entry>(MAX_FORMS);
+
+    static class Entry {
+        final String formId;
+        final String formVersion;
+        // null if the form is not encrypted
+        final PublicKey publicKey;
+
+        Entry(String formId, String formVersion, PublicKey publicKey) {
+            this.formId = formId;
+            this.formVersion = formVersion;
+            this.publicKey = publicKey;
+        }
+    }
+
+    private EncryptedFormCache() {
+    }
+
+    public static synchronized EncryptedFormCache getInstance() {
+        if (singleton == null) {
+            singleton = new EncryptedFormCache();
+        }
+        return singleton;
+    }
+
+    Entry get(String formHash) {
+        return formHash == null ? null : entries.get(formHash);
+    }
+
+    void put(String formHash, Entry entry) {
+        if (formHash != null) {
+            entries.put(formHash, entry);
+        }
+    }
+
+    public void evict(String formHash) {
+        if (formHash != null) {
+            entries.remove(formHash);
+        }
+    }
+
+    public void clear() {
+        entries.evictAll();
+    }
+}
@@ -19,6 +19,7 @@ import android.database.Cursor;
 import android.net.Uri;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.kxml2.io.KXmlSerializer;
 import org.kxml2.kdom.Document;
 import org.kxml2.kdom.Element;
@@ -31,15 +32,16 @@ import org.sdrc.scpstn.collect.android.logic.FormController.InstanceMetadata;
 import org.sdrc.scpstn.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.sdrc.scpstn.collect.android.provider.InstanceProviderAPI.InstanceColumns;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
-import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -52,6 +54,13 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -97,6 +106,24 @@ public class EncryptionUtils {
     private static final String NEW_LINE = "\n";
     private static final String ENCRYPTION_PROVIDER = "BC";
 
+    private static Boolean hasBouncyCastle;
+
+    private static final int ENCRYPTION_BUFFER_SIZE = 64 * 1024;
+
+    // AES is CPU bound; keep a core for the UI thread
+    private static final int ENCRYPTION_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static final ExecutorService ENCRYPTION_EXECUTOR =
+            Executors.newFixedThreadPool(ENCRYPTION_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SubmissionEncryption");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     private EncryptionUtils() {
     }
 
@@ -176,7 +203,10 @@ public class EncryptionUtils {
         }
 
         public void appendFileSignatureSource(File file) {
-            String md5Hash = FileUtils.getMd5Hash(file);
+            appendFileSignatureSource(file, FileUtils.getMd5Hash(file));
+        }
+
+        public void appendFileSignatureSource(File file, String md5Hash) {
             appendElementSignatureSource(file.getName() + "::" + md5Hash);
         }
 
@@ -252,14 +282,57 @@ public class EncryptionUtils {
      */
     public static EncryptedFormInformation getEncryptedFormInformation(Uri uri,
             InstanceMetadata instanceMetadata) throws EncryptionException {
+        return getEncryptedFormInformation(uri, null, instanceMetadata);
+    }
+
+    /**
+     * Retrieve the encryption information for this uri, reusing the form's encryption settings
+     * from {@link EncryptedFormCache} when they have been read before.
+     *
+     * @param uri      either an instance URI (if previously saved) or a form URI
+     * @param formHash md5 hash of the form definition file the instance was filled in with, or
+     *                 null if unknown
+     */
+    public static EncryptedFormInformation getEncryptedFormInformation(Uri uri, String formHash,
+            InstanceMetadata instanceMetadata) throws EncryptionException {
+
+        EncryptedFormCache.Entry form = EncryptedFormCache.getInstance().get(formHash);
+        if (form == null) {
+            form = readEncryptedForm(uri);
+        }
+        if (form.publicKey == null) {
+            return null; // this is legitimately not an encrypted form
+        }
+
+        // submission must have an OpenRosa metadata block with a non-null
+        // instanceID value.
+        if (instanceMetadata.instanceId == null) {
+            Timber.e("No OpenRosa metadata block or no instanceId defined in that block");
+            return null;
+        }
+
+        if (!hasBouncyCastle()) {
+            return null;
+        }
+
+        return new EncryptedFormInformation(form.formId, form.formVersion, instanceMetadata,
+                form.publicKey, newBase64Wrapper());
+    }
+
+    /**
+     * Reads the encryption settings of the form the uri refers to and caches them under the
+     * form's hash.
+     */
+    private static EncryptedFormCache.Entry readEncryptedForm(Uri uri)
+            throws EncryptionException {
 
         ContentResolver cr = Collect.getInstance().getContentResolver();
 
         // fetch the form information
         String formId;
         String formVersion;
+        String formHash;
         PublicKey pk;
-        Base64Wrapper wrapper;
 
         Cursor formCursor = null;
         try {
@@ -323,28 +396,19 @@ public class EncryptionUtils {
             int idxBase64RsaPublicKey = formCursor.getColumnIndex(
                     FormsColumns.BASE64_RSA_PUBLIC_KEY);
             formVersion = formCursor.isNull(idxVersion) ? null : formCursor.getString(idxVersion);
+            formHash = formCursor.getString(formCursor.getColumnIndex(FormsColumns.MD5_HASH));
             String base64RsaPublicKey = formCursor.isNull(idxBase64RsaPublicKey)
                     ? null : formCursor.getString(idxBase64RsaPublicKey);
 
             if (base64RsaPublicKey == null || base64RsaPublicKey.length() == 0) {
-                return null; // this is legitimately not an encrypted form
-            }
-
-            int version = android.os.Build.VERSION.SDK_INT;
-
-            // this constructor will throw an exception if we are not
-            // running on version 8 or above (if Base64 is not found).
-            try {
-                wrapper = new Base64Wrapper();
-            } catch (ClassNotFoundException e) {
-                String msg = String.format(Collect.getInstance()
-                        .getString(R.string.phone_does_not_have_base64_class), String.valueOf(version));
-                Timber.e(e,"%s due to %s", msg, e.getMessage());
-                throw new EncryptionException(msg, e);
+                EncryptedFormCache.Entry form = new EncryptedFormCache.Entry(formId, formVersion,
+                        null);
+                EncryptedFormCache.getInstance().put(formHash, form);
+                return form;
             }
 
             // OK -- Base64 decode (requires API Version 8 or higher)
-            byte[] publicKey = wrapper.decode(base64RsaPublicKey);
+            byte[] publicKey = newBase64Wrapper().decode(base64RsaPublicKey);
             X509EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(publicKey);
             KeyFactory kf;
             try {
@@ -367,80 +431,99 @@ public class EncryptionUtils {
             }
         }
 
-        // submission must have an OpenRosa metadata block with a non-null
-        // instanceID value.
-        if (instanceMetadata.instanceId == null) {
-            Timber.e("No OpenRosa metadata block or no instanceId defined in that block");
-            return null;
-        }
+        EncryptedFormCache.Entry form = new EncryptedFormCache.Entry(formId, formVersion, pk);
+        EncryptedFormCache.getInstance().put(formHash, form);
+        return form;
+    }
 
-        // For now, prevent encryption if the BouncyCastle implementation is not present.
-        // https://code.google.com/p/opendatakit/issues/detail?id=918
+    private static Base64Wrapper newBase64Wrapper() throws EncryptionException {
+        // this constructor will throw an exception if we are not
+        // running on version 8 or above (if Base64 is not found).
         try {
-            Cipher.getInstance(EncryptionUtils.SYMMETRIC_ALGORITHM, ENCRYPTION_PROVIDER);
-        } catch (NoSuchAlgorithmException | NoSuchProviderException | NoSuchPaddingException e) {
-            String msg;
-            if (e instanceof NoSuchAlgorithmException) {
-                msg = "No BouncyCastle implementation of symmetric algorithm!";
-            } else if (e instanceof  NoSuchProviderException) {
-                msg = "No BouncyCastle provider implementation of symmetric algorithm!";
-            } else {
-                msg = "No BouncyCastle provider for padding implementation of symmetric algorithm!";
-            }
-            Timber.e(e, msg);
-            return null;
+            return new Base64Wrapper();
+        } catch (ClassNotFoundException e) {
+            String msg = String.format(Collect.getInstance()
+                    .getString(R.string.phone_does_not_have_base64_class),
+                    String.valueOf(android.os.Build.VERSION.SDK_INT));
+            Timber.e(e, "%s due to %s", msg, e.getMessage());
+            throw new EncryptionException(msg, e);
         }
+    }
 
-        return new EncryptedFormInformation(formId, formVersion, instanceMetadata,
-                pk, wrapper);
+    /**
+     * For now, prevent encryption if the BouncyCastle implementation is not present.
+     * https://code.google.com/p/opendatakit/issues/detail?id=918
+     */
+    private static synchronized boolean hasBouncyCastle() {
+        // the installed providers do not change while the app runs
+        if (hasBouncyCastle == null) {
+            try {
+                Cipher.getInstance(EncryptionUtils.SYMMETRIC_ALGORITHM, ENCRYPTION_PROVIDER);
+                hasBouncyCastle = true;
+            } catch (NoSuchAlgorithmException | NoSuchProviderException | NoSuchPaddingException e) {
+                String msg;
+                if (e instanceof NoSuchAlgorithmException) {
+                    msg = "No BouncyCastle implementation of symmetric algorithm!";
+                } else if (e instanceof  NoSuchProviderException) {
+                    msg = "No BouncyCastle provider implementation of symmetric algorithm!";
+                } else {
+                    msg = "No BouncyCastle provider for padding implementation of symmetric algorithm!";
+                }
+                Timber.e(e, msg);
+                hasBouncyCastle = false;
+            }
+        }
+        return hasBouncyCastle;
     }
 
-    private static void encryptFile(File file, EncryptedFormInformation formInfo)
+    /**
+     * Encrypts a file into its .enc counterpart, streaming it through the cipher so that memory
+     * use does not depend on the size of the file.
+     *
+     * @param abandoned set when the submission failed, in which case the file is left unwritten
+     * @return the md5 hash of the plaintext, for the element signature
+     */
+    private static String encryptFile(File file, Cipher cipher, AtomicBoolean abandoned)
             throws IOException, EncryptionException {
         File encryptedFile = new File(file.getParentFile(), file.getName()
                 + ".enc");
 
-        if (encryptedFile.exists() && !encryptedFile.delete()) {
-            throw new IOException("Cannot overwrite " + encryptedFile.getAbsolutePath()
-                    + ". Perhaps the file is locked?");
-        }
-
-        // add elementSignatureSource for this file...
-        formInfo.appendFileSignatureSource(file);
-
-        RandomAccessFile randomAccessFile = null;
-        CipherOutputStream cipherOutputStream = null;
+        DurableFile durableFile = new DurableFile(encryptedFile);
+        FileOutputStream fout = null;
+        InputStream fin = null;
         try {
-            Cipher c = formInfo.getCipher();
-
-            randomAccessFile = new RandomAccessFile(encryptedFile, "rws");
-            ByteArrayOutputStream encryptedData = new ByteArrayOutputStream();
-            cipherOutputStream = new CipherOutputStream(encryptedData, c);
-            InputStream fin = new FileInputStream(file);
-            byte[] buffer = new byte[2048];
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            fout = durableFile.startWrite();
+            CipherOutputStream cipherOutputStream = new CipherOutputStream(
+                    new BufferedOutputStream(new CloseShieldOutputStream(fout),
+                            ENCRYPTION_BUFFER_SIZE), cipher);
+            fin = new FileInputStream(file);
+            byte[] buffer = new byte[ENCRYPTION_BUFFER_SIZE];
             int len = fin.read(buffer);
             while (len != -1) {
+                if (abandoned.get()) {
+                    throw new InterruptedIOException("Encryption of the submission was abandoned");
+                }
+                md.update(buffer, 0, len);
                 cipherOutputStream.write(buffer, 0, len);
                 len = fin.read(buffer);
             }
-            fin.close();
-            cipherOutputStream.flush();
+            // writes the final block and flushes the buffer, without closing the file yet
             cipherOutputStream.close();
-
-            randomAccessFile.write(encryptedData.toByteArray());
+            durableFile.finishWrite(fout);
 
             Timber.i("Encrpyted:%s -> %s", file.getName(), encryptedFile.getName());
+            return FileUtils.toMd5String(md.digest());
         } catch (Exception e) {
+            if (fout != null) {
+                durableFile.failWrite(fout);
+            }
             String msg = "Error encrypting: " + file.getName() + " -> "
                     + encryptedFile.getName();
             Timber.e(e, "%s due to %s ", msg, e.getMessage());
             throw new EncryptionException(msg, e);
         } finally {
-            IOUtils.closeQuietly(cipherOutputStream);
-
-            if (randomAccessFile != null) {
-                randomAccessFile.close();
-            }
+            IOUtils.closeQuietly(fin);
         }
     }
 
@@ -499,17 +582,96 @@ public class EncryptionUtils {
                 filesToProcess.add(f);
             }
         }
-        // encrypt here...
-        for (File f : filesToProcess) {
-            encryptFile(f, formInfo);
-        }
+        // the submission.xml is encrypted as the last file...
+        List<File> filesToEncrypt = new ArrayList<File>(filesToProcess);
+        filesToEncrypt.add(submissionXml);
+
+        // the ciphers are created in file order since each one takes the next iv in the
+        // sequence the server decrypts the files with; the files can then be encrypted in
+        // any order
+        List<Future<String>> md5Hashes = new ArrayList<Future<String>>();
+        final AtomicBoolean abandoned = new AtomicBoolean();
+        try {
+            for (final File f : filesToEncrypt) {
+                final Cipher c;
+                try {
+                    c = formInfo.getCipher();
+                } catch (GeneralSecurityException e) {
+                    String msg = "Error encrypting: " + f.getName();
+                    Timber.e(e, "%s due to %s ", msg, e.getMessage());
+                    throw new EncryptionException(msg, e);
+                }
+                md5Hashes.add(ENCRYPTION_EXECUTOR.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return abandoned.get() ? null : encryptFile(f, c, abandoned);
+                    }
+                }));
+            }
 
-        // encrypt the submission.xml as the last file...
-        encryptFile(submissionXml, formInfo);
+            // add elementSignatureSource for the files, in order
+            for (int i = 0; i < filesToEncrypt.size(); i++) {
+                formInfo.appendFileSignatureSource(filesToEncrypt.get(i),
+                        awaitEncryption(md5Hashes.get(i)));
+            }
+        } catch (IOException | EncryptionException e) {
+            // stop the other encryptions and wait for them to let go of their files, so that
+            // no encrypted file of a failed submission is left behind to be uploaded
+            abandoned.set(true);
+            for (Future<String> future : md5Hashes) {
+                awaitQuietly(future);
+            }
+            for (File f : filesToEncrypt) {
+                File encryptedFile = new File(f.getParentFile(), f.getName() + ".enc");
+                if (encryptedFile.exists() && !encryptedFile.delete()) {
+                    Timber.w("Unable to delete %s", encryptedFile.getAbsolutePath());
+                }
+            }
+            throw e;
+        }
 
         return filesToProcess;
     }
 
+    /**
+     * Waits for an encryption and rethrows its failure.
+     */
+    private static String awaitEncryption(Future<String> md5Hash)
+            throws IOException, EncryptionException {
+        try {
+            return md5Hash.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            if (cause instanceof EncryptionException) {
+                throw (EncryptionException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new EncryptionException("Error encrypting submission", cause);
+        }
+    }
+
+    /**
+     * Waits for an encryption of a failed submission to stop, whatever its outcome.
+     */
+    private static void awaitQuietly(Future<String> md5Hash) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                md5Hash.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                // only the first failure is reported
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * Constructs the encrypted attachments, encrypted form xml, and the
      * plaintext submission manifest (with signature) for the form submission.
@@ -586,11 +748,11 @@ public class EncryptionUtils {
         c.addChild(0, Node.TEXT, formInfo.getBase64EncryptedElementSignature());
         e.addChild(idx++, Node.ELEMENT, c);
 
+        DurableFile durableFile = new DurableFile(submissionXml);
         FileOutputStream fout = null;
-        OutputStreamWriter writer = null;
         try {
-            fout = new FileOutputStream(submissionXml);
-            writer = new OutputStreamWriter(fout, UTF_8);
+            fout = durableFile.startWrite();
+            OutputStreamWriter writer = new OutputStreamWriter(fout, UTF_8);
 
             KXmlSerializer serializer = new KXmlSerializer();
             serializer.setOutput(writer);
@@ -599,16 +761,15 @@ public class EncryptionUtils {
             d.writeChildren(serializer);
             serializer.flush();
             writer.flush();
-            fout.getChannel().force(true);
-            writer.close();
+            durableFile.finishWrite(fout);
         } catch (Exception ex) {
+            if (fout != null) {
+                durableFile.failWrite(fout);
+            }
             String msg = "Error writing submission.xml for encrypted submission: "
                     + submissionXml.getParentFile().getName();
             Timber.e(ex, "%s due to : %s ", msg, ex.getMessage());
             throw new EncryptionException(msg, ex);
-        } finally {
-            IOUtils.closeQuietly(writer);
-            IOUtils.closeQuietly(fout);
         }
     }
 }
@@ -65,6 +65,8 @@ public class FileUtils {
     public static final String AUTO_DELETE = "autoDelete";
     public static final String AUTO_SUBMIT = "autoSubmit";
 
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
     public static String getMimeType(String fileUrl)
             throws java.io.IOException {
         FileNameMap fileNameMap = URLConnection.getFileNameMap();
@@ -137,46 +139,19 @@ public class FileUtils {
     }
 
     public static String getMd5Hash(File file) {
+        InputStream is = null;
         try {
             // CTS (6/15/2010) : stream file through digest instead of handing it the byte[]
             MessageDigest md = MessageDigest.getInstance("MD5");
-            int chunkSize = 256;
-
-            byte[] chunk = new byte[chunkSize];
-
-            // Get the size of the file
-            long llength = file.length();
-
-            if (llength > Integer.MAX_VALUE) {
-                Timber.e("File %s is too large", file.getName());
-                return null;
-            }
-
-            int length = (int) llength;
+            byte[] chunk = new byte[HASH_BUFFER_SIZE];
 
-            InputStream is = null;
             is = new FileInputStream(file);
 
-            int l = 0;
-            for (l = 0; l + chunkSize < length; l += chunkSize) {
-                is.read(chunk, 0, chunkSize);
-                md.update(chunk, 0, chunkSize);
+            int read;
+            while ((read = is.read(chunk)) != -1) {
+                md.update(chunk, 0, read);
             }
-
-            int remaining = length - l;
-            if (remaining > 0) {
-                is.read(chunk, 0, remaining);
-                md.update(chunk, 0, remaining);
-            }
-            byte[] messageDigest = md.digest();
-
-            BigInteger number = new BigInteger(1, messageDigest);
-            String md5 = number.toString(16);
-            while (md5.length() < 32) {
-                md5 = "0" + md5;
-            }
-            is.close();
-            return md5;
+            return toMd5String(md.digest());
 
         } catch (NoSuchAlgorithmException | IOException e) {
             if (e instanceof NoSuchAlgorithmException) {
@@ -187,7 +162,21 @@ public class FileUtils {
                 Timber.e(e, "Problem reading file %s", file.getAbsolutePath());
             }
             return null;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * @return an md5 digest as the zero-padded, 32-character hex string used for file hashes
+     */
+    public static String toMd5String(byte[] messageDigest) {
+        BigInteger number = new BigInteger(1, messageDigest);
+        String md5 = number.toString(16);
+        while (md5.length() < 32) {
+            md5 = "0" + md5;
         }
+        return md5;
     }
 
 
@@ -96,6 +96,8 @@ public class ResetUtility {
                 .clear()
                 .commit();
 
+        UriRemapCache.getInstance().clear();
+
         boolean deletedSettingsFolderContest = !new File(Collect.SETTINGS).exists()
                 || deleteFolderContents(Collect.SETTINGS);
 
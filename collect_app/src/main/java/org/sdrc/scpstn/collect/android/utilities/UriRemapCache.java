@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sdrc.scpstn.collect.android.utilities;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+import org.sdrc.scpstn.collect.android.application.Collect;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers, across upload sessions, where the OpenRosa server behind a submission URL told us
+ * to send submissions in answer to a HEAD request, so that the HEAD round trip is not repeated
+ * before every session. Entries expire after a day, and the uploader removes an entry as soon as
+ * a submission sent with it is redirected or refused for lack of credentials.
+ *
+ * Neither the submission URL nor the remapped URL is stored with its query, which holds the
+ * credentials of the user; the query of the submission URL in use is carried over to the remapped
+ * URL when it is looked up.
+ */
+public class UriRemapCache {
+
+    private static final String URI_REMAP_PREFERENCES = "uri_remap";
+    private static final long TIME_TO_LIVE = TimeUnit.DAYS.toMillis(1);
+
+    private static UriRemapCache singleton;
+
+    private final SharedPreferences preferences;
+
+    private UriRemapCache(Context context) {
+        preferences = context.getSharedPreferences(URI_REMAP_PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    public static synchronized UriRemapCache getInstance() {
+        if (singleton == null) {
+            singleton = new UriRemapCache(Collect.getInstance());
+        }
+        return singleton;
+    }
+
+    /**
+     * @return the URL to send submissions for the given URL to, with the query of the given URL,
+     * or null if there is no remap or it expired.
+     */
+    public Uri get(Uri uri) {
+        String key = getKey(uri);
+        String value = preferences.getString(key, null);
+        if (value == null) {
+            return null;
+        }
+
+        // "<expiry time> <remapped uri>"
+        int separator = value.indexOf(' ');
+        try {
+            if (separator > 0
+                    && Long.parseLong(value.substring(0, separator)) > System.currentTimeMillis()) {
+                return Uri.parse(value.substring(separator + 1)).buildUpon()
+                        .encodedQuery(uri.getEncodedQuery())
+                        .build();
+            }
+        } catch (NumberFormatException e) {
+            // dropped below
+        }
+        preferences.edit().remove(key).apply();
+        return null;
+    }
+
+    public void put(Uri uri, Uri remapped) {
+        preferences.edit()
+                .putString(getKey(uri),
+                        (System.currentTimeMillis() + TIME_TO_LIVE) + " " + stripQuery(remapped))
+                .apply();
+    }
+
+    public void remove(Uri uri) {
+        preferences.edit().remove(getKey(uri)).apply();
+    }
+
+    public void clear() {
+        preferences.edit().clear().apply();
+    }
+
+    private static String getKey(Uri uri) {
+        return stripQuery(uri);
+    }
+
+    private static String stripQuery(Uri uri) {
+        return uri.buildUpon().clearQuery().fragment(null).build().toString();
+    }
+}
@@ -29,6 +29,7 @@ import org.opendatakit.httpclientandroidlib.Header;
 import org.opendatakit.httpclientandroidlib.HttpEntity;
 import org.opendatakit.httpclientandroidlib.HttpHost;
 import org.opendatakit.httpclientandroidlib.HttpRequest;
+import org.opendatakit.httpclientandroidlib.HttpRequestInterceptor;
 import org.opendatakit.httpclientandroidlib.HttpResponse;
 import org.opendatakit.httpclientandroidlib.HttpStatus;
 import org.opendatakit.httpclientandroidlib.auth.AuthScope;
@@ -44,11 +45,17 @@ import org.opendatakit.httpclientandroidlib.client.methods.HttpGet;
 import org.opendatakit.httpclientandroidlib.client.methods.HttpHead;
 import org.opendatakit.httpclientandroidlib.client.methods.HttpPost;
 import org.opendatakit.httpclientandroidlib.client.protocol.HttpClientContext;
+import org.opendatakit.httpclientandroidlib.config.ConnectionConfig;
 import org.opendatakit.httpclientandroidlib.config.SocketConfig;
-import org.opendatakit.httpclientandroidlib.conn.ClientConnectionManager;
+import org.opendatakit.httpclientandroidlib.conn.HttpConnectionFactory;
+import org.opendatakit.httpclientandroidlib.conn.ManagedHttpClientConnection;
+import org.opendatakit.httpclientandroidlib.conn.routing.HttpRoute;
 import org.opendatakit.httpclientandroidlib.impl.auth.BasicScheme;
 import org.opendatakit.httpclientandroidlib.impl.client.BasicAuthCache;
+import org.opendatakit.httpclientandroidlib.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.opendatakit.httpclientandroidlib.impl.client.HttpClientBuilder;
+import org.opendatakit.httpclientandroidlib.impl.conn.ManagedHttpClientConnectionFactory;
+import org.opendatakit.httpclientandroidlib.impl.conn.PoolingHttpClientConnectionManager;
 import org.opendatakit.httpclientandroidlib.protocol.HttpContext;
 import org.xmlpull.v1.XmlPullParser;
 
@@ -60,9 +67,13 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 
 import timber.log.Timber;
@@ -88,7 +99,16 @@ public final class WebUtils {
     public static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
     public static final String GZIP_CONTENT_ENCODING = "gzip";
 
-    private static ClientConnectionManager httpConnectionManager = null;
+    // connections kept open for reuse, shared by all the clients
+    private static final int MAX_CONNECTIONS = 16;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+    private static final long IDLE_CONNECTION_TIMEOUT = 30000;
+
+    private static PoolingHttpClientConnectionManager httpConnectionManager = null;
+    private static final Map<Integer, HttpClient> httpClients = new HashMap<Integer, HttpClient>();
+
+    private static final AtomicLong requestCount = new AtomicLong();
+    private static final AtomicLong connectionCount = new AtomicLong();
 
     public static final List<AuthScope> buildAuthScopes(String host) {
         List<AuthScope> asList = new ArrayList<AuthScope>();
@@ -242,16 +262,25 @@ public final class WebUtils {
 
     /**
      * Create an httpClient with connection timeouts and other parameters set.
-     * Save and reuse the connection manager across invocations (this is what
-     * requires synchronized access).
+     * The clients are kept for reuse, one for each timeout, and all of them
+     * share the process-wide connection pool (this is what requires
+     * synchronized access). Connections are kept alive and reused by the
+     * following requests to the same server, across uploads and downloads,
+     * so that they do not pay for the TCP and TLS handshakes again.
      *
      * @return HttpClient properly configured.
      */
     public static final synchronized HttpClient createHttpClient(int timeout) {
-        // configure connection
-        SocketConfig socketConfig = SocketConfig.copy(SocketConfig.DEFAULT).setSoTimeout(
-                2 * timeout)
-                .build();
+        PoolingHttpClientConnectionManager connectionManager = getHttpConnectionManager();
+
+        // close the connections the servers will have dropped by now
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        HttpClient httpClient = httpClients.get(timeout);
+        if (httpClient != null) {
+            return httpClient;
+        }
 
         // if possible, bias toward digest auth (may not be in 4.0 beta 2)
         List<String> targetPreferredAuthSchemes = new ArrayList<String>();
@@ -260,6 +289,9 @@ public final class WebUtils {
 
         RequestConfig requestConfig = RequestConfig.copy(RequestConfig.DEFAULT)
                 .setConnectTimeout(timeout)
+                .setSocketTimeout(2 * timeout)
+                // don't wait forever for a pooled connection
+                .setConnectionRequestTimeout(timeout)
                 // support authenticating
                 .setAuthenticationEnabled(true)
                 // support redirecting to handle http: => https: transition
@@ -270,11 +302,67 @@ public final class WebUtils {
                 .setCookieSpec(CookieSpecs.DEFAULT)
                 .build();
 
-        return HttpClientBuilder.create()
-                .setDefaultSocketConfig(socketConfig)
+        httpClient = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setConnectionManagerShared(true)
+                .setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+                    @Override
+                    public long getKeepAliveDuration(HttpResponse response,
+                            HttpContext context) {
+                        // as long as the server allows, but no longer than the idle timeout
+                        long duration = super.getKeepAliveDuration(response, context);
+                        return duration > 0 ? Math.min(duration, IDLE_CONNECTION_TIMEOUT)
+                                : IDLE_CONNECTION_TIMEOUT;
+                    }
+                })
+                .addInterceptorLast(new HttpRequestInterceptor() {
+                    @Override
+                    public void process(HttpRequest request, HttpContext context) {
+                        requestCount.incrementAndGet();
+                    }
+                })
                 .setDefaultRequestConfig(requestConfig)
+                .setDefaultCookieStore(Collect.getInstance().getCookieStore())
+                .setDefaultCredentialsProvider(Collect.getInstance().getCredentialsProvider())
                 .build();
+        httpClients.put(timeout, httpClient);
+        return httpClient;
+    }
 
+    private static PoolingHttpClientConnectionManager getHttpConnectionManager() {
+        if (httpConnectionManager == null) {
+            httpConnectionManager = new PoolingHttpClientConnectionManager(
+                    new HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection>() {
+                        @Override
+                        public ManagedHttpClientConnection create(HttpRoute route,
+                                ConnectionConfig config) {
+                            connectionCount.incrementAndGet();
+                            return ManagedHttpClientConnectionFactory.INSTANCE.create(route,
+                                    config);
+                        }
+                    });
+            httpConnectionManager.setMaxTotal(MAX_CONNECTIONS);
+            httpConnectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+            httpConnectionManager.setDefaultSocketConfig(SocketConfig.copy(SocketConfig.DEFAULT)
+                    .setSoTimeout(2 * CONNECTION_TIMEOUT)
+                    .build());
+        }
+        return httpConnectionManager;
+    }
+
+    /**
+     * @return the number of requests sent by the clients since the application started
+     */
+    public static long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return the number of connections opened for the requests since the application started.
+     * Every request sent over an existing connection saved a connection setup.
+     */
+    public static long getConnectionCount() {
+        return connectionCount.get();
     }
 
     /**
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sdrc.scpstn.collect.android.views;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.SelectChoice;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.form.api.FormEntryCaption;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryPrompt;
+import org.sdrc.scpstn.collect.android.logic.FormController;
+
+import timber.log.Timber;
+
+/**
+ * Builds the view of the screen after the current one while the UI thread is idle, so that a
+ * forward swipe only has to check the prefetched view is still accurate instead of resolving the
+ * prompts and creating every widget and its media.
+ *
+ * JavaRosa and the view hierarchy may only be used from the UI thread, so the work is done in an
+ * idle handler rather than on a worker thread. A prefetched view is discarded whenever the prompts
+ * of that screen no longer look the same, e.g. because an answer changed their relevance, text,
+ * answers or choices.
+ */
+public class ScreenPrefetcher {
+
+    private final Context context;
+
+    private FormController formController;
+    private FormIndex fromIndex;
+    private FormIndex index;
+    private String signature;
+    private ODKView view;
+
+    private boolean scheduled;
+
+    public ScreenPrefetcher(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Prefetches the screen following the current index of the form controller once the UI
+     * thread has nothing else to do.
+     */
+    public void schedule(final FormController formController) {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                scheduled = false;
+                prefetch(formController);
+                return false;
+            }
+        });
+    }
+
+    /**
+     * @param prompts the prompts of the screen at the form controller's current index
+     * @return the prefetched view for that screen if it is still accurate, null otherwise
+     */
+    public ODKView take(FormController formController, FormEntryPrompt[] prompts,
+                        FormEntryCaption[] groups) {
+        ODKView prefetched = null;
+        if (view != null && formController == this.formController
+                && formController.getFormIndex().equals(index)
+                && signature(prompts, groups).equals(signature)) {
+            prefetched = view;
+            view = null;
+        }
+        clear();
+        return prefetched;
+    }
+
+    public void clear() {
+        if (view != null) {
+            view.recycleDrawables();
+        }
+        formController = null;
+        fromIndex = null;
+        index = null;
+        signature = null;
+        view = null;
+    }
+
+    private void prefetch(FormController formController) {
+        FormIndex current = formController.getFormIndex();
+        if (view != null && formController == this.formController && current.equals(fromIndex)) {
+            return;
+        }
+        clear();
+
+        try {
+            int event = formController.stepToNextScreenEvent();
+            if (event == FormEntryController.EVENT_QUESTION
+                    || event == FormEntryController.EVENT_GROUP
+                    || event == FormEntryController.EVENT_REPEAT) {
+                FormEntryPrompt[] prompts = formController.getQuestionPrompts();
+                // ODKView starts autoplay media as soon as it is created
+                for (FormEntryPrompt prompt : prompts) {
+                    if (prompt.getFormElement().getAdditionalAttribute(null, "autoplay") != null) {
+                        return;
+                    }
+                }
+                FormEntryCaption[] groups = formController.getGroupsForCurrentIndex();
+                ODKView prefetched = new ODKView(context, prompts, groups, true);
+
+                this.formController = formController;
+                fromIndex = current;
+                index = formController.getFormIndex();
+                signature = signature(prompts, groups);
+                view = prefetched;
+            }
+        } catch (Exception e) {
+            // the screen will simply be built when it is shown
+            Timber.w(e, "Unable to prefetch the next screen");
+            clear();
+        } finally {
+            formController.jumpToIndex(current);
+        }
+    }
+
+    /**
+     * Everything a widget reads when it is created. Prompts are live views of the form, so a
+     * signature taken from the prefetched prompts later reflects the current answers.
+     */
+    private static String signature(FormEntryPrompt[] prompts, FormEntryCaption[] groups) {
+        StringBuilder sb = new StringBuilder();
+        for (FormEntryCaption group : groups) {
+            sb.append(group.getLongText()).append('\n');
+        }
+        for (FormEntryPrompt prompt : prompts) {
+            sb.append(prompt.getIndex()).append('|')
+                    .append(prompt.getLongText()).append('|')
+                    .append(prompt.isReadOnly()).append('|')
+                    .append(prompt.isRequired()).append('|');
+            IAnswerData answer = prompt.getAnswerValue();
+            if (answer != null) {
+                sb.append(answer.getDisplayText());
+            }
+            if (prompt.getQuestion() != null && prompt.getQuestion().getDynamicChoices() != null) {
+                for (SelectChoice choice : prompt.getSelectChoices()) {
+                    sb.append('|').append(choice.getValue());
+                }
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,161 @@
+package org.sdrc.scpstn.collect.android.logic;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.instance.InstanceInitializationFactory;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.xform.util.XFormUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sdrc.scpstn.collect.android.BuildConfig;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A new instance restored from the cache must match a full initialize of the form, apart from
+ * the values that have to be unique to every submission.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml",
+        packageName = "org.sdrc.scpstn.collect")
+public class BlankInstanceCacheTest {
+
+    private static final String FORM = "<h:html xmlns=\"http://www.w3.org/2002/xforms\""
+            + " xmlns:h=\"http://www.w3.org/1999/xhtml\""
+            + " xmlns:jr=\"http://openrosa.org/javarosa\">"
+            + "<h:head><h:title>Blank instance</h:title><model>"
+            + "<instance><data id=\"blank\"><start/><age>30</age><adult/><name/><stamp/>"
+            + "<meta><instanceID/></meta></data></instance>"
+            + "<bind nodeset=\"/data/start\" type=\"dateTime\" jr:preload=\"timestamp\""
+            + " jr:preloadParams=\"start\"/>"
+            + "<bind nodeset=\"/data/age\" type=\"int\"/>"
+            + "<bind nodeset=\"/data/adult\" type=\"string\""
+            + " calculate=\"if(/data/age &gt;= 18, 'yes', 'no')\"/>"
+            + "<bind nodeset=\"/data/name\" type=\"string\" relevant=\"/data/age &lt; 18\"/>"
+            + "<bind nodeset=\"/data/stamp\" type=\"string\""
+            + " calculate=\"concat(/data/adult, '-', /data/meta/instanceID)\"/>"
+            + "<bind nodeset=\"/data/meta/instanceID\" type=\"string\" readonly=\"true()\""
+            + " calculate=\"concat('uuid:', uuid())\"/>"
+            + "</model></h:head><h:body>"
+            + "<input ref=\"/data/age\"><label>Age</label></input>"
+            + "<input ref=\"/data/name\"><label>Name</label></input>"
+            + "</h:body></h:html>";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void initializeNewInstance_MatchesFullInitialize() throws Exception {
+        FormController.initializeJavaRosa(new PropertyManager(RuntimeEnvironment.application));
+        File formXml = writeForm();
+        BlankInstanceCache cache = BlankInstanceCache.getInstance();
+
+        FormDef expected = parse(formXml);
+        expected.initialize(true, new InstanceInitializationFactory());
+
+        // the first new instance is initialized in full and cached, the second one is restored
+        FormDef first = parse(formXml);
+        cache.initializeNewInstance(first, "matches-full-initialize", formXml);
+        FormDef restored = parse(formXml);
+        cache.initializeNewInstance(restored, "matches-full-initialize", formXml);
+
+        TreeElement root = restored.getInstance().getRoot();
+        assertSameTree(expected.getInstance().getRoot(), root);
+
+        String instanceId = value(root.getChild("meta", 0).getChild("instanceID", 0));
+        assertTrue(instanceId.startsWith("uuid:"));
+        assertNotEquals(value(first.getInstance().getRoot().getChild("meta", 0)
+                .getChild("instanceID", 0)), instanceId);
+        assertEquals("yes-" + instanceId, value(root.getChild("stamp", 0)));
+        assertNotNull(root.getChild("start", 0).getValue());
+    }
+
+    @Test
+    public void findVolatileCalculates_ReturnsUuidAndDependents() throws Exception {
+        FormController.initializeJavaRosa(new PropertyManager(RuntimeEnvironment.application));
+        File formXml = writeForm();
+        FormDef fd = parse(formXml);
+        fd.initialize(true, new InstanceInitializationFactory());
+
+        // only the instanceID calculate calls a volatile function; /data/stamp is refreshed
+        // through its dependency on it
+        assertEquals(1, BlankInstanceCache.findVolatileCalculates(fd, formXml).size());
+    }
+
+    @Test
+    public void findVolatileCalculates_VolatileRelevantIsNotCached() throws Exception {
+        FormController.initializeJavaRosa(new PropertyManager(RuntimeEnvironment.application));
+        File formXml = writeForm(FORM.replace("relevant=\"/data/age &lt; 18\"",
+                "relevant=\"today() &lt; date('2030-01-01')\""));
+        FormDef fd = parse(formXml);
+        fd.initialize(true, new InstanceInitializationFactory());
+
+        assertNull(BlankInstanceCache.findVolatileCalculates(fd, formXml));
+    }
+
+    /**
+     * Compares everything but the values that are regenerated for each new instance.
+     */
+    private void assertSameTree(TreeElement expected, TreeElement actual) {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getName(), expected.getMult(), actual.getMult());
+        assertEquals(expected.getName(), expected.isRelevant(), actual.isRelevant());
+        assertEquals(expected.getName(), expected.isRequired(), actual.isRequired());
+        if (!isVolatile(expected.getName())) {
+            assertEquals(expected.getName(), value(expected), value(actual));
+        }
+        assertEquals(expected.getName(), expected.getNumChildren(), actual.getNumChildren());
+        for (int i = 0; i < expected.getNumChildren(); i++) {
+            assertSameTree(expected.getChildAt(i), actual.getChildAt(i));
+        }
+    }
+
+    private boolean isVolatile(String name) {
+        return "start".equals(name) || "instanceID".equals(name) || "stamp".equals(name);
+    }
+
+    private String value(TreeElement element) {
+        IAnswerData value = element.getValue();
+        return value == null ? null : value.getDisplayText();
+    }
+
+    private FormDef parse(File formXml) throws IOException {
+        FileInputStream fis = new FileInputStream(formXml);
+        try {
+            return XFormUtils.getFormFromInputStream(fis);
+        } finally {
+            fis.close();
+        }
+    }
+
+    private File writeForm() throws IOException {
+        return writeForm(FORM);
+    }
+
+    private File writeForm(String form) throws IOException {
+        File file = folder.newFile("blank.xml");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(form);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,117 @@
+package org.sdrc.scpstn.collect.android.logic;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.data.IntegerData;
+import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.instance.InstanceInitializationFactory;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.xform.util.XFormUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sdrc.scpstn.collect.android.BuildConfig;
+
+import java.io.ByteArrayInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.sdrc.scpstn.collect.android.logic.FormTestUtils.question;
+
+/**
+ * Drafts are saved whatever their answers; completing the form stops at the first question that
+ * breaks its constraint or is required but empty.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml",
+        packageName = "org.sdrc.scpstn.collect")
+public class FormControllerValidationTest {
+
+    private static final String FORM = "<h:html xmlns=\"http://www.w3.org/2002/xforms\""
+            + " xmlns:h=\"http://www.w3.org/1999/xhtml\">"
+            + "<h:head><h:title>Validation</h:title><model>"
+            + "<instance><data id=\"validation\"><low/><high/><name/><note/>"
+            + "</data></instance>"
+            + "<bind nodeset=\"/data/low\" type=\"int\" constraint=\". &lt; 100\"/>"
+            + "<bind nodeset=\"/data/high\" type=\"int\" constraint=\". &gt; /data/low\"/>"
+            + "<bind nodeset=\"/data/name\" type=\"string\" required=\"true()\""
+            + " relevant=\"/data/low &gt; 0\"/>"
+            + "<bind nodeset=\"/data/note\" type=\"string\""
+            + " calculate=\"concat(/data/low, '-', /data/high)\"/>"
+            + "</model></h:head><h:body>"
+            + "<input ref=\"/data/low\"><label>Low</label></input>"
+            + "<input ref=\"/data/high\"><label>High</label></input>"
+            + "<input ref=\"/data/name\"><label>Name</label></input>"
+            + "</h:body></h:html>";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FormController formController;
+
+    @Before
+    public void setUp() throws Exception {
+        FormController.initializeJavaRosa(new PropertyManager(RuntimeEnvironment.application));
+        FormDef fd = XFormUtils.getFormFromInputStream(
+                new ByteArrayInputStream(FORM.getBytes("UTF-8")));
+        fd.initialize(true, new InstanceInitializationFactory());
+        formController = new FormController(folder.getRoot(),
+                new FormEntryController(new FormEntryModel(fd)), null);
+
+        save("low", new IntegerData(10));
+        save("high", new IntegerData(20));
+        save("name", new StringData("Jane"));
+    }
+
+    @Test
+    public void validAnswers_Complete() throws Exception {
+        assertEquals(FormEntryController.ANSWER_OK, formController.validateAnswers(true));
+    }
+
+    @Test
+    public void draft_SavedDespiteViolations() throws Exception {
+        save("low", new IntegerData(500));
+        save("name", null);
+        assertEquals(FormEntryController.ANSWER_OK, formController.validateAnswers(false));
+    }
+
+    @Test
+    public void answerOutsideConstraint_StopsCompletion() throws Exception {
+        save("low", new IntegerData(500));
+        assertFailsAt(FormEntryController.ANSWER_CONSTRAINT_VIOLATED, "/data/low");
+    }
+
+    @Test
+    public void constraintBrokenThroughDependency_StopsCompletion() throws Exception {
+        // /data/high itself is unchanged but its constraint now fails
+        save("low", new IntegerData(50));
+        assertFailsAt(FormEntryController.ANSWER_CONSTRAINT_VIOLATED, "/data/high");
+    }
+
+    @Test
+    public void clearedRequiredAnswer_StopsCompletion() throws Exception {
+        save("name", null);
+        assertFailsAt(FormEntryController.ANSWER_REQUIRED_BUT_EMPTY, "/data/name");
+    }
+
+    @Test
+    public void irrelevantRequiredQuestion_Completes() throws Exception {
+        save("name", null);
+        save("low", new IntegerData(-1));
+        assertEquals(FormEntryController.ANSWER_OK, formController.validateAnswers(true));
+    }
+
+    private void assertFailsAt(int status, String ref) throws Exception {
+        assertEquals(status, formController.validateAnswers(true));
+        assertEquals(ref, formController.getFormIndex().getReference().toString(false));
+    }
+
+    private void save(String name, IAnswerData value) throws Exception {
+        formController.saveAnswer(question(formController, "/data/" + name), value);
+    }
+}
@@ -0,0 +1,146 @@
+package org.sdrc.scpstn.collect.android.logic;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.instance.InstanceInitializationFactory;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.xform.util.XFormUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sdrc.scpstn.collect.android.BuildConfig;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.sdrc.scpstn.collect.android.logic.FormTestUtils.question;
+
+/**
+ * The hierarchy levels of a form with a large roster must list every repeat instance without
+ * moving the current index, and only be rebuilt when repeats change.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml",
+        packageName = "org.sdrc.scpstn.collect")
+public class FormHierarchyTest {
+
+    private static final int REPEATS = 3;
+    private static final int LARGE_ROSTER_REPEATS = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FormEntryController formEntryController;
+    private FormController formController;
+
+    @Before
+    public void setUp() throws Exception {
+        FormController.initializeJavaRosa(new PropertyManager(RuntimeEnvironment.application));
+        loadRosterForm(REPEATS);
+    }
+
+    @Test
+    public void getLevel_SummarizesRepeatInstances() {
+        List<FormHierarchy.Entry> level = formController.getHierarchy().getLevel(null);
+
+        assertEquals(2, level.size());
+        assertEquals(FormEntryController.EVENT_QUESTION, level.get(0).getEvent());
+        assertEquals(FormEntryController.EVENT_REPEAT, level.get(1).getEvent());
+        assertEquals(REPEATS, level.get(1).getInstances().size());
+
+        FormIndex secondMember = level.get(1).getInstances().get(1);
+        List<FormHierarchy.Entry> member = formController.getHierarchy().getLevel(secondMember);
+        assertEquals(2, member.size());
+        assertEquals(FormEntryController.EVENT_QUESTION, member.get(0).getEvent());
+        assertEquals(FormEntryController.EVENT_QUESTION, member.get(1).getEvent());
+    }
+
+    @Test
+    public void getLevel_KeepsCurrentIndex() {
+        FormIndex current = question(formController, "/data/village");
+        formController.jumpToIndex(current);
+
+        formController.getHierarchy().getLevel(null);
+        assertEquals(current, formController.getFormIndex());
+    }
+
+    @Test
+    public void getLevel_CachedUntilRepeatsChange() throws Exception {
+        FormHierarchy hierarchy = formController.getHierarchy();
+        List<FormHierarchy.Entry> level = hierarchy.getLevel(null);
+        assertSame(level, hierarchy.getLevel(null));
+
+        // answers only affect relevance and texts, which are read when the level is shown
+        formController.saveAnswer(question(formController, "/data/village"),
+                new StringData("Kandy"));
+        assertSame(level, hierarchy.getLevel(null));
+
+        List<FormIndex> instances = level.get(1).getInstances();
+        formController.jumpToIndex(formEntryController.getModel()
+                .incrementIndex(instances.get(instances.size() - 1), false));
+        formController.newRepeat();
+
+        List<FormHierarchy.Entry> updated = hierarchy.getLevel(null);
+        assertNotSame(level, updated);
+        assertEquals(REPEATS + 1, updated.get(1).getInstances().size());
+    }
+
+    @Test
+    public void getLevel_LargeRoster_ListsEveryInstanceInOrder() throws Exception {
+        loadRosterForm(LARGE_ROSTER_REPEATS);
+
+        List<FormIndex> instances = formController.getHierarchy().getLevel(null).get(1)
+                .getInstances();
+
+        assertEquals(LARGE_ROSTER_REPEATS, instances.size());
+        for (int i = 0; i < LARGE_ROSTER_REPEATS; i++) {
+            assertEquals(i, instances.get(i).getElementMultiplicity());
+        }
+        assertEquals(FormIndex.createBeginningOfFormIndex(), formController.getFormIndex());
+    }
+
+    private void loadRosterForm(int repeats) throws Exception {
+        FormDef fd = XFormUtils.getFormFromInputStream(
+                new ByteArrayInputStream(rosterForm(repeats).getBytes("UTF-8")));
+        fd.initialize(true, new InstanceInitializationFactory());
+        formEntryController = new FormEntryController(new FormEntryModel(fd));
+        formController = new FormController(folder.getRoot(), formEntryController, null);
+    }
+
+    private static String rosterForm(int repeats) {
+        StringBuilder members = new StringBuilder();
+        for (int i = 0; i < repeats; i++) {
+            members.append("<member><name>Member ").append(i).append("</name><age>")
+                    .append(20 + i % 50).append("</age></member>");
+        }
+        return "<h:html xmlns=\"http://www.w3.org/2002/xforms\""
+                + " xmlns:h=\"http://www.w3.org/1999/xhtml\""
+                + " xmlns:jr=\"http://openrosa.org/javarosa\">"
+                + "<h:head><h:title>Roster</h:title><model>"
+                + "<instance><data id=\"roster\"><village/>"
+                + "<member jr:template=\"\"><name/><age/></member>" + members
+                + "</data></instance>"
+                + "<bind nodeset=\"/data/village\" type=\"string\"/>"
+                + "<bind nodeset=\"/data/member/name\" type=\"string\"/>"
+                + "<bind nodeset=\"/data/member/age\" type=\"int\""
+                + " relevant=\"/data/village != ''\"/>"
+                + "</model></h:head><h:body>"
+                + "<input ref=\"/data/village\"><label>Village</label></input>"
+                + "<group ref=\"/data/member\"><label>Member</label>"
+                + "<repeat nodeset=\"/data/member\">"
+                + "<input ref=\"/data/member/name\"><label>Name</label></input>"
+                + "<input ref=\"/data/member/age\"><label>Age</label></input>"
+                + "</repeat></group>"
+                + "</h:body></h:html>";
+    }
+}
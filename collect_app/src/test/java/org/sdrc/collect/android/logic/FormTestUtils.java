@@ -0,0 +1,28 @@
+package org.sdrc.scpstn.collect.android.logic;
+
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.form.api.FormEntryController;
+
+/**
+ * Helpers shared by the form controller tests.
+ */
+final class FormTestUtils {
+
+    private FormTestUtils() {
+    }
+
+    /**
+     * @return the index of the question at the given reference, ignoring multiplicities
+     */
+    static FormIndex question(FormController formController, String ref) {
+        formController.jumpToIndex(FormIndex.createBeginningOfFormIndex());
+        while (formController.stepToNextEvent(FormController.STEP_INTO_GROUP)
+                != FormEntryController.EVENT_END_OF_FORM) {
+            if (formController.getEvent() == FormEntryController.EVENT_QUESTION
+                    && formController.getFormIndex().getReference().toString(false).equals(ref)) {
+                return formController.getFormIndex();
+            }
+        }
+        throw new IllegalArgumentException(ref);
+    }
+}
@@ -0,0 +1,126 @@
+package org.sdrc.scpstn.collect.android.logic;
+
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.xform.parse.XFormParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that streaming a saved instance builds the same tree as the DOM based
+ * {@link XFormParser#restoreDataModel(byte[], Class)}, also on a large instance.
+ */
+public class InstanceStreamReaderTest {
+
+    private static final int LARGE_INSTANCE_SIZE = 2 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readInstance_MatchesRestoreDataModel() throws Exception {
+        String xml = "<?xml version='1.0' ?>"
+                + "<data id=\"test\" xmlns:jr=\"http://openrosa.org/javarosa\">"
+                + "<name>  Jane &amp; John </name>"
+                + "<empty/>"
+                + "<group jr:template=\"\"><q>template</q></group>"
+                + "<group><q>one</q></group>"
+                + "<group><q><![CDATA[two <b>]]></q></group>"
+                + "<meta><instanceID>uuid:1234</instanceID></meta>"
+                + "</data>";
+        File file = write("instance.xml", xml);
+
+        TreeElement streamed = InstanceStreamReader.readInstance(file);
+        assertSameTree(restore(file), streamed);
+
+        assertEquals("Jane & John", streamed.getChild("name", 0).getValue().getDisplayText());
+        assertNull(streamed.getChild("empty", 0).getValue());
+        assertEquals("two <b>", streamed.getChild("group", 1).getChild("q", 0).getValue()
+                .getDisplayText());
+        assertEquals("template", streamed.getChild("group", TreeReference.INDEX_TEMPLATE)
+                .getChild("q", 0).getValue().getDisplayText());
+    }
+
+    @Test
+    public void readInstance_LargeInstanceMatchesRestoreDataModel() throws Exception {
+        File file = folder.newFile("large.xml");
+        int households = writeLargeInstance(file);
+
+        TreeElement streamed = InstanceStreamReader.readInstance(file);
+        assertSameTree(restore(file), streamed);
+
+        assertEquals(households, streamed.getChildMultiplicity("household"));
+        assertEquals(String.valueOf(households - 1), streamed.getChild("household",
+                households - 1).getChild("hh_id", 0).getValue().getDisplayText());
+        assertEquals("uuid:large", streamed.getChild("meta", 0).getChild("instanceID", 0)
+                .getValue().getDisplayText());
+    }
+
+    private TreeElement restore(File file) throws IOException {
+        byte[] bytes = org.apache.commons.io.FileUtils.readFileToByteArray(file);
+        return XFormParser.restoreDataModel(bytes, null).getRoot();
+    }
+
+    private void assertSameTree(TreeElement expected, TreeElement actual) {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getName(), expected.getMult(), actual.getMult());
+        assertEquals(expected.getName(), displayText(expected.getValue()),
+                displayText(actual.getValue()));
+        assertEquals(expected.getName(), expected.getNumChildren(), actual.getNumChildren());
+        for (int i = 0; i < expected.getNumChildren(); i++) {
+            assertSameTree(expected.getChildAt(i), actual.getChildAt(i));
+        }
+    }
+
+    private String displayText(IAnswerData value) {
+        return value == null ? null : value.getDisplayText();
+    }
+
+    /**
+     * @return the number of households written
+     */
+    private int writeLargeInstance(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        int i = 0;
+        try {
+            writer.write("<?xml version='1.0' ?><data id=\"large\">");
+            for (; file.length() < LARGE_INSTANCE_SIZE; i++) {
+                writer.write("<household><hh_id>" + i + "</hh_id>"
+                        + "<head_name>Head of household number " + i + "</head_name>"
+                        + "<members>4</members><village>Village " + (i % 97) + "</village>"
+                        + "<gps>11.1271 78.6569 120.0 5.0</gps>"
+                        + "<notes>Visited in the morning, follow up scheduled.</notes>"
+                        + "</household>");
+                if (i % 1000 == 0) {
+                    writer.flush();
+                }
+            }
+            writer.write("<meta><instanceID>uuid:large</instanceID></meta></data>");
+        } finally {
+            writer.close();
+        }
+        return i;
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = folder.newFile(name);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
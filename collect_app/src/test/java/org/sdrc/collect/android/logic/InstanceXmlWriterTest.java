@@ -0,0 +1,129 @@
+package org.sdrc.scpstn.collect.android.logic;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.instance.InstanceInitializationFactory;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.xform.util.XFormUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sdrc.scpstn.collect.android.BuildConfig;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that streaming an instance writes the same XML as the document built by
+ * {@link org.javarosa.model.xform.XFormSerializingVisitor}, also for a large roster.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml",
+        packageName = "org.sdrc.scpstn.collect")
+public class InstanceXmlWriterTest {
+
+    private static final int REPEATS = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        FormController.initializeJavaRosa(new PropertyManager(RuntimeEnvironment.application));
+    }
+
+    @Test
+    public void writeFilledInFormXml_MatchesGetFilledInFormXml() throws Exception {
+        FormController formController = load(form(3));
+
+        assertEquals(xml(formController), written(formController, false));
+    }
+
+    @Test
+    public void writeSubmissionXml_MatchesGetSubmissionXml() throws Exception {
+        FormController formController = load(form(3));
+
+        assertEquals(new String(IOUtils.toByteArray(formController.getSubmissionXml()
+                .getPayloadStream()), "UTF-8"), written(formController, true));
+    }
+
+    @Test
+    public void writeFilledInFormXml_LargeInstanceMatchesGetFilledInFormXml() throws Exception {
+        FormController formController = load(form(REPEATS));
+
+        String written = written(formController, false);
+
+        assertEquals(xml(formController), written);
+        assertTrue(written.contains("<name>Member " + (REPEATS - 1) + " &amp; &lt;co&gt;</name>"));
+    }
+
+    private FormController load(String form) throws Exception {
+        FormDef fd = XFormUtils.getFormFromInputStream(
+                new ByteArrayInputStream(form.getBytes("UTF-8")));
+        fd.initialize(true, new InstanceInitializationFactory());
+        return new FormController(folder.getRoot(),
+                new FormEntryController(new FormEntryModel(fd)), null);
+    }
+
+    private String xml(FormController formController) throws Exception {
+        return new String(IOUtils.toByteArray(formController.getFilledInFormXml()
+                .getPayloadStream()), "UTF-8");
+    }
+
+    private String written(FormController formController, boolean submission) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        if (submission) {
+            formController.writeSubmissionXml(bos);
+        } else {
+            formController.writeFilledInFormXml(bos);
+        }
+        return new String(bos.toByteArray(), "UTF-8");
+    }
+
+    /**
+     * A form with namespaced meta data, attributes, markup to escape, a non-relevant question,
+     * a repeat template and the given number of repeat instances.
+     */
+    private static String form(int repeats) {
+        StringBuilder members = new StringBuilder();
+        for (int i = 0; i < repeats; i++) {
+            members.append("<member><name>Member ").append(i).append(" &amp; &lt;co&gt;</name>")
+                    .append("<age>").append(20 + i % 50).append("</age></member>");
+        }
+        return "<h:html xmlns=\"http://www.w3.org/2002/xforms\""
+                + " xmlns:h=\"http://www.w3.org/1999/xhtml\""
+                + " xmlns:jr=\"http://openrosa.org/javarosa\""
+                + " xmlns:orx=\"http://openrosa.org/xforms\">"
+                + "<h:head><h:title>Writer</h:title><model>"
+                + "<instance><data id=\"writer\" version=\"2\"><village>Kandy</village>"
+                + "<hidden>secret</hidden><location/>"
+                + "<member jr:template=\"\"><name/><age/></member>" + members
+                + "<orx:meta><orx:instanceID>uuid:1234</orx:instanceID></orx:meta>"
+                + "</data></instance>"
+                + "<bind nodeset=\"/data/village\" type=\"string\"/>"
+                + "<bind nodeset=\"/data/hidden\" type=\"string\" relevant=\"false()\"/>"
+                + "<bind nodeset=\"/data/location\" type=\"geopoint\"/>"
+                + "<bind nodeset=\"/data/member/name\" type=\"string\"/>"
+                + "<bind nodeset=\"/data/member/age\" type=\"int\"/>"
+                + "<bind nodeset=\"/data/meta/instanceID\" type=\"string\" readonly=\"true()\"/>"
+                + "</model></h:head><h:body>"
+                + "<input ref=\"/data/village\"><label>Village</label></input>"
+                + "<input ref=\"/data/hidden\"><label>Hidden</label></input>"
+                + "<input ref=\"/data/location\"><label>Location</label></input>"
+                + "<group ref=\"/data/member\"><label>Member</label>"
+                + "<repeat nodeset=\"/data/member\">"
+                + "<input ref=\"/data/member/name\"><label>Name</label></input>"
+                + "<input ref=\"/data/member/age\"><label>Age</label></input>"
+                + "</repeat></group>"
+                + "</h:body></h:html>";
+    }
+}
@@ -0,0 +1,249 @@
+package org.sdrc.scpstn.collect.android.logic;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.data.IntegerData;
+import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.instance.InstanceInitializationFactory;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.xform.util.XFormUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sdrc.scpstn.collect.android.BuildConfig;
+import org.sdrc.scpstn.collect.android.utilities.CrashSimulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A savepoint recovered from its snapshot and journal must be the instance as of one of the
+ * savepoints taken, wherever the process was killed while writing them.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml",
+        packageName = "org.sdrc.scpstn.collect")
+public class SavepointJournalTest {
+
+    private static final String FORM = "<h:html xmlns=\"http://www.w3.org/2002/xforms\""
+            + " xmlns:h=\"http://www.w3.org/1999/xhtml\""
+            + " xmlns:jr=\"http://openrosa.org/javarosa\">"
+            + "<h:head><h:title>Journal</h:title><model>"
+            + "<instance><data id=\"journal\"><count/><village/>"
+            + "<member jr:template=\"\"><name/></member><total/></data></instance>"
+            + "<bind nodeset=\"/data/count\" type=\"int\"/>"
+            + "<bind nodeset=\"/data/village\" type=\"string\"/>"
+            + "<bind nodeset=\"/data/member/name\" type=\"string\"/>"
+            + "<bind nodeset=\"/data/total\" type=\"int\" calculate=\"count(/data/member)\"/>"
+            + "</model></h:head><h:body>"
+            + "<input ref=\"/data/count\"><label>Count</label></input>"
+            + "<input ref=\"/data/village\"><label>Village</label></input>"
+            + "<group ref=\"/data/member\"><label>Member</label>"
+            + "<repeat nodeset=\"/data/member\">"
+            + "<input ref=\"/data/member/name\"><label>Name</label></input>"
+            + "</repeat></group>"
+            + "</h:body></h:html>";
+
+    // random crash points tried against the journal
+    private static final int CRASHES = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FormController formController;
+    private SavepointJournal journal;
+    private File savepointFile;
+
+    // the instance as of every savepoint taken, in order
+    private final List<String> savepoints = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        FormController.initializeJavaRosa(new PropertyManager(RuntimeEnvironment.application));
+        formController = newFormController();
+        savepointFile = new File(folder.getRoot(), "instance.xml.save");
+        journal = formController.getSavepointJournal(savepointFile);
+    }
+
+    @Test
+    public void firstSavepoint_IsSnapshot() throws Exception {
+        assertTrue(savepoint().isSnapshot());
+        save("count", new IntegerData(3));
+        assertFalse(savepoint().isSnapshot());
+    }
+
+    @Test
+    public void takeSavepoint_ReplacesSavepointOnlyWhenCheckpointIsWritten() throws Exception {
+        // the snapshot is streamed under the form's lock, it is synced and put in place after it
+        SavepointJournal.Checkpoint checkpoint = formController.takeSavepoint();
+        assertTrue(checkpoint.isSnapshot());
+        assertFalse(savepointFile.exists());
+        File tempFile = new File(folder.getRoot(), "." + savepointFile.getName() + ".tmp");
+        assertTrue(tempFile.length() > 0);
+
+        journal.write(checkpoint);
+        assertFalse(tempFile.exists());
+        assertEquals(instanceXml(formController), recover(savepointFile));
+    }
+
+    @Test
+    public void replay_RestoresLatestSavepoint() throws Exception {
+        takeSavepoints();
+
+        assertEquals(savepoints.get(savepoints.size() - 1), recover(savepointFile));
+    }
+
+    @Test
+    public void replay_AfterCrashDuringAppend_RestoresAnEarlierSavepoint() throws Exception {
+        takeSavepoints();
+        File journalFile = SavepointJournal.getJournalFile(savepointFile);
+        long length = journalFile.length();
+
+        CrashSimulator crashes = new CrashSimulator(42);
+        for (int i = 0; i < CRASHES; i++) {
+            File crashFolder = folder.newFolder("crash" + i);
+            File crashedSavepoint = new File(crashFolder, savepointFile.getName());
+            FileUtils.copyFile(savepointFile, crashedSavepoint);
+
+            // the process died somewhere in the middle of appending to the journal
+            File crashedJournal = CrashSimulator.crashedCopy(journalFile, crashFolder,
+                    crashes.nextOffset(journalFile));
+
+            String recovered = recover(crashedSavepoint);
+            assertTrue("crash at " + crashedJournal.length() + " of " + length,
+                    savepoints.contains(recovered));
+        }
+    }
+
+    @Test
+    public void replay_AfterCrashDuringCompaction_IgnoresOldJournal() throws Exception {
+        takeSavepoints();
+
+        // the process died after the new snapshot was written, before its journal was;
+        // replaying the old journal on top of it would add the repeats a second time
+        FileUtils.writeStringToFile(savepointFile, instanceXml(formController), "UTF-8");
+
+        assertEquals(savepoints.get(savepoints.size() - 1), recover(savepointFile));
+    }
+
+    @Test
+    public void discard_StartsWithSnapshot() throws Exception {
+        takeSavepoints();
+        formController.discardSavepoint();
+
+        assertFalse(savepointFile.exists());
+        assertFalse(SavepointJournal.getJournalFile(savepointFile).exists());
+        assertTrue(savepoint().isSnapshot());
+    }
+
+    private void takeSavepoints() throws Exception {
+        savepoint();
+        save("count", new IntegerData(3));
+        savepoint();
+        save("village", new StringData("Kandy"));
+        addMember("Asha");
+        savepoint();
+        addMember("Ravi");
+        addMember("Mala");
+        save("village", null);
+        savepoint();
+        deleteMember(2);
+        save("count", new IntegerData(2));
+        savepoint();
+    }
+
+    private SavepointJournal.Checkpoint savepoint() throws Exception {
+        SavepointJournal.Checkpoint checkpoint = formController.takeSavepoint();
+        journal.write(checkpoint);
+        savepoints.add(instanceXml(formController));
+        return checkpoint;
+    }
+
+    private void save(String name, IAnswerData value) throws Exception {
+        formController.saveAnswer(find(FormEntryController.EVENT_QUESTION, "/data/" + name, 0),
+                value);
+    }
+
+    private void addMember(String name) throws Exception {
+        int members = formController.getFormDef().getInstance().getRoot()
+                .getChildMultiplicity("member");
+        formController.jumpToIndex(find(FormEntryController.EVENT_PROMPT_NEW_REPEAT,
+                "/data/member", 0));
+        formController.newRepeat();
+        formController.saveAnswer(find(FormEntryController.EVENT_QUESTION, "/data/member/name",
+                members), new StringData(name));
+    }
+
+    private void deleteMember(int position) throws Exception {
+        formController.jumpToIndex(find(FormEntryController.EVENT_QUESTION, "/data/member/name",
+                position - 1));
+        formController.deleteRepeat();
+    }
+
+    /**
+     * @return the index of the n-th occurrence of the event at the given reference, ignoring
+     * multiplicities
+     */
+    private FormIndex find(int event, String ref, int n) {
+        formController.jumpToIndex(FormIndex.createBeginningOfFormIndex());
+        int e;
+        while ((e = formController.stepToNextEvent(FormController.STEP_INTO_GROUP))
+                != FormEntryController.EVENT_END_OF_FORM) {
+            if (e == event && formController.getFormIndex().getReference().toString(false)
+                    .equals(ref) && n-- == 0) {
+                return formController.getFormIndex();
+            }
+        }
+        throw new IllegalArgumentException(ref);
+    }
+
+    /**
+     * Loads the savepoint the way FormLoaderTask does after a crash.
+     */
+    private String recover(File savepoint) throws Exception {
+        FormDef fd = parseForm();
+        TreeElement savedRoot = InstanceStreamReader.readInstance(savepoint);
+        TreeElement templateRoot = fd.getInstance().getRoot().deepCopy(true);
+        templateRoot.populate(savedRoot, fd);
+        fd.getInstance().setRoot(templateRoot);
+        fd.initialize(false, new InstanceInitializationFactory());
+
+        FormController recovered = new FormController(folder.getRoot(),
+                new FormEntryController(new FormEntryModel(fd)), null);
+        SavepointJournal.replay(savepoint, recovered);
+        assertEquals(FormIndex.createBeginningOfFormIndex(), recovered.getFormIndex());
+        return instanceXml(recovered);
+    }
+
+    private FormController newFormController() throws Exception {
+        FormDef fd = parseForm();
+        fd.initialize(true, new InstanceInitializationFactory());
+        return new FormController(folder.getRoot(),
+                new FormEntryController(new FormEntryModel(fd)), null);
+    }
+
+    private FormDef parseForm() throws Exception {
+        return XFormUtils.getFormFromInputStream(new ByteArrayInputStream(FORM.getBytes("UTF-8")));
+    }
+
+    private String instanceXml(FormController formController) throws Exception {
+        return new String(IOUtils.toByteArray(formController.getFilledInFormXml()
+                .getPayloadStream()), "UTF-8");
+    }
+}
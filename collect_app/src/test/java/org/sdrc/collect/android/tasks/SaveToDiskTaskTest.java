@@ -0,0 +1,90 @@
+package org.sdrc.scpstn.collect.android.tasks;
+
+import org.apache.commons.io.FileUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.instance.InstanceInitializationFactory;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.xform.util.XFormUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sdrc.scpstn.collect.android.BuildConfig;
+import org.sdrc.scpstn.collect.android.logic.FormController;
+import org.sdrc.scpstn.collect.android.logic.PropertyManager;
+import org.sdrc.scpstn.collect.android.utilities.CrashSimulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A crash while an instance is exported must leave the previously saved instance in place.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml",
+        packageName = "org.sdrc.scpstn.collect")
+public class SaveToDiskTaskTest {
+
+    private static final String FORM = "<h:html xmlns=\"http://www.w3.org/2002/xforms\""
+            + " xmlns:h=\"http://www.w3.org/1999/xhtml\">"
+            + "<h:head><h:title>Export</h:title><model>"
+            + "<instance><data id=\"export\"><name>Asha</name></data></instance>"
+            + "<bind nodeset=\"/data/name\" type=\"string\"/>"
+            + "</model></h:head><h:body>"
+            + "<input ref=\"/data/name\"><label>Name</label></input>"
+            + "</h:body></h:html>";
+
+    private static final String PREVIOUS = "<data id=\"export\"><name>previous</name></data>";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FormController formController;
+
+    @Before
+    public void setUp() throws Exception {
+        FormController.initializeJavaRosa(new PropertyManager(RuntimeEnvironment.application));
+        FormDef fd = XFormUtils.getFormFromInputStream(
+                new ByteArrayInputStream(FORM.getBytes("UTF-8")));
+        fd.initialize(true, new InstanceInitializationFactory());
+        formController = new FormController(folder.getRoot(),
+                new FormEntryController(new FormEntryModel(fd)), null);
+    }
+
+    @After
+    public void tearDown() {
+        CrashSimulator.reset();
+    }
+
+    @Test
+    public void exportXmlFile_CrashBeforeRename_LeavesPreviousInstance() throws Exception {
+        File instanceXml = new File(folder.getRoot(), "instance.xml");
+        FileUtils.writeStringToFile(instanceXml, PREVIOUS, "UTF-8");
+
+        CrashSimulator.crashBeforeRename(instanceXml);
+        try {
+            SaveToDiskTask.exportXmlFile(formController, false, instanceXml.getAbsolutePath());
+            fail("Expected the export to crash");
+        } catch (CrashSimulator.Crash e) {
+            // the process died with the new instance written, but not in place
+        }
+        CrashSimulator.reset();
+        assertEquals(PREVIOUS, FileUtils.readFileToString(instanceXml, "UTF-8"));
+
+        // saving again after the restart replaces the leftover temporary file
+        SaveToDiskTask.exportXmlFile(formController, false, instanceXml.getAbsolutePath());
+        assertTrue(FileUtils.readFileToString(instanceXml, "UTF-8").contains("<name>Asha</name>"));
+        assertFalse(new File(folder.getRoot(), ".instance.xml.tmp").exists());
+    }
+}
@@ -0,0 +1,79 @@
+package org.sdrc.scpstn.collect.android.utilities;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * Simulates the process being killed while a file is written, either by truncating a copy of the
+ * file at arbitrary offsets: whatever reached the disk before the crash, and nothing after it, or
+ * by stopping a {@link DurableFile} write after its new content is synced, before the rename.
+ */
+public class CrashSimulator {
+
+    /**
+     * Thrown where the process dies. It is an {@link Error} so that the code writing the file does
+     * not get to clean up after itself, as it would not after a real crash.
+     */
+    public static class Crash extends Error {
+        Crash(File file) {
+            super("Crashed before replacing " + file.getAbsolutePath());
+        }
+    }
+
+    private final Random random;
+
+    public CrashSimulator(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * @return an offset between 0 and the length of the file, inclusive
+     */
+    public long nextOffset(File file) {
+        return (long) (random.nextDouble() * (file.length() + 1));
+    }
+
+    /**
+     * Copies a file into a folder and truncates the copy, leaving the original untouched.
+     *
+     * @return the truncated copy
+     */
+    public static File crashedCopy(File file, File folder, long offset) throws IOException {
+        File copy = new File(folder, file.getName());
+        FileUtils.copyFile(file, copy);
+        truncate(copy, offset);
+        return copy;
+    }
+
+    /**
+     * Makes the next {@link DurableFile} write of the given file crash between syncing its new
+     * content and renaming it into place. Has to be undone with {@link #reset()}.
+     */
+    public static void crashBeforeRename(final File file) {
+        DurableFile.renameListener = new DurableFile.RenameListener() {
+            @Override
+            public void beforeRename(File renamed) {
+                if (renamed.equals(file)) {
+                    throw new Crash(renamed);
+                }
+            }
+        };
+    }
+
+    public static void reset() {
+        DurableFile.renameListener = null;
+    }
+
+    public static void truncate(File file, long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(Math.min(offset, raf.length()));
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.sdrc.scpstn.collect.android.utilities;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A file written through {@link DurableFile} must hold either its previous or its new content,
+ * wherever the process was killed while writing it.
+ */
+public class DurableFileTest {
+
+    private static final String PREVIOUS = "<data><name>previous</name></data>";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "instance.xml");
+        DurableFile.write(file, PREVIOUS.getBytes("UTF-8"));
+    }
+
+    @Test
+    public void write_ReplacesFile() throws Exception {
+        String next = next(1);
+        DurableFile.write(file, next.getBytes("UTF-8"));
+
+        assertEquals(next, read(file));
+        assertFalse(new DurableFile(file).getTempFile().exists());
+    }
+
+    @Test
+    public void tempFile_IsHidden() {
+        File tempFile = new DurableFile(file).getTempFile();
+
+        assertEquals(file.getParentFile(), tempFile.getParentFile());
+        assertTrue(tempFile.getName().startsWith("."));
+    }
+
+    @Test
+    public void crashBeforeRename_LeavesPreviousFile() throws Exception {
+        CrashSimulator.crashBeforeRename(file);
+        try {
+            DurableFile.write(file, next(1).getBytes("UTF-8"));
+            fail("Expected the write to crash");
+        } catch (CrashSimulator.Crash e) {
+            // the process died with the new content on disk, but not in place
+        } finally {
+            CrashSimulator.reset();
+        }
+        assertEquals(PREVIOUS, read(file));
+        assertEquals(next(1), read(new DurableFile(file).getTempFile()));
+
+        // the next save replaces the leftover temporary file
+        DurableFile.write(file, next(2).getBytes("UTF-8"));
+        assertEquals(next(2), read(file));
+        assertFalse(new DurableFile(file).getTempFile().exists());
+    }
+
+    @Test
+    public void failWrite_LeavesPreviousFile() throws Exception {
+        DurableFile durableFile = new DurableFile(file);
+        FileOutputStream fos = durableFile.startWrite();
+        fos.write(next(1).getBytes("UTF-8"));
+        durableFile.failWrite(fos);
+
+        assertEquals(PREVIOUS, read(file));
+        assertFalse(durableFile.getTempFile().exists());
+    }
+
+    private static String next(int i) {
+        StringBuilder sb = new StringBuilder("<data>");
+        for (int j = 0; j <= i; j++) {
+            sb.append("<name>next ").append(j).append("</name>");
+        }
+        return sb.append("</data>").toString();
+    }
+
+    private static String read(File file) throws Exception {
+        return FileUtils.readFileToString(file, "UTF-8");
+    }
+}
@@ -0,0 +1,382 @@
+package org.sdrc.scpstn.collect.android.utilities;
+
+import org.apache.commons.io.FileUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.instance.InstanceInitializationFactory;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.xform.util.XFormUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sdrc.scpstn.collect.android.BuildConfig;
+import org.sdrc.scpstn.collect.android.exception.EncryptionException;
+import org.sdrc.scpstn.collect.android.logic.FormController;
+import org.sdrc.scpstn.collect.android.logic.FormController.InstanceMetadata;
+import org.sdrc.scpstn.collect.android.logic.PropertyManager;
+import org.sdrc.scpstn.collect.android.utilities.EncryptionUtils.EncryptedFormInformation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Encrypted submissions must decrypt with the iv sequence of the files listed in the manifest,
+ * however many of them were encrypted at the same time, and a submission that fails to encrypt
+ * must not leave encrypted files behind. Also compares the streaming encryption to encrypting each
+ * file in memory, one after another.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml",
+        packageName = "org.sdrc.scpstn.collect")
+public class EncryptionUtilsTest {
+
+    private static final String INSTANCE_ID = "uuid:6f0c6a0e-3b7a-4c1f-9a55-7d0d3c2b1a99";
+
+    private static final String FORM = "<h:html xmlns=\"http://www.w3.org/2002/xforms\""
+            + " xmlns:h=\"http://www.w3.org/1999/xhtml\""
+            + " xmlns:orx=\"http://openrosa.org/xforms\">"
+            + "<h:head><h:title>Encrypted</h:title><model>"
+            + "<instance><data id=\"encrypted\"><name/>"
+            + "<orx:meta><orx:instanceID>" + INSTANCE_ID + "</orx:instanceID></orx:meta>"
+            + "</data></instance>"
+            + "<bind nodeset=\"/data/name\" type=\"string\"/>"
+            + "<bind nodeset=\"/data/meta/instanceID\" type=\"string\"/>"
+            + "</model></h:head><h:body>"
+            + "<input ref=\"/data/name\"><label>Name</label></input>"
+            + "</h:body></h:html>";
+
+    private static final int BENCHMARK_PHOTOS = 10;
+    private static final int BENCHMARK_PHOTO_SIZE = 5 * 1024 * 1024;
+
+    private static final int FAILURE_PHOTOS = 8;
+    private static final int FAILURE_PHOTO_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InstanceMetadata instanceMetadata;
+    private PublicKey publicKey;
+
+    @Before
+    public void setUp() throws Exception {
+        FormController.initializeJavaRosa(new PropertyManager(RuntimeEnvironment.application));
+        FormDef fd = XFormUtils.getFormFromInputStream(
+                new ByteArrayInputStream(FORM.getBytes("UTF-8")));
+        fd.initialize(true, new InstanceInitializationFactory());
+        instanceMetadata = new FormController(folder.getRoot(),
+                new FormEntryController(new FormEntryModel(fd)), null).getSubmissionMetadata();
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(EncryptionUtils.RSA_ALGORITHM);
+        generator.initialize(2048);
+        publicKey = generator.generateKeyPair().getPublic();
+    }
+
+    @Test
+    public void generateEncryptedSubmission_DecryptsInManifestOrder() throws Exception {
+        File instanceDir = folder.newFolder("instance");
+        File instanceXml = new File(instanceDir, "instance.xml");
+        File submissionXml = new File(instanceDir, "submission.xml");
+        FileUtils.writeStringToFile(instanceXml, "<data/>", "UTF-8");
+        byte[] submission = "<data id=\"encrypted\"><name>Asha</name></data>".getBytes("UTF-8");
+        FileUtils.writeByteArrayToFile(submissionXml, submission);
+        Random random = new Random(42);
+        for (int i = 0; i < 7; i++) {
+            // sizes around the cipher's block size and the buffer size
+            byte[] media = new byte[i == 0 ? 0 : random.nextInt(200 * 1024) + i];
+            random.nextBytes(media);
+            FileUtils.writeByteArrayToFile(new File(instanceDir, "photo" + i + ".jpg"), media);
+        }
+
+        EncryptedFormInformation formInfo = newFormInformation();
+        byte[] ivSeed = formInfo.ivSeedArray.clone();
+        String signatureSource = formInfo.elementSignatureSource.toString();
+        EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml, formInfo);
+
+        // the server decrypts the media in manifest order, then the submission
+        String manifest = FileUtils.readFileToString(submissionXml, "UTF-8");
+        List<String> encryptedFiles = new ArrayList<String>();
+        Matcher matcher = Pattern.compile("<file>([^<]*)</file>").matcher(manifest);
+        while (matcher.find()) {
+            encryptedFiles.add(matcher.group(1));
+        }
+        assertEquals(7, encryptedFiles.size());
+        encryptedFiles.add("submission.xml.enc");
+
+        for (int i = 0; i < encryptedFiles.size(); i++) {
+            ++ivSeed[i % ivSeed.length];
+            String name = encryptedFiles.get(i);
+            String plaintextName = name.substring(0, name.length() - ".enc".length());
+            byte[] plaintext = plaintextName.equals("submission.xml") ? submission
+                    : FileUtils.readFileToByteArray(new File(instanceDir, plaintextName));
+            assertArrayEquals(name, plaintext, decrypt(new File(instanceDir, name), formInfo,
+                    ivSeed));
+
+            signatureSource += plaintextName + "::" + md5(plaintext) + "\n";
+        }
+        assertEquals(signatureSource, formInfo.elementSignatureSource.toString());
+    }
+
+    @Test
+    public void getEncryptedFormInformation_CachedFormSkipsProvider() throws Exception {
+        EncryptedFormCache cache = EncryptedFormCache.getInstance();
+        cache.put("encrypted-hash", new EncryptedFormCache.Entry("encrypted", "3", publicKey));
+        cache.put("plain-hash", new EncryptedFormCache.Entry("plain", null, null));
+
+        // no uri to look the forms up with: both come from the cache
+        EncryptedFormInformation formInfo = EncryptionUtils.getEncryptedFormInformation(null,
+                "encrypted-hash", instanceMetadata);
+        assertEquals("encrypted", formInfo.formId);
+        assertEquals("3", formInfo.formVersion);
+        assertSame(publicKey, formInfo.rsaPublicKey);
+        assertNull(EncryptionUtils.getEncryptedFormInformation(null, "plain-hash",
+                instanceMetadata));
+
+        cache.evict("encrypted-hash");
+        assertNull(cache.get("encrypted-hash"));
+        cache.clear();
+    }
+
+    @Test
+    public void generateEncryptedSubmission_PhotosMatchInMemoryEncryption() throws Exception {
+        File instanceDir = folder.newFolder("benchmark");
+        File oldDir = folder.newFolder("benchmark-old");
+        File instanceXml = new File(instanceDir, "instance.xml");
+        File submissionXml = new File(instanceDir, "submission.xml");
+        FileUtils.writeStringToFile(instanceXml, "<data/>", "UTF-8");
+        String submission = "<data id=\"encrypted\"><name>Asha</name></data>";
+        FileUtils.writeStringToFile(submissionXml, submission, "UTF-8");
+        Random random = new Random(42);
+        byte[] photo = new byte[BENCHMARK_PHOTO_SIZE];
+        for (int i = 0; i < BENCHMARK_PHOTOS; i++) {
+            random.nextBytes(photo);
+            FileUtils.writeByteArrayToFile(new File(instanceDir, "photo" + i + ".jpg"), photo);
+        }
+        photo = null;
+
+        // the files in the order they used to be encrypted in, the submission last
+        List<File> files = new ArrayList<File>();
+        List<String> plaintextMd5s = new ArrayList<String>();
+        for (File file : instanceDir.listFiles()) {
+            if (!file.equals(instanceXml) && !file.equals(submissionXml)) {
+                files.add(file);
+            }
+        }
+        files.add(submissionXml);
+        for (File file : files) {
+            plaintextMd5s.add(
+                    org.sdrc.scpstn.collect.android.utilities.FileUtils.getMd5Hash(file));
+        }
+
+        EncryptedFormInformation oldInfo = newFormInformation();
+        byte[] oldIvSeed = oldInfo.ivSeedArray.clone();
+        for (File file : files) {
+            long held = encryptInMemory(file, new File(oldDir, file.getName() + ".enc"),
+                    oldInfo.getCipher());
+            assertTrue(file.getName(), held >= file.length());
+            oldInfo.appendFileSignatureSource(file);
+        }
+
+        // the heap in use whenever an encrypted file is complete, other files being encrypted
+        final long baseline = usedHeap();
+        final long[] peak = new long[1];
+        DurableFile.renameListener = new DurableFile.RenameListener() {
+            @Override
+            public void beforeRename(File renamed) {
+                if (renamed.getName().endsWith(".enc")) {
+                    long used = usedHeap();
+                    synchronized (peak) {
+                        peak[0] = Math.max(peak[0], used - baseline);
+                    }
+                }
+            }
+        };
+        EncryptedFormInformation newInfo = newFormInformation();
+        byte[] newIvSeed = newInfo.ivSeedArray.clone();
+        try {
+            EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml, newInfo);
+        } finally {
+            CrashSimulator.reset();
+        }
+        assertTrue("Streaming held " + peak[0] + " bytes", peak[0] < BENCHMARK_PHOTO_SIZE);
+
+        // both decrypt to the plaintext, with the same iv sequence and signature
+        String manifest = FileUtils.readFileToString(submissionXml, "UTF-8");
+        List<String> encryptedFiles = new ArrayList<String>();
+        Matcher matcher = Pattern.compile("<file>([^<]*)</file>").matcher(manifest);
+        while (matcher.find()) {
+            encryptedFiles.add(matcher.group(1));
+        }
+        encryptedFiles.add("submission.xml.enc");
+        assertEquals(files.size(), encryptedFiles.size());
+        for (int i = 0; i < files.size(); i++) {
+            String name = files.get(i).getName() + ".enc";
+            assertEquals(name, encryptedFiles.get(i));
+            ++oldIvSeed[i % oldIvSeed.length];
+            ++newIvSeed[i % newIvSeed.length];
+            assertEquals(name, plaintextMd5s.get(i),
+                    decryptedMd5(new File(oldDir, name), oldInfo, oldIvSeed));
+            assertEquals(name, plaintextMd5s.get(i),
+                    decryptedMd5(new File(instanceDir, name), newInfo, newIvSeed));
+        }
+        assertEquals(oldInfo.elementSignatureSource.toString(),
+                newInfo.elementSignatureSource.toString());
+    }
+
+    @Test
+    public void generateEncryptedSubmission_FailureLeavesNoEncryptedFiles() throws Exception {
+        File instanceDir = folder.newFolder("failure");
+        File instanceXml = new File(instanceDir, "instance.xml");
+        File submissionXml = new File(instanceDir, "submission.xml");
+        FileUtils.writeStringToFile(instanceXml, "<data/>", "UTF-8");
+        FileUtils.writeStringToFile(submissionXml, "<data/>", "UTF-8");
+        Random random = new Random(42);
+        byte[] photo = new byte[FAILURE_PHOTO_SIZE];
+        for (int i = 0; i < FAILURE_PHOTOS; i++) {
+            random.nextBytes(photo);
+            FileUtils.writeByteArrayToFile(new File(instanceDir, "photo" + i + ".jpg"), photo);
+        }
+        // the encrypted copy of one photo, among the others being encrypted, cannot be written
+        assertTrue(new File(instanceDir, ".photo" + FAILURE_PHOTOS / 2 + ".jpg.enc.tmp").mkdir());
+
+        try {
+            EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml,
+                    newFormInformation());
+            fail("Expected the unwritable photo to stop the encryption");
+        } catch (EncryptionException e) {
+            // expected
+        }
+
+        for (File file : instanceDir.listFiles()) {
+            assertFalse(file.getName(), file.isFile()
+                    && (file.getName().endsWith(".enc") || file.getName().endsWith(".tmp")));
+        }
+        assertEquals("<data/>", FileUtils.readFileToString(submissionXml, "UTF-8"));
+    }
+
+    @Test
+    public void generateEncryptedSubmission_CrashBeforeManifestReplacesSubmission()
+            throws Exception {
+        File instanceDir = folder.newFolder("crash");
+        File instanceXml = new File(instanceDir, "instance.xml");
+        File submissionXml = new File(instanceDir, "submission.xml");
+        FileUtils.writeStringToFile(instanceXml, "<data/>", "UTF-8");
+        String submission = "<data id=\"encrypted\"><name>Asha</name></data>";
+        FileUtils.writeStringToFile(submissionXml, submission, "UTF-8");
+
+        CrashSimulator.crashBeforeRename(submissionXml);
+        try {
+            EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml,
+                    newFormInformation());
+            fail("Expected the manifest write to crash");
+        } catch (CrashSimulator.Crash e) {
+            // the process died with the manifest written next to the plaintext submission
+        } finally {
+            CrashSimulator.reset();
+        }
+        assertEquals(submission, FileUtils.readFileToString(submissionXml, "UTF-8"));
+
+        // packaging the submission again after the restart replaces the leftover manifest
+        EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml,
+                newFormInformation());
+        assertTrue(FileUtils.readFileToString(submissionXml, "UTF-8")
+                .contains("submission.xml.enc"));
+        assertFalse(new File(instanceDir, ".submission.xml.tmp").exists());
+    }
+
+    private EncryptedFormInformation newFormInformation() throws Exception {
+        return new EncryptedFormInformation("encrypted", null, instanceMetadata, publicKey,
+                new Base64Wrapper());
+    }
+
+    /**
+     * How files used to be encrypted: the whole ciphertext in memory, written in one go.
+     *
+     * @return the size of the ciphertext held in memory
+     */
+    private static long encryptInMemory(File file, File encryptedFile, Cipher cipher)
+            throws Exception {
+        ByteArrayOutputStream encryptedData = new ByteArrayOutputStream();
+        CipherOutputStream cipherOutputStream = new CipherOutputStream(encryptedData, cipher);
+        InputStream fin = new FileInputStream(file);
+        byte[] buffer = new byte[2048];
+        int len = fin.read(buffer);
+        while (len != -1) {
+            cipherOutputStream.write(buffer, 0, len);
+            len = fin.read(buffer);
+        }
+        fin.close();
+        cipherOutputStream.close();
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(encryptedFile, "rws");
+        randomAccessFile.write(encryptedData.toByteArray());
+        randomAccessFile.close();
+        return encryptedData.size();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static String decryptedMd5(File file, EncryptedFormInformation formInfo, byte[] iv)
+            throws Exception {
+        Cipher cipher = Cipher.getInstance(EncryptionUtils.SYMMETRIC_ALGORITHM);
+        cipher.init(Cipher.DECRYPT_MODE, formInfo.symmetricKey, new IvParameterSpec(iv));
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        InputStream in = new CipherInputStream(new FileInputStream(file), cipher);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int len = in.read(buffer);
+            while (len != -1) {
+                md.update(buffer, 0, len);
+                len = in.read(buffer);
+            }
+        } finally {
+            in.close();
+        }
+        return org.sdrc.scpstn.collect.android.utilities.FileUtils.toMd5String(md.digest());
+    }
+
+    private static byte[] decrypt(File file, EncryptedFormInformation formInfo, byte[] iv)
+            throws Exception {
+        Cipher cipher = Cipher.getInstance(EncryptionUtils.SYMMETRIC_ALGORITHM);
+        cipher.init(Cipher.DECRYPT_MODE, formInfo.symmetricKey, new IvParameterSpec(iv));
+        return cipher.doFinal(FileUtils.readFileToByteArray(file));
+    }
+
+    private static String md5(byte[] data) throws Exception {
+        return org.sdrc.scpstn.collect.android.utilities.FileUtils.toMd5String(
+                MessageDigest.getInstance("MD5").digest(data));
+    }
+}
@@ -0,0 +1,69 @@
+package org.sdrc.scpstn.collect.android.utilities;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.sdrc.scpstn.collect.android.BuildConfig;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml",
+        packageName = "org.sdrc.scpstn.collect")
+public class FileUtilsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void getMd5Hash_MatchesKnownDigest() throws IOException {
+        File file = write("empty.txt", new byte[0]);
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", FileUtils.getMd5Hash(file));
+
+        file = write("abc.txt", "abc".getBytes("UTF-8"));
+        assertEquals("900150983cd24fb0d6963f7d28e17f72", FileUtils.getMd5Hash(file));
+    }
+
+    /**
+     * Files spanning several read buffers, including a partial last buffer, must hash the same
+     * as digesting the whole content at once.
+     */
+    @Test
+    public void getMd5Hash_HandlesMultipleBuffers() throws Exception {
+        byte[] content = new byte[3 * 64 * 1024 + 17];
+        new Random(42).nextBytes(content);
+        File file = write("large.bin", content);
+
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        String expected = String.format("%032x", new BigInteger(1, md.digest(content)));
+
+        assertEquals(expected, FileUtils.getMd5Hash(file));
+    }
+
+    @Test
+    public void getMd5Hash_ReturnsNullForMissingFile() {
+        assertNull(FileUtils.getMd5Hash(new File(folder.getRoot(), "missing.xml")));
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        File file = folder.newFile(name);
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content);
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+}